@@ -7,6 +7,9 @@ import smalltalk.compiler.symbols.*;
 
 file: classDef* main EOF ;
 
+/** Statements evaluated against classes already compiled; see Compiler.compileDoit */
+doit: main EOF ;
+
 classDef returns [STClass scope]
 	:	'class' ID (':' ID)? '[' instanceVars? classMethod* method* ']'
 	;
@@ -55,8 +58,17 @@ lvalue returns [VariableSymbol sym] // set sym to ID if assignment
 	:	ID
 	;
 
+/** "Transcript show: a; show: b; cr" sends each message after a ';' to
+    the receiver of the first message.
+*/
 messageExpression
-	:	keywordExpression
+	:	keywordExpression ( ';' cascadeMessage )*
+	;
+
+cascadeMessage
+	:	ID											# CascadeUnary
+	|	bop unaryExpression							# CascadeBinary
+	|	( KEYWORD args+=binaryExpression )+			# CascadeKeyword
 	;
 
 keywordExpression
@@ -95,6 +107,7 @@ unaryExpression
 
 primary
 	:	literal
+	|	literalArray
 	|	array
 	|	id
 	|	block
@@ -109,9 +122,28 @@ literal
 	:	NUMBER
 	|	CHAR
 	|	STRING
+	|	SYMBOL
 	|	'nil' | 'self' | 'true' | 'false'
 	;
 
+/** #(1 $a 'x' #sym sym at:put: nil (2 3)) is built once by the compiler.
+    A bare name or keywords inside are symbols and a nested (...) is
+    another literal array.
+*/
+literalArray : '#(' literalArrayElement* ')' ;
+
+literalArrayElement
+	:	NUMBER
+	|	CHAR
+	|	STRING
+	|	SYMBOL
+	|	ID
+	|	KEYWORD+
+	|	'nil' | 'true' | 'false'
+	|	literalArray
+	|	'(' literalArrayElement* ')'
+	;
+
 /** Like #(1 2 3) except we can have expressions in array not just literals */
 array : '{' ( messageExpression ('.' messageExpression)* '.'? )? '}' ;
 
@@ -129,7 +161,8 @@ ID  :	[a-zA-Z_] [a-zA-Z_0-9]*
     ;
 
 SYMBOL
-	:	'#' ID
+	:	'#' ID ( ':' ( ID ':' )* )?
+	|	'#' [+\-*/\\~<>=@%|&?,]+
 	;
 
 COMMENT
@@ -0,0 +1,377 @@
+package smalltalk.aot;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/** Translate compiled Smalltalk code to JVM bytecode ahead of time.
+ *
+ *  Each Smalltalk class becomes one JVM class with a public static method
+ *  per Smalltalk method and per nested block, all with the signature
+ *  (AOTRuntime,Context)Object. Smalltalk bytecode has no jumps, so the
+ *  Smalltalk operand stack maps directly onto the JVM operand stack while
+ *  arguments and locals stay in the {@link smalltalk.vm.Context} where
+ *  blocks can reach them. Every send site gets a static final
+ *  {@link SendSite} field, created in the class initializer, that holds
+ *  the selector and an inline cache, and every literal array in the
+ *  class's constant pool a static final field holding the VM's array.
+ *
+ *  Load the result into an {@link AOTRuntime} to execute it.
+ */
+public class AOTCompiler implements Opcodes {
+	public static final String PACKAGE = "smalltalk/aot/gen/";
+
+	public static final String RUNTIME = "smalltalk/aot/AOTRuntime";
+	public static final String SEND_SITE = "smalltalk/aot/SendSite";
+	public static final String CONTEXT = "smalltalk/vm/Context";
+	public static final String STOBJECT = "smalltalk/vm/STObject";
+	public static final String OBJECT = "java/lang/Object";
+
+	public static final String METHOD_DESC = "(L"+RUNTIME+";L"+CONTEXT+";)Ljava/lang/Object;";
+	public static final String SITE_DESC = "L"+SEND_SITE+";";
+
+	// JVM local variable slots in generated methods
+	protected static final int RT = 0;
+	protected static final int CTX = 1;
+	protected static final int TMP = 2;
+
+	/** Translate every class in symtab, returning JVM internal class name -> class file */
+	public Map<String,byte[]> translate(STSymbolTable symtab) {
+		Map<String,byte[]> classes = new LinkedHashMap<>();
+		for (STClass c : symtab.getClasses()) {
+			classes.put(jvmClassName(c.getName()), translate(c));
+		}
+		return classes;
+	}
+
+	public byte[] translate(STClass c) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				return OBJECT; // only dead code after returns needs frames
+			}
+		};
+		String className = jvmClassName(c.getName());
+		cw.visit(V1_8, ACC_PUBLIC|ACC_FINAL|ACC_SUPER, className, null, OBJECT, null);
+		cw.visitSource(c.getName()+".st", null);
+
+		List<STCompiledBlock> methods = c.getCompiledMethods(); // before literals in case it generates code
+		String[] literals = c.stringTable.toArray();
+		List<Site> sites = new ArrayList<>();
+		for (STCompiledBlock m : methods) {
+			if ( m.primitiveName!=null ) continue;
+			translate(cw, className, jvmMethodName(m.name), m, false, literals, sites);
+			for (int i = 0; m.blocks!=null && i<m.blocks.length; i++) {
+				translate(cw, className, jvmBlockName(m.name, i), m.blocks[i], true, literals, sites);
+			}
+		}
+
+		// static final SendSite fields plus <clinit> to create them
+		MethodVisitor clinit = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+		clinit.visitCode();
+		for (int i = 0; i<sites.size(); i++) {
+			Site s = sites.get(i);
+			cw.visitField(ACC_STATIC|ACC_FINAL|ACC_PRIVATE, siteName(i), SITE_DESC, null, null).visitEnd();
+			clinit.visitLdcInsn(c.getName());
+			clinit.visitLdcInsn(s.selector);
+			pushInt(clinit, s.nargs);
+			clinit.visitInsn(s.isSuper ? ICONST_1 : ICONST_0);
+			clinit.visitMethodInsn(INVOKESTATIC, RUNTIME, "site",
+								   "(Ljava/lang/String;Ljava/lang/String;IZ)"+SITE_DESC, false);
+			clinit.visitFieldInsn(PUTSTATIC, className, siteName(i), SITE_DESC);
+		}
+		for (int i = 0; i<c.constants.size(); i++) {
+			cw.visitField(ACC_STATIC|ACC_FINAL|ACC_PRIVATE, constantName(i), "Ljava/lang/Object;", null, null).visitEnd();
+			clinit.visitLdcInsn(c.getName());
+			pushInt(clinit, i);
+			clinit.visitMethodInsn(INVOKESTATIC, RUNTIME, "constant", "(Ljava/lang/String;I)Ljava/lang/Object;", false);
+			clinit.visitFieldInsn(PUTSTATIC, className, constantName(i), "Ljava/lang/Object;");
+		}
+		clinit.visitInsn(RETURN);
+		clinit.visitMaxs(0, 0);
+		clinit.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	protected void translate(ClassWriter cw, String className, String methodName,
+							 STCompiledBlock blk, boolean isBlock, String[] literals, List<Site> sites)
+	{
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC|ACC_STATIC, methodName, METHOD_DESC, null, null);
+		mv.visitCode();
+		byte[] code = blk.bytecode;
+		int ip = 0;
+		while ( code!=null && ip<code.length ) {
+			int opcode = code[ip];
+			switch ( opcode ) {
+				case Bytecode.NIL :
+					mv.visitInsn(ACONST_NULL);
+					break;
+				case Bytecode.SELF :
+					pushReceiver(mv);
+					break;
+				case Bytecode.TRUE :
+					mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;");
+					break;
+				case Bytecode.FALSE :
+					mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
+					break;
+				case Bytecode.PUSH_CHAR :
+					pushInt(mv, Bytecode.getShort(code, ip+1));
+					mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "valueOf", "(C)Ljava/lang/Character;", false);
+					break;
+				case Bytecode.PUSH_INT :
+					pushInt(mv, Bytecode.getInt(code, ip+1));
+					mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false);
+					break;
+				case Bytecode.PUSH_FLOAT :
+					mv.visitLdcInsn(Float.intBitsToFloat(Bytecode.getInt(code, ip+1)));
+					mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "valueOf", "(F)Ljava/lang/Float;", false);
+					break;
+				case Bytecode.PUSH_FIELD :
+					pushFields(mv);
+					pushInt(mv, Bytecode.getShort(code, ip+1));
+					mv.visitInsn(AALOAD);
+					break;
+				case Bytecode.PUSH_LOCAL :
+					pushLocals(mv, Bytecode.getShort(code, ip+1));
+					pushInt(mv, Bytecode.getShort(code, ip+3));
+					mv.visitInsn(AALOAD);
+					break;
+				case Bytecode.PUSH_LITERAL :
+					mv.visitLdcInsn(literals[Bytecode.getShort(code, ip+1)]);
+					break;
+				case Bytecode.PUSH_GLOBAL :
+					mv.visitVarInsn(ALOAD, RT);
+					mv.visitLdcInsn(literals[Bytecode.getShort(code, ip+1)]);
+					mv.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, "global", "(Ljava/lang/String;)Ljava/lang/Object;", false);
+					break;
+				case Bytecode.PUSH_GLOBAL_SLOT :
+					mv.visitVarInsn(ALOAD, RT);
+					pushInt(mv, Bytecode.getShort(code, ip+1));
+					mv.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, "global", "(I)Ljava/lang/Object;", false);
+					break;
+				case Bytecode.PUSH_CONSTANT :
+					mv.visitFieldInsn(GETSTATIC, className, constantName(Bytecode.getShort(code, ip+1)), "Ljava/lang/Object;");
+					break;
+				case Bytecode.PUSH_ARRAY : {
+					int n = Bytecode.getShort(code, ip+1);
+					collectIntoArray(mv, n);
+					mv.visitVarInsn(ALOAD, RT);
+					mv.visitVarInsn(ALOAD, TMP);
+					mv.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, "newArray", "([Ljava/lang/Object;)Ljava/lang/Object;", false);
+					break;
+				}
+				case Bytecode.STORE_FIELD :
+					mv.visitInsn(DUP);            // v v
+					pushFields(mv);               // v v fields
+					mv.visitInsn(SWAP);           // v fields v
+					pushInt(mv, Bytecode.getShort(code, ip+1));
+					mv.visitInsn(SWAP);           // v fields i v
+					mv.visitInsn(AASTORE);
+					break;
+				case Bytecode.STORE_LOCAL :
+					mv.visitInsn(DUP);
+					pushLocals(mv, Bytecode.getShort(code, ip+1));
+					mv.visitInsn(SWAP);
+					pushInt(mv, Bytecode.getShort(code, ip+3));
+					mv.visitInsn(SWAP);
+					mv.visitInsn(AASTORE);
+					break;
+				case Bytecode.POP :
+					mv.visitInsn(POP);
+					break;
+				case Bytecode.DUP :
+					mv.visitInsn(DUP);
+					break;
+				case Bytecode.SEND :
+				case Bytecode.SEND_TAIL : // the JVM has no tail calls
+				case Bytecode.SEND_DIRECT : // the site's inline cache does as well
+				case Bytecode.SEND_SUPER :
+				case Bytecode.SEND_SUPER_DIRECT : {
+					int nargs = Bytecode.getShort(code, ip+1);
+					String selector = literals[Bytecode.getShort(code, ip+3)];
+					boolean isSuper = opcode==Bytecode.SEND_SUPER || opcode==Bytecode.SEND_SUPER_DIRECT;
+					int site = addSite(sites, selector, nargs, isSuper);
+					if ( nargs<=3 ) {
+						mv.visitFieldInsn(GETSTATIC, className, siteName(site), SITE_DESC);
+						StringBuilder desc = new StringBuilder("(Ljava/lang/Object;");
+						for (int i = 0; i<nargs; i++) desc.append("Ljava/lang/Object;");
+						desc.append(SITE_DESC).append(")Ljava/lang/Object;");
+						mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "send"+nargs, desc.toString(), false);
+					}
+					else {
+						collectIntoArray(mv, nargs);
+						mv.visitVarInsn(ALOAD, TMP);
+						mv.visitFieldInsn(GETSTATIC, className, siteName(site), SITE_DESC);
+						mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "sendN",
+										   "(Ljava/lang/Object;[Ljava/lang/Object;"+SITE_DESC+")Ljava/lang/Object;", false);
+					}
+					break;
+				}
+				case Bytecode.BLOCK :
+					mv.visitVarInsn(ALOAD, RT);
+					mv.visitVarInsn(ALOAD, CTX);
+					pushInt(mv, Bytecode.getShort(code, ip+1));
+					mv.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, "block", "(L"+CONTEXT+";I)Ljava/lang/Object;", false);
+					break;
+				case Bytecode.BLOCK_RETURN :
+					mv.visitInsn(ARETURN);
+					break;
+				case Bytecode.RETURN :
+					if ( isBlock ) { // ^ in a block returns from the home method
+						mv.visitVarInsn(ALOAD, RT);
+						mv.visitInsn(SWAP);
+						mv.visitVarInsn(ALOAD, CTX);
+						mv.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, "nonLocalReturn",
+										   "(Ljava/lang/Object;L"+CONTEXT+";)Ljava/lang/Object;", false);
+					}
+					mv.visitInsn(ARETURN);
+					break;
+				case Bytecode.DBG :
+					mv.visitVarInsn(ALOAD, CTX);
+					pushInt(mv, Bytecode.getInt(code, ip+3));
+					mv.visitFieldInsn(PUTFIELD, CONTEXT, "location", "I");
+					break;
+				default :
+					if ( Bytecode.isSpecialSend(opcode) ) {
+						int site = addSite(sites, Bytecode.specialSelector(opcode), 1, false);
+						mv.visitFieldInsn(GETSTATIC, className, siteName(site), SITE_DESC);
+						mv.visitMethodInsn(INVOKESTATIC, RUNTIME, Bytecode.instructions[opcode].name,
+										   "(Ljava/lang/Object;Ljava/lang/Object;"+SITE_DESC+")Ljava/lang/Object;", false);
+						break;
+					}
+					throw new IllegalArgumentException("can't translate opcode "+opcode+" at "+ip+
+													   " in "+blk.qualifiedName);
+			}
+			ip += Bytecode.instructionSize(opcode);
+		}
+		if ( code==null || code.length==0 ) {
+			mv.visitInsn(ACONST_NULL);
+			mv.visitInsn(ARETURN);
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/** Write translated classes to a jar file */
+	public static void writeJar(String fileName, Map<String,byte[]> classes) throws IOException {
+		try ( JarOutputStream jar = new JarOutputStream(new FileOutputStream(fileName)) ) {
+			for (Map.Entry<String,byte[]> c : classes.entrySet()) {
+				jar.putNextEntry(new JarEntry(c.getKey()+".class"));
+				jar.write(c.getValue());
+				jar.closeEntry();
+			}
+		}
+	}
+
+	public static String jvmClassName(String stClassName) {
+		return PACKAGE+mangle(stClassName);
+	}
+
+	public static String jvmMethodName(String selector) {
+		return mangle(selector);
+	}
+
+	public static String jvmBlockName(String selector, int blockIndex) {
+		return mangle(selector)+"$$"+blockIndex;
+	}
+
+	/** Turn a selector like at:put: into a legal JVM name like at$3aput$3a */
+	public static String mangle(String name) {
+		StringBuilder buf = new StringBuilder();
+		for (char c : name.toCharArray()) {
+			if ( Character.isLetterOrDigit(c) && c<128 || c=='_' ) {
+				buf.append(c);
+			}
+			else {
+				buf.append(String.format("$%02x", (int)c));
+			}
+		}
+		return buf.toString();
+	}
+
+	protected static String siteName(int i) { return "site"+i; }
+
+	protected static String constantName(int i) { return "constant"+i; }
+
+	protected static int addSite(List<Site> sites, String selector, int nargs, boolean isSuper) {
+		sites.add(new Site(selector, nargs, isSuper));
+		return sites.size()-1;
+	}
+
+	protected static void pushReceiver(MethodVisitor mv) {
+		mv.visitVarInsn(ALOAD, CTX);
+		mv.visitFieldInsn(GETFIELD, CONTEXT, "receiver", "Ljava/lang/Object;");
+	}
+
+	protected static void pushFields(MethodVisitor mv) {
+		pushReceiver(mv);
+		mv.visitTypeInsn(CHECKCAST, STOBJECT);
+		mv.visitFieldInsn(GETFIELD, STOBJECT, "fields", "[Ljava/lang/Object;");
+	}
+
+	/** Push the locals array of the context delta scopes out */
+	protected static void pushLocals(MethodVisitor mv, int delta) {
+		mv.visitVarInsn(ALOAD, CTX);
+		for (int i = 0; i<delta; i++) {
+			mv.visitFieldInsn(GETFIELD, CONTEXT, "enclosingContext", "L"+CONTEXT+";");
+		}
+		mv.visitFieldInsn(GETFIELD, CONTEXT, "locals", "[Ljava/lang/Object;");
+	}
+
+	/** Pop the top n operands into a new Object[] stored in local TMP */
+	protected static void collectIntoArray(MethodVisitor mv, int n) {
+		pushInt(mv, n);
+		mv.visitTypeInsn(ANEWARRAY, OBJECT);
+		mv.visitVarInsn(ASTORE, TMP);
+		for (int i = n-1; i>=0; i--) {
+			mv.visitVarInsn(ALOAD, TMP); // v a
+			mv.visitInsn(SWAP);          // a v
+			pushInt(mv, i);              // a v i
+			mv.visitInsn(SWAP);          // a i v
+			mv.visitInsn(AASTORE);
+		}
+	}
+
+	protected static void pushInt(MethodVisitor mv, int v) {
+		if ( v>=-1 && v<=5 ) {
+			mv.visitInsn(ICONST_0+v);
+		}
+		else if ( v>=Byte.MIN_VALUE && v<=Byte.MAX_VALUE ) {
+			mv.visitIntInsn(BIPUSH, v);
+		}
+		else if ( v>=Short.MIN_VALUE && v<=Short.MAX_VALUE ) {
+			mv.visitIntInsn(SIPUSH, v);
+		}
+		else {
+			mv.visitLdcInsn(v);
+		}
+	}
+
+	protected static class Site {
+		final String selector;
+		final int nargs;
+		final boolean isSuper;
+
+		Site(String selector, int nargs, boolean isSuper) {
+			this.selector = selector;
+			this.nargs = nargs;
+			this.isSuper = isSuper;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package smalltalk.aot;
+
+import smalltalk.compiler.Bytecode;
+import smalltalk.vm.BlockDescriptor;
+import smalltalk.vm.Context;
+import smalltalk.vm.NonLocalReturn;
+import smalltalk.vm.STArray;
+import smalltalk.vm.STCompiledBlock;
+import smalltalk.vm.STMetaClassObject;
+import smalltalk.vm.VM;
+import smalltalk.vm.VMException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/** Runtime support for code translated by {@link AOTCompiler}.
+ *
+ *  Load and link classes as for the {@link VM} and then install the
+ *  translated classes, either directly or from a jar written by
+ *  STC -aot:
+ *
+ *  $ java smalltalk.aot.AOTRuntime -sto dir dir/prog.jar
+ *
+ *  Installing binds each method and block to its static JVM method.
+ *  Translated code shares contexts, primitives and error handling with
+ *  the interpreter, and any method without translated code is
+ *  interpreted, so the two can be mixed freely.
+ */
+public class AOTRuntime extends VM {
+	public static final MethodType METHOD_TYPE =
+		MethodType.methodType(Object.class, AOTRuntime.class, Context.class);
+
+	/** The runtime installing classes on this thread; send sites created by
+	 *  generated class initializers bind to it.
+	 */
+	private static final ThreadLocal<AOTRuntime> installing = new ThreadLocal<>();
+
+	/** First free slot of the operand stack, which translated code only
+	 *  uses to pass arguments to primitives and interpreted methods.
+	 */
+	protected int top = 0;
+
+	public static void main(String[] args) throws Exception {
+		String stoDir = null;
+		String jar = null;
+		for (int i = 0; i<args.length; i++) {
+			if ( args[i].equals("-sto") ) {
+				i++;
+				stoDir = args[i];
+			}
+			else {
+				jar = args[i];
+			}
+		}
+		if ( stoDir==null || jar==null ) {
+			System.err.println("$ java smalltalk.aot.AOTRuntime -sto dir file.jar");
+			System.exit(1);
+		}
+		AOTRuntime rt = new AOTRuntime();
+		rt.loadDirectory(stoDir);
+		rt.link();
+		rt.loadJar(jar);
+		rt.runMain();
+	}
+
+	// Installing translated code
+
+	/** Install the classes in a jar written by {@link AOTCompiler#writeJar} */
+	public void loadJar(String fileName) throws IOException {
+		Map<String,byte[]> classFiles = new HashMap<>();
+		try ( JarFile jar = new JarFile(fileName) ) {
+			Enumeration<JarEntry> entries = jar.entries();
+			while ( entries.hasMoreElements() ) {
+				JarEntry e = entries.nextElement();
+				if ( !e.getName().endsWith(".class") ) continue;
+				try ( InputStream in = jar.getInputStream(e) ) {
+					String name = e.getName().substring(0, e.getName().length()-".class".length());
+					classFiles.put(name, readAll(in));
+				}
+			}
+		}
+		install(classFiles);
+	}
+
+	/** Define translated classes, keyed by JVM internal name, and bind the
+	 *  methods of every loaded Smalltalk class that has one. Call after
+	 *  {@link #link()}.
+	 */
+	public void install(Map<String,byte[]> classFiles) {
+		ClassLoader loader = new ByteArrayClassLoader(classFiles, AOTRuntime.class.getClassLoader());
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		AOTRuntime saved = installing.get();
+		installing.set(this);
+		try {
+			for (STMetaClassObject c : classes.values()) {
+				String className = AOTCompiler.jvmClassName(c.name);
+				if ( !classFiles.containsKey(className) ) continue;
+				Class<?> k = Class.forName(className.replace('/', '.'), true, loader);
+				for (STCompiledBlock m : c.methods.values()) {
+					if ( m.primitive!=null || m.quickKind!=Bytecode.QUICK_NONE ) continue; // interpreter handles these
+					m.compiledCode = lookup.findStatic(k, AOTCompiler.jvmMethodName(m.name), METHOD_TYPE);
+					for (int i = 0; i<m.blocks.length; i++) {
+						m.blocks[i].compiledCode =
+							lookup.findStatic(k, AOTCompiler.jvmBlockName(m.name, i), METHOD_TYPE);
+					}
+				}
+			}
+		}
+		catch (ReflectiveOperationException e) {
+			throw new VMException("can't install translated code: "+e);
+		}
+		finally {
+			installing.set(saved);
+		}
+	}
+
+	/** Called from the class initializer of translated classes */
+	public static SendSite site(String className, String selector, int nargs, boolean isSuper) {
+		AOTRuntime rt = installing.get();
+		if ( rt==null ) {
+			throw new IllegalStateException("translated class "+className+" initialized outside of install()");
+		}
+		STMetaClassObject c = rt.classes.get(className);
+		if ( c==null ) {
+			throw new VMException("translated class "+className+" was not loaded");
+		}
+		return new SendSite(rt, selector, nargs, c.superClass, isSuper);
+	}
+
+	/** Called from the class initializer of translated classes */
+	public static Object constant(String className, int index) {
+		AOTRuntime rt = installing.get();
+		if ( rt==null ) {
+			throw new IllegalStateException("translated class "+className+" initialized outside of install()");
+		}
+		STMetaClassObject c = rt.classes.get(className);
+		if ( c==null ) {
+			throw new VMException("translated class "+className+" was not loaded");
+		}
+		return c.constants[index];
+	}
+
+	// Sends from translated code
+
+	public static Object send0(Object receiver, SendSite site) {
+		STCompiledBlock m = site.lookup(receiver);
+		AOTRuntime rt = site.runtime;
+		if ( m.compiledCode==null ) {
+			return rt.interpret(m, receiver, 0);
+		}
+		int savedFp = rt.fp;
+		Context ctx = rt.pushContext(m, receiver, null);
+		return rt.run(ctx, savedFp);
+	}
+
+	public static Object send1(Object receiver, Object a, SendSite site) {
+		STCompiledBlock m = site.lookup(receiver);
+		AOTRuntime rt = site.runtime;
+		if ( m.compiledCode==null ) {
+			rt.stack[rt.top] = a;
+			return rt.interpret(m, receiver, 1);
+		}
+		int savedFp = rt.fp;
+		Context ctx = rt.pushContext(m, receiver, null);
+		ctx.locals[0] = a;
+		return rt.run(ctx, savedFp);
+	}
+
+	public static Object send2(Object receiver, Object a, Object b, SendSite site) {
+		STCompiledBlock m = site.lookup(receiver);
+		AOTRuntime rt = site.runtime;
+		if ( m.compiledCode==null ) {
+			rt.stack[rt.top] = a;
+			rt.stack[rt.top+1] = b;
+			return rt.interpret(m, receiver, 2);
+		}
+		int savedFp = rt.fp;
+		Context ctx = rt.pushContext(m, receiver, null);
+		ctx.locals[0] = a;
+		ctx.locals[1] = b;
+		return rt.run(ctx, savedFp);
+	}
+
+	public static Object send3(Object receiver, Object a, Object b, Object c, SendSite site) {
+		return sendN(receiver, new Object[] {a, b, c}, site);
+	}
+
+	public static Object sendN(Object receiver, Object[] args, SendSite site) {
+		STCompiledBlock m = site.lookup(receiver);
+		AOTRuntime rt = site.runtime;
+		if ( m.compiledCode==null ) {
+			System.arraycopy(args, 0, rt.stack, rt.top, args.length);
+			return rt.interpret(m, receiver, args.length);
+		}
+		int savedFp = rt.fp;
+		Context ctx = rt.pushContext(m, receiver, null);
+		System.arraycopy(args, 0, ctx.locals, 0, args.length);
+		return rt.run(ctx, savedFp);
+	}
+
+	// Special-selector sends try the same numeric fast paths as the interpreter
+
+	public static Object add(Object a, Object b, SendSite site) { return special(Bytecode.ADD, a, b, site); }
+	public static Object sub(Object a, Object b, SendSite site) { return special(Bytecode.SUB, a, b, site); }
+	public static Object mul(Object a, Object b, SendSite site) { return special(Bytecode.MUL, a, b, site); }
+	public static Object div(Object a, Object b, SendSite site) { return special(Bytecode.DIV, a, b, site); }
+	public static Object lt(Object a, Object b, SendSite site) { return special(Bytecode.LT, a, b, site); }
+	public static Object gt(Object a, Object b, SendSite site) { return special(Bytecode.GT, a, b, site); }
+	public static Object le(Object a, Object b, SendSite site) { return special(Bytecode.LE, a, b, site); }
+	public static Object ge(Object a, Object b, SendSite site) { return special(Bytecode.GE, a, b, site); }
+	public static Object eq(Object a, Object b, SendSite site) { return special(Bytecode.EQ, a, b, site); }
+	public static Object ne(Object a, Object b, SendSite site) { return special(Bytecode.NE, a, b, site); }
+	public static Object same(Object a, Object b, SendSite site) { return special(Bytecode.SAME, a, b, site); }
+
+	protected static Object special(int opcode, Object a, Object b, SendSite site) {
+		Object result = numeric(opcode, a, b);
+		if ( result==NOT_NUMERIC ) {
+			return send1(a, b, site);
+		}
+		return result;
+	}
+
+	// Other operations used by translated code
+
+	public Object newArray(Object[] elements) {
+		return new STArray(arrayClass, elements);
+	}
+
+	public Object block(Context ctx, int index) {
+		ctx.captured = true;
+		return new BlockDescriptor(ctx.compiledBlock.method.blocks[index], ctx, ctx.receiver);
+	}
+
+	/** Execute ^value in a block by unwinding to the block's home method */
+	public Object nonLocalReturn(Object value, Context ctx) {
+		Context home = ctx.home();
+		if ( home.returned ) {
+			throw new VMException("BlockCannotReturn: "+home.compiledBlock.qualifiedName+" already returned");
+		}
+		throw new NonLocalReturn(home, value);
+	}
+
+	// Calls from the interpreter and primitives into translated code
+
+	@Override
+	protected Object invoke(STCompiledBlock m, Object receiver, int argStart, int sp) {
+		if ( m.compiledCode==null ) {
+			return super.invoke(m, receiver, argStart, sp);
+		}
+		int savedTop = top;
+		int savedFp = fp;
+		Context ctx = pushContext(m, receiver, null);
+		System.arraycopy(stack, argStart, ctx.locals, 0, m.nargs);
+		top = sp;
+		try {
+			return run(ctx, savedFp);
+		}
+		finally {
+			top = savedTop;
+		}
+	}
+
+	@Override
+	protected Object value(BlockDescriptor blk, int sp, int nargs, Object a, Object b) {
+		STCompiledBlock code = blk.block;
+		if ( code.compiledCode==null ) {
+			return super.value(blk, sp, nargs, a, b);
+		}
+		if ( code.nargs!=nargs ) {
+			throw new VMException(code.qualifiedName+" expects "+code.nargs+" args not "+nargs);
+		}
+		int savedTop = top;
+		int savedFp = fp;
+		Context ctx = pushContext(code, blk.receiver, blk.enclosingContext);
+		if ( nargs>0 ) ctx.locals[0] = a;
+		if ( nargs>1 ) ctx.locals[1] = b;
+		top = sp;
+		try {
+			return call(ctx);
+		}
+		finally {
+			fp = savedFp;
+			top = savedTop;
+		}
+	}
+
+	/** Run a method context's translated code, catching ^ from its blocks */
+	protected Object run(Context ctx, int savedFp) {
+		try {
+			return call(ctx);
+		}
+		catch (NonLocalReturn nlr) {
+			if ( nlr.home==ctx ) {
+				return nlr.value;
+			}
+			throw nlr;
+		}
+		finally {
+			ctx.returned = true;
+			fp = savedFp;
+		}
+	}
+
+	protected Object call(Context ctx) {
+		MethodHandle code = ctx.compiledBlock.compiledCode;
+		try {
+			return (Object)code.invokeExact(this, ctx);
+		}
+		catch (RuntimeException | Error e) {
+			throw e;
+		}
+		catch (Throwable t) {
+			throw new VMException(ctx.compiledBlock.qualifiedName+": "+t);
+		}
+	}
+
+	/** Invoke an interpreted method or primitive with nargs arguments
+	 *  already stored at the top of the operand stack.
+	 */
+	protected Object interpret(STCompiledBlock m, Object receiver, int nargs) {
+		int argStart = top;
+		top += nargs;
+		try {
+			return invoke(m, receiver, argStart, top);
+		}
+		finally {
+			top = argStart;
+		}
+	}
+
+	protected static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ( (n = in.read(buf))>0 ) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/** Defines translated classes from their class files */
+	protected static class ByteArrayClassLoader extends ClassLoader {
+		protected final Map<String,byte[]> classFiles;
+
+		public ByteArrayClassLoader(Map<String,byte[]> classFiles, ClassLoader parent) {
+			super(parent);
+			this.classFiles = classFiles;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classFiles.get(name.replace('.', '/'));
+			if ( bytes==null ) {
+				throw new ClassNotFoundException(name);
+			}
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
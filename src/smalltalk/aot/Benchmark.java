@@ -0,0 +1,86 @@
+package smalltalk.aot;
+
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Compare interpreting a program with running its AOT translation.
+ *
+ *  $ java smalltalk.aot.Benchmark [-n runs] image.st prog.st
+ *
+ *  Both runs use the same compiled code and the same primitives. Each
+ *  mode runs MainClass>>main n times (default 10) after one warm-up run
+ *  whose output is shown; the best and mean times are reported.
+ */
+public class Benchmark {
+	public static void main(String[] args) throws Exception {
+		int runs = 10;
+		List<String> stFiles = new ArrayList<>();
+		for (int i = 0; i<args.length; i++) {
+			if ( args[i].equals("-n") ) {
+				i++;
+				runs = Integer.parseInt(args[i]);
+			}
+			else {
+				stFiles.add(args[i]);
+			}
+		}
+		if ( stFiles.isEmpty() || runs<1 ) {
+			System.err.println("$ java smalltalk.aot.Benchmark [-n runs] image.st prog.st");
+			System.exit(1);
+		}
+
+		STSymbolTable symtab = new STSymbolTable();
+		for (String f : stFiles) {
+			STC.compile(new Compiler(symtab), f);
+		}
+		STC.link(symtab);
+
+		VM vm = new VM();
+		vm.load(symtab);
+		vm.link();
+		double interpreted = time("interpreted", vm, runs);
+
+		long start = System.nanoTime();
+		AOTRuntime rt = new AOTRuntime();
+		rt.load(symtab);
+		rt.link();
+		rt.install(new AOTCompiler().translate(symtab));
+		System.out.printf("translated and installed in %.3f ms%n", (System.nanoTime()-start)/1000000.0);
+		double aot = time("AOT", rt, runs);
+
+		System.out.printf("speedup %.2fx%n", interpreted/aot);
+	}
+
+	/** Return the best time in ms of n runs of main after one warm-up run */
+	public static double time(String mode, VM vm, int runs) throws InterruptedException {
+		vm.runMain();
+		PrintStream out = vm.out;
+		vm.out = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		});
+		double best = Double.MAX_VALUE;
+		double total = 0;
+		try {
+			for (int i = 0; i<runs; i++) {
+				long start = System.nanoTime();
+				vm.runMain();
+				double ms = (System.nanoTime()-start)/1000000.0;
+				best = Math.min(best, ms);
+				total += ms;
+			}
+		}
+		finally {
+			vm.out = out;
+		}
+		System.out.printf("%-12s best %10.3f ms  mean %10.3f ms  (%d runs)%n", mode, best, total/runs, runs);
+		return best;
+	}
+}
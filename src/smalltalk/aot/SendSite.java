@@ -0,0 +1,55 @@
+package smalltalk.aot;
+
+import smalltalk.vm.STCompiledBlock;
+import smalltalk.vm.STMetaClassObject;
+import smalltalk.vm.VMException;
+
+/** A send instruction in code translated by {@link AOTCompiler}. Each
+ *  generated class holds one of these per send in a static final field
+ *  so HotSpot sees a constant selector and a monomorphic inline cache.
+ */
+public final class SendSite {
+	public final AOTRuntime runtime;
+	public final String selector;
+	public final int selectorID;
+	public final int nargs;
+
+	/** Where lookup starts for super sends; null for normal sends */
+	public final STMetaClassObject superClass;
+	public final boolean isSuper;
+
+	protected STMetaClassObject cachedClass;
+	protected STCompiledBlock cachedMethod;
+
+	public SendSite(AOTRuntime runtime, String selector, int nargs, STMetaClassObject superClass, boolean isSuper) {
+		this.runtime = runtime;
+		this.selector = selector;
+		this.selectorID = runtime.selectorID(selector);
+		this.nargs = nargs;
+		this.superClass = superClass;
+		this.isSuper = isSuper;
+	}
+
+	/** Find the method to invoke for receiver, consulting the cache first */
+	public STCompiledBlock lookup(Object receiver) {
+		STMetaClassObject cl = isSuper ? superClass : runtime.classOf(receiver);
+		if ( cl==cachedClass && cl!=null ) {
+			return cachedMethod;
+		}
+		if ( cl==null ) {
+			throw new VMException("no class to look up "+selector);
+		}
+		STCompiledBlock m = runtime.resolveMethod(cl, selectorID);
+		if ( m==null ) {
+			throw new VMException(cl.name+" does not understand "+selector);
+		}
+		cachedClass = cl;
+		cachedMethod = m;
+		return m;
+	}
+
+	@Override
+	public String toString() {
+		return (isSuper ? "super " : "")+selector;
+	}
+}
@@ -1,11 +1,15 @@
 package smalltalk.compiler;
 
-import java.util.ArrayList;
+import smalltalk.compiler.misc.Utils;
+
 import java.util.List;
 
 public class Bytecode {
 	public static final int MAX_OPNDS = 3; // Or single opnd indicating variable number
 
+	/** Where disassembly puts the line:charPos of instructions with debugging info */
+	public static final int LINE_ANNOTATION_COLUMN = 40;
+
 	public static int combineLineCharPos(int line, int charPos) {
 		return line << 8 | charPos & 0xFF;
 	}
@@ -27,7 +31,7 @@ public class Bytecode {
 	}
 
 	public static class Instruction {
-		final String name; // E.g., "pop", "new"
+		public final String name; // E.g., "pop", "new"
 		final OperandType[] type = new OperandType[MAX_OPNDS];
 		int n = 0;
 		public Instruction(String name) {
@@ -68,6 +72,10 @@ public class Bytecode {
 	public static final short STORE_FIELD			= 18;
 	public static final short STORE_LOCAL 			= 19;
 	public static final short POP					= 20;
+	public static final short PUSH_GLOBAL_SLOT		= 21; // PUSH_GLOBAL after linking
+	public static final short DUP					= 22; // push the top of stack again, for cascades
+	public static final short PUSH_CONSTANT			= 23; // literal array from the class's constant pool
+	public static final short SEND_TAIL				= 24; // send whose result the block or method returns next
 
 	public static final short SEND					= 25;
 	public static final short SEND_SUPER			= 26;
@@ -76,6 +84,49 @@ public class Bytecode {
 	public static final short RETURN				= 29; // finish method
 
 	public static final short DBG					= 30;
+	public static final short SEND_DIRECT			= 31; // send to the only implementor, if receiver is kind of its class
+	public static final short SEND_SUPER_DIRECT		= 32; // super send bound by the compiler to the method in a class
+
+	// Special-selector sends. Each acts like "send 1, '<selector>'" but
+	// carries the selector in the opcode so a VM can operate directly on
+	// small integers and floats, doing a full send for any other operands.
+	public static final short ADD					= 40; // +
+	public static final short SUB					= 41; // -
+	public static final short MUL					= 42; // *
+	public static final short DIV					= 43; // /
+	public static final short LT					= 44; // <
+	public static final short GT					= 45; // >
+	public static final short LE					= 46; // <=
+	public static final short GE					= 47; // >=
+	public static final short EQ					= 48; // =
+	public static final short NE					= 49; // ~=
+	public static final short SAME					= 50; // ==
+
+	/** The selector sent by each special-selector opcode, indexed by opcode-ADD */
+	public static final String[] specialSelectors = {
+		"+", "-", "*", "/", "<", ">", "<=", ">=", "=", "~=", "=="
+	};
+
+	// QUICK METHOD KINDS. A method whose body only returns self, a field,
+	// a constant or the result of setting a field from its argument is
+	// tagged with one of these and an operand so a VM can answer a send
+	// to it without creating a context.
+	public static final short QUICK_NONE			= 0;
+	public static final short QUICK_SELF			= 1; // ^self
+	public static final short QUICK_FIELD			= 2; // ^field; operand is field index
+	public static final short QUICK_SET_FIELD		= 3; // field := arg, ^self; operand is field index
+	public static final short QUICK_LITERAL			= 4; // ^'string'; operand is literal index
+	public static final short QUICK_NIL				= 5; // ^nil
+	public static final short QUICK_TRUE			= 6; // ^true
+	public static final short QUICK_FALSE			= 7; // ^false
+	public static final short QUICK_INT				= 8; // ^123; operand is the value
+	public static final short QUICK_CHAR			= 9; // ^$c; operand is the char
+	public static final short QUICK_FLOAT			= 10; // ^1.5; operand is the float's bits
+
+	/** Names of quick method kinds for disassembly and statistics, indexed by kind */
+	public static final String[] quickKinds = {
+		"none", "self", "field", "set_field", "literal", "nil", "true", "false", "int", "char", "float"
+	};
 
 	/** Used for disassembly; describes instruction set */
 	public static final Instruction[] instructions = new Instruction[] {
@@ -98,8 +149,10 @@ public class Bytecode {
 		new Instruction("store_field", OperandType.SHORT),
 		new Instruction("store_local", OperandType.SHORT, OperandType.SHORT),
 		new Instruction("pop"),
-
-		null, null, null, null, 		// leave room for gap in ints
+		new Instruction("push_gslot", OperandType.SHORT), // index into program's global table
+		new Instruction("dup"),
+		new Instruction("push_const", OperandType.SHORT), // index into class's constant pool
+		new Instruction("send_tail", OperandType.SHORT, OperandType.LITERAL),
 
 		new Instruction("send", OperandType.SHORT, OperandType.LITERAL),
 		new Instruction("send_super", OperandType.SHORT, OperandType.LITERAL),
@@ -108,79 +161,283 @@ public class Bytecode {
 		new Instruction("return"),
 
 		new Instruction("dbg", OperandType.LITERAL, OperandType.DBG_LOCATION), // filename, line:charpos in file
+		new Instruction("send_direct", OperandType.SHORT, OperandType.LITERAL, OperandType.LITERAL), // nargs, selector, class
+		new Instruction("send_super_direct", OperandType.SHORT, OperandType.LITERAL, OperandType.LITERAL), // nargs, selector, class
+
+		null, null, null, null, null, null, null, // leave room for gap in ints
+
+		new Instruction("add"),
+		new Instruction("sub"),
+		new Instruction("mul"),
+		new Instruction("div"),
+		new Instruction("lt"),
+		new Instruction("gt"),
+		new Instruction("le"),
+		new Instruction("ge"),
+		new Instruction("eq"),
+		new Instruction("ne"),
+		new Instruction("same"),
 	};
 
+	/** Return the special-selector opcode for a binary selector or 0 if
+	 *  the selector must be sent normally.
+	 */
+	public static short specialSelectorOpcode(String selector) {
+		for (int i=0; i<specialSelectors.length; i++) {
+			if ( specialSelectors[i].equals(selector) ) {
+				return (short)(ADD+i);
+			}
+		}
+		return 0;
+	}
+
+	public static boolean isSpecialSend(int opcode) {
+		return opcode>=ADD && opcode<=SAME;
+	}
+
+	/** Return the selector sent by a special-selector opcode. */
+	public static String specialSelector(int opcode) {
+		return specialSelectors[opcode-ADD];
+	}
+
+	/** True if opcode sends a message and so needs an inline-cache slot */
+	public static boolean isSend(int opcode) {
+		return opcode==SEND || opcode==SEND_SUPER || opcode==SEND_DIRECT || opcode==SEND_SUPER_DIRECT || opcode==SEND_TAIL ||
+			   isSpecialSend(opcode);
+	}
+
+	/** Return the quick method kind of a method with nargs arguments and
+	 *  this code, or QUICK_NONE. Only the code up to the first return
+	 *  matters since the rest never runs. Put the operand in operand[0].
+	 */
+	public static short quickKind(byte[] code, int nargs, int[] operand) {
+		if ( code==null || code.length<2 ) {
+			return QUICK_NONE;
+		}
+		int opcode = code[0];
+		int next = instructionSize(opcode);
+		if ( next<code.length && code[next]==RETURN ) {
+			switch ( opcode ) {
+				case SELF : return QUICK_SELF;
+				case NIL : return QUICK_NIL;
+				case TRUE : return QUICK_TRUE;
+				case FALSE : return QUICK_FALSE;
+				case PUSH_FIELD : operand[0] = getShort(code, 1); return QUICK_FIELD;
+				case PUSH_LITERAL : operand[0] = getShort(code, 1); return QUICK_LITERAL;
+				case PUSH_INT : operand[0] = getInt(code, 1); return QUICK_INT;
+				case PUSH_CHAR : operand[0] = getShort(code, 1); return QUICK_CHAR;
+				case PUSH_FLOAT : operand[0] = getInt(code, 1); return QUICK_FLOAT;
+			}
+			return QUICK_NONE;
+		}
+		// push_local 0, 0; store_field i; pop; self; return
+		if ( nargs==1 && code.length>=11 &&
+			 opcode==PUSH_LOCAL && getShort(code, 1)==0 && getShort(code, 3)==0 &&
+			 code[5]==STORE_FIELD && code[8]==POP && code[9]==SELF && code[10]==RETURN )
+		{
+			operand[0] = getShort(code, 6);
+			return QUICK_SET_FIELD;
+		}
+		return QUICK_NONE;
+	}
+
+	/** Return a copy of code whose operands indexing the class's literals
+	 *  are replaced: operand i becomes literalMap[i].
+	 */
+	public static byte[] remapLiterals(byte[] code, int[] literalMap) {
+		if ( code==null ) return null;
+		code = code.clone();
+		int ip = 0;
+		while ( ip<code.length ) {
+			Instruction I = instructions[code[ip]];
+			int operand = ip+1;
+			for (int i = 0; i<I.n; i++) {
+				if ( I.type[i]==OperandType.LITERAL ) {
+					putShort(code, operand, literalMap[getShort(code, operand)]);
+				}
+				operand += I.type[i].sizeInBytes;
+			}
+			ip = operand;
+		}
+		return code;
+	}
+
+	/** True if code has an instruction with this opcode */
+	public static boolean uses(byte[] code, int opcode) {
+		int ip = 0;
+		while ( code!=null && ip<code.length ) {
+			if ( code[ip]==opcode ) return true;
+			ip += instructionSize(code[ip]);
+		}
+		return false;
+	}
+
+	/** Add the indexes of the class literals that code refers to and
+	 *  used doesn't already have to the end of used, in order of first
+	 *  reference.
+	 */
+	public static void addLiteralsUsed(byte[] code, List<Integer> used) {
+		int ip = 0;
+		while ( code!=null && ip<code.length ) {
+			Instruction I = instructions[code[ip]];
+			int operand = ip+1;
+			for (int i = 0; i<I.n; i++) {
+				if ( I.type[i]==OperandType.LITERAL && !used.contains(getShort(code, operand)) ) {
+					used.add(getShort(code, operand));
+				}
+				operand += I.type[i].sizeInBytes;
+			}
+			ip = operand;
+		}
+	}
+
+	/** Return the operands of the instruction at ip, each widened to an
+	 *  int; shorts and chars are unsigned.
+	 */
+	public static int[] getOperands(byte[] code, int ip) {
+		Instruction I = instructions[code[ip]];
+		int[] operands = new int[I.n];
+		int operand = ip+1;
+		for (int i = 0; i<I.n; i++) {
+			switch ( I.type[i].sizeInBytes ) {
+				case 1 : operands[i] = code[operand]; break;
+				case 2 : operands[i] = getShort(code, operand); break;
+				case 4 : operands[i] = getInt(code, operand); break;
+			}
+			operand += I.type[i].sizeInBytes;
+		}
+		return operands;
+	}
+
+	/** Return the code for an instruction with operands as returned by
+	 *  {@link #getOperands}.
+	 */
+	public static Code encode(int opcode, int[] operands) {
+		Instruction I = instructions[opcode];
+		Code code = Code.of((short) opcode);
+		for (int i = 0; i<I.n; i++) {
+			switch ( I.type[i].sizeInBytes ) {
+				case 1 : code.add((short) operands[i]); break;
+				case 2 : code.join(Utils.shortToBytes(operands[i])); break;
+				case 4 : code.join(Utils.intToBytes(operands[i])); break;
+			}
+		}
+		return code;
+	}
+
+	/** Return the number of bytes occupied by an instruction with this
+	 *  opcode, counting the opcode itself and all of its operands.
+	 */
+	public static int instructionSize(int opcode) {
+		Instruction I = instructions[opcode];
+		int size = 1;
+		for (int i=0; i<I.n; i++) {
+			size += I.type[i].sizeInBytes;
+		}
+		return size;
+	}
+
 	public static String disassemble(String blkName, byte[] bytecode, String[] literals, int start) {
+		return disassemble(blkName, bytecode, literals, null, start);
+	}
+
+	/** Disassemble, annotating each instruction that starts a line table
+	 *  entry with its line:charPos.
+	 */
+	public static String disassemble(String blkName, byte[] bytecode, String[] literals, LineTable lines, int start) {
 		StringBuilder buf = new StringBuilder();
 		int i=start;
 		while (bytecode!=null && i<bytecode.length) {
-			i = disassembleInstruction(buf, blkName, bytecode, literals, i);
+			i = disassembleLine(buf, blkName, bytecode, literals, lines, i);
 			buf.append('\n');
 		}
 		return buf.toString();
 	}
 
+	/** Append the instruction at ip and its line table annotation, if any,
+	 *  without a trailing newline; return the address of the next
+	 *  instruction.
+	 */
+	public static int disassembleLine(StringBuilder buf, String blkName, byte[] bytecode, String[] literals, LineTable lines, int ip) {
+		int lineStart = buf.length();
+		int location = lines!=null ? lines.getLocationAt(ip) : -1;
+		ip = disassembleInstruction(buf, blkName, bytecode, literals, ip);
+		if ( location>=0 ) {
+			do {
+				buf.append(' ');
+			} while ( buf.length()-lineStart<LINE_ANNOTATION_COLUMN );
+			buf.append("; ").append(lineFromCombined(location)).append(':').append(charPosFromCombined(location));
+		}
+		return ip;
+	}
+
 	public static String disassembleInstruction(String blkName, byte[] bytecode, String[] literals, int ip) {
 		StringBuilder buf = new StringBuilder();
 		disassembleInstruction(buf, blkName, bytecode, literals, ip);
 		return buf.toString();
 	}
 
+	/** Append the instruction at ip to buf and return the address of the
+	 *  next instruction. Formatting is done by hand rather than with
+	 *  String.format since whole images go through here.
+	 */
 	public static int disassembleInstruction(StringBuilder buf, String blkName, byte[] bytecode, String[] literals, int ip) {
-		int opcode = bytecode[ip];
 		if ( ip>=bytecode.length ) {
 			throw new IllegalArgumentException("ip out of range: "+ip);
 		}
+		int opcode = bytecode[ip];
 		Bytecode.Instruction I =
 			Bytecode.instructions[opcode];
 		if ( I==null ) {
 			throw new IllegalArgumentException("no such instruction "+opcode+
 				" at address "+ip+" of "+ blkName+"\n");
 		}
-		String instrName = I.name;
-		if ( instrName.equals("dbg") ) {
-			buf.append(String.format("%04d:  %s ", ip, instrName));
+		appendAddress(buf, ip);
+		buf.append(":  ").append(I.name);
+		if ( opcode==DBG ) {
+			buf.append(' ');
 		}
 		else {
-			buf.append(String.format("%04d:  %-15s", ip, instrName));
+			int width = Math.max(I.name.length()+1, 15); // names like send_super_direct are wider
+			for (int i = I.name.length(); i<width; i++) {
+				buf.append(' ');
+			}
 		}
 		ip++;
 		if ( I.n==0 ) {
 			buf.append("  ");
 			return ip;
 		}
-		List<String> operands = new ArrayList<>();
+		boolean first = true;
 		for (int i=0; i<I.n; i++) {
+			if ( I.type[i]!=OperandType.NONE ) {
+				if ( !first ) buf.append(", ");
+				first = false;
+			}
 			switch ( I.type[i] ) {
 				case NONE:
 					break;
 				case BYTE:
-					operands.add(String.valueOf(bytecode[ip]));
+					buf.append(bytecode[ip]);
 					break;
 				case CHAR :
-					operands.add(String.valueOf(getShort(bytecode, ip)));
-					break;
 				case SHORT :
-					operands.add(String.valueOf(getShort(bytecode, ip)));
+					buf.append(getShort(bytecode, ip));
 					break;
 				case LITERAL:
 					int lit = getShort(bytecode, ip);
-//					operands.add(String.format("'%s'(@%d)", literals[lit], lit));
-					operands.add(String.format("'%s'", literals[lit]));
+					buf.append('\'').append(literals[lit]).append('\'');
 					break;
 				case ADDR :
 				case INT :
-					operands.add(String.valueOf(getInt(bytecode, ip)));
+					buf.append(getInt(bytecode, ip));
 					break;
 				case FLOAT :
-					float f = Float.intBitsToFloat(getInt(bytecode, ip));
-					operands.add(String.valueOf(f));
+					buf.append(Float.intBitsToFloat(getInt(bytecode, ip)));
 					break;
 				case DBG_LOCATION :
 					int lineAndPos = getInt(bytecode, ip);
-					int charPos = charPosFromCombined(lineAndPos);
-					int line = lineFromCombined(lineAndPos);
-					operands.add(line+":"+charPos);
+					buf.append(lineFromCombined(lineAndPos)).append(':').append(charPosFromCombined(lineAndPos));
 					break;
 				default :
 					System.err.println("invalid opnd type: "+I.type[i]);
@@ -188,14 +445,17 @@ public class Bytecode {
 			}
 			ip += I.type[i].sizeInBytes;
 		}
-		for (int i = 0; i < operands.size(); i++) {
-			String s = operands.get(i);
-			if ( i>0 ) buf.append(", ");
-			buf.append( s );
-		}
 		return ip;
 	}
 
+	/** Append ip as %04d would */
+	protected static void appendAddress(StringBuilder buf, int ip) {
+		if ( ip<1000 ) buf.append('0');
+		if ( ip<100 ) buf.append('0');
+		if ( ip<10 ) buf.append('0');
+		buf.append(ip);
+	}
+
 	public static int getInt(byte[] memory, int index) {
 		int b1 = memory[index++]&0xFF; // high byte
 		int b2 = memory[index++]&0xFF;
@@ -204,6 +464,11 @@ public class Bytecode {
 		return b1<<(8*3) | b2<<(8*2) | b3<<(8*1) | b4;
 	}
 
+	public static void putShort(byte[] memory, int index, int value) {
+		memory[index++] = (byte)((value >> 8) & 0xFF); // high byte
+		memory[index] = (byte)(value & 0xFF);
+	}
+
 	public static int getShort(byte[] memory, int index) {
 		int b1 = memory[index++]&0xFF; // mask off sign-extended bits
 		int b2 = memory[index]&0xFF;
@@ -2,15 +2,32 @@ package smalltalk.compiler;
 
 import smalltalk.compiler.misc.ByteList;
 
+import java.util.Arrays;
+
 public class Code extends ByteList { // just an alias
 	public static final Code None = new Code();
 
+	/** Source locations recorded with {@link #mark(int)}: the offset of an
+	 *  instruction in this code followed by its location, for each mark.
+	 */
+	protected int[] marks = null;
+	protected int nmarks = 0;
+
 	public static Code of(short... args) {
 		Code bytes = new Code();
 		for (short b : args) bytes.add(b);
 		return bytes;
 	}
 
+	/** Return empty code that records a source location for whatever
+	 *  instruction is joined after it.
+	 */
+	public static Code mark(int location) {
+		Code code = new Code();
+		code.addMark(0, location);
+		return code;
+	}
+
 	public static Code join(Code... chunks) {
 		Code bytes = new Code();
 		for (Code c : chunks) {
@@ -27,9 +44,47 @@ public class Code extends ByteList { // just an alias
 		if ( bytes == None ) {
 			return this;
 		}
+		for (int i=0; i<bytes.nmarks; i++) {
+			addMark(n+bytes.marks[2*i], bytes.marks[2*i+1]);
+		}
 		for (int i=0; i<bytes.n; i++) {
 			add(bytes.elements[i]);
 		}
 		return this;
 	}
+
+	protected void addMark(int offset, int location) {
+		if ( marks==null ) {
+			marks = new int[4];
+		}
+		else if ( 2*nmarks==marks.length ) {
+			marks = Arrays.copyOf(marks, marks.length*2);
+		}
+		marks[2*nmarks] = offset;
+		marks[2*nmarks+1] = location;
+		nmarks++;
+	}
+
+	/** Return the marks as a line table or null if there are none. When
+	 *  several marks apply to one instruction, the last one wins.
+	 */
+	public LineTable getLineTable() {
+		if ( nmarks==0 ) {
+			return null;
+		}
+		int[] addresses = new int[nmarks];
+		int[] locations = new int[nmarks];
+		int k = 0;
+		for (int i=0; i<nmarks; i++) {
+			int offset = marks[2*i];
+			if ( offset>=n ) break; // no instruction follows
+			if ( k>0 && addresses[k-1]==offset ) {
+				k--;
+			}
+			addresses[k] = offset;
+			locations[k] = marks[2*i+1];
+			k++;
+		}
+		return new LineTable(Arrays.copyOf(addresses, k), Arrays.copyOf(locations, k));
+	}
 }
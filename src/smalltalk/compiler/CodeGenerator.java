@@ -6,6 +6,7 @@ import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.stringtemplate.v4.ST;
 import smalltalk.compiler.symbols.*;
+import java.util.ArrayList;
 import java.util.List;
 
 /** Fill STBlock, STMethod objects in Symbol table with bytecode,
@@ -20,6 +21,11 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	/** With which compiler are we generating code? */
 	public final Compiler compiler;
 
+	/** Leave each method for {@link Compiler#defer} rather than generating
+	 *  its code as we walk the tree; see {@link Compiler#lazy}.
+	 */
+	public boolean deferMethods;
+
 	public CodeGenerator(Compiler compiler) {
 		this.compiler = compiler;
 	}
@@ -47,11 +53,19 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
 	@Override
 	public Code visitFile(SmalltalkParser.FileContext ctx) {
-		currentScope = compiler.symtab.GLOBALS;
+		startFile();
 		visitChildren(ctx);
 		return Code.None;
 	}
 
+	/** Get ready to visit the classes and main program of a file */
+	public void startFile() {
+		currentScope = compiler.symtab.GLOBALS;
+		for (STClass c : compiler.symtab.getOwnClasses()) {
+			setSuperClassFields(c);
+		}
+	}
+
 	@Override
 	public Code visitClassDef(SmalltalkParser.ClassDefContext ctx) {
 		currentClassScope = ctx.scope;
@@ -69,7 +83,10 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
 	@Override
 	public Code visitMain(SmalltalkParser.MainContext ctx) {
-		int blockindex =0;
+		if ( deferMethods && ctx.scope!=null ) {
+			compiler.defer(ctx.scope, ctx.classScope, ctx);
+			return Code.None;
+		}
 		pushScope(ctx.scope);
 		currentClassScope = ctx.classScope;
 		Code code = Code.None;
@@ -81,16 +98,23 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 			block.blocks = new STCompiledBlock[stMethod.getAllNestedScopedSymbols().size()];
 			code = aggregateResult(code, visitChildren(ctx));
 			for (Scope symbol : stMethod.getAllNestedScopedSymbols()) {
-				STCompiledBlock stCompiledBlock = new STCompiledBlock(currentClassScope, (STBlock) symbol);
-				stCompiledBlock.bytecode = ((STBlock) symbol).compiledBlock.bytecode;
-				block.blocks[blockindex] = stCompiledBlock;
-				blockindex++;
+				block.blocks[((STBlock) symbol).index] = ((STBlock) symbol).compiledBlock;
+			}
+			code = aggregateResult(code, compiler.dbg(ctx.getStop()));
+			if ( ctx.getParent() instanceof SmalltalkParser.DoitContext ) {
+				// a doit answers the value of its last statement
+				if ( ctx.body() instanceof SmalltalkParser.EmptyBodyContext ) {
+					code = aggregateResult(code, Compiler.push_nil());
+				}
+			}
+			else {
+				code = aggregateResult(code,Compiler.pop());
+				code = aggregateResult(code, Compiler.push_self());
 			}
-			code = aggregateResult(code,Compiler.pop());
-			code = aggregateResult(code, Compiler.push_self());
 			code = aggregateResult(code, Compiler.method_return());
 			ctx.scope.compiledBlock = block;
 			ctx.scope.compiledBlock.bytecode = code.bytes();
+			ctx.scope.compiledBlock.lines = code.getLineTable();
 			popScope();
 		}
 		return code;
@@ -124,20 +148,18 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	private STCompiledBlock getCompiledBlock(SmalltalkParser.MethodBlockContext ctx)
 	{
 		Code code = Code.None;
-		int blockindex = 0;
 		STMethod stMethod = (STMethod) currentScope;
 		STCompiledBlock block = new STCompiledBlock(currentClassScope, (STBlock) currentScope);
 		block.blocks = new STCompiledBlock[stMethod.getAllNestedScopedSymbols().size()];
 		code = aggregateResult(code,visit(ctx));
 		for (Scope symbol : stMethod.getAllNestedScopedSymbols())
 		{
-			STCompiledBlock stCompiledBlock = new STCompiledBlock(currentClassScope, (STBlock) symbol);
-			stCompiledBlock.bytecode = ((STBlock) symbol).compiledBlock.bytecode;
-			block.blocks[blockindex] = stCompiledBlock;
-			blockindex++;
+			// BLOCK operands are block numbers so index by number, not nesting order
+			block.blocks[((STBlock) symbol).index] = ((STBlock) symbol).compiledBlock;
 		}
 		if(ctx instanceof SmalltalkParser.SmalltalkMethodBlockContext)
 		{
+			code = aggregateResult(code, compiler.dbg(ctx.getStop()));
 			if(ctx.getChild(1) instanceof SmalltalkParser.EmptyBodyContext)
 			{
 				code = aggregateResult(code, Compiler.push_self());
@@ -151,43 +173,47 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 			}
 		}
 		block.bytecode = code.bytes();
+		block.lines = code.getLineTable();
+		if ( compiler.genQuickMethods ) {
+			block.assignQuickKind();
+		}
 		return block;
 	}
 
-	@Override
-	public Code visitNamedMethod(SmalltalkParser.NamedMethodContext ctx) {
-		pushScope(ctx.scope);
-		STCompiledBlock block = getCompiledBlock(ctx.methodBlock());
-		ctx.scope.compiledBlock = block;
-		ctx.scope.compiledBlock.bytecode = block.bytecode;
+	/** Generate the code for a method now or, if deferring, record its
+	 *  tree so the code is generated on first use.
+	 */
+	private Code method(ParserRuleContext ctx, STMethod scope, SmalltalkParser.MethodBlockContext body) {
+		if ( deferMethods ) {
+			compiler.defer(scope, currentClassScope, ctx);
+			return Code.None;
+		}
+		pushScope(scope);
+		scope.compiledBlock = getCompiledBlock(body);
 		popScope();
 		return Code.None;
 	}
 
+	@Override
+	public Code visitNamedMethod(SmalltalkParser.NamedMethodContext ctx) {
+		return method(ctx, ctx.scope, ctx.methodBlock());
+	}
+
 	@Override
 	public Code visitOperatorMethod(SmalltalkParser.OperatorMethodContext ctx) {
-		pushScope(ctx.scope);
-		STCompiledBlock block = getCompiledBlock(ctx.methodBlock());
-		ctx.scope.compiledBlock = block;
-		ctx.scope.compiledBlock.bytecode = block.bytecode;
-		popScope();
-		return Code.None;
+		return method(ctx, ctx.scope, ctx.methodBlock());
 	}
 
 	@Override
 	public Code visitKeywordMethod(SmalltalkParser.KeywordMethodContext ctx) {
-		pushScope(ctx.scope);
-		STCompiledBlock block = getCompiledBlock(ctx.methodBlock());
-		ctx.scope.compiledBlock = block;
-		ctx.scope.compiledBlock.bytecode = block.bytecode;
-		popScope();
-		return Code.None;
+		return method(ctx, ctx.scope, ctx.methodBlock());
 	}
 
 	@Override
 	public Code visitUnaryMsgSend(SmalltalkParser.UnaryMsgSendContext ctx) {
 		Code code = Code.None;
 		code = aggregateResult(code,visit(ctx.unaryExpression()));
+		code = aggregateResult(code,compiler.dbg(ctx.ID().getSymbol()));
 		code = aggregateResult(code,Compiler.send(0,getLiteralIndex(ctx.ID().getText())));
 		return code;
 	}
@@ -196,16 +222,50 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	public Code visitUnarySuperMsgSend(SmalltalkParser.UnarySuperMsgSendContext ctx) {
 		Code code = Code.None;
 		code = aggregateResult(code,Compiler.push_self());
-		code = aggregateResult(code,Compiler.send_super(0,getLiteralIndex(ctx.ID().getText())));
+		code = aggregateResult(code,compiler.dbg(ctx.ID().getSymbol()));
+		code = aggregateResult(code,sendSuper(0,ctx.ID().getText()));
 		return code;
 	}
 
+	@Override
+	public Code visitSuperKeywordSend(SmalltalkParser.SuperKeywordSendContext ctx) {
+		Code code = Compiler.push_self();
+		for(SmalltalkParser.BinaryExpressionContext arg : ctx.args)
+		{
+			code = aggregateResult(code,visit(arg));
+		}
+		StringBuilder selector = new StringBuilder();
+		for (TerminalNode keyword : ctx.KEYWORD()) {
+			selector.append(keyword.getText());
+		}
+		code = aggregateResult(code,compiler.dbg(ctx.KEYWORD(0).getSymbol()));
+		code = aggregateResult(code,sendSuper(ctx.args.size(),selector.toString()));
+		return code;
+	}
+
+	/** Send to super. The target depends only on the class being compiled
+	 *  so if the superclass already resolves the selector, bind the send
+	 *  to the class defining that method; otherwise look it up at run time.
+	 */
+	private Code sendSuper(int nargs, String selector) {
+		ClassSymbol superClass = currentClassScope.getSuperClassScope();
+		if ( superClass instanceof STClass ) {
+			STMethod m = ((STClass) superClass).resolveMethod(selector);
+			if ( m!=null ) {
+				int index = getLiteralIndex(selector);
+				return Compiler.send_super_direct(nargs, index, getLiteralIndex(m.getEnclosingScope().getName()));
+			}
+		}
+		return Compiler.send_super(nargs,getLiteralIndex(selector));
+	}
+
 	@Override
 	public Code visitAssign(SmalltalkParser.AssignContext ctx)
 	{
 		Code right = visit(ctx.messageExpression());
 		Code left = visit(ctx.lvalue());
-		Code code = aggregateResult(right,left);
+		Code code = aggregateResult(right,compiler.dbg(((TerminalNode)ctx.getChild(1)).getSymbol())); // :=
+		code = aggregateResult(code,left);
 		return code;
 	}
 
@@ -228,6 +288,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 	public Code visitReturn(SmalltalkParser.ReturnContext ctx)
 	{
 		Code code  = visit(ctx.messageExpression());
+		code = aggregateResult(code,compiler.dbg(ctx.getStart())); // ^
 		code = aggregateResult(code,Compiler.method_return());
 		return code;
 	}
@@ -244,6 +305,111 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		return code;
 	}
 
+	/** Compile a cascade like "r m1; m2; m3" as r then, for each message
+	 *  but the last, dup, the message and pop, so r is evaluated once. The
+	 *  cascade's value is that of the last message.
+	 */
+	@Override
+	public Code visitMessageExpression(SmalltalkParser.MessageExpressionContext ctx) {
+		if ( ctx.cascadeMessage().isEmpty() ) {
+			return visit(ctx.keywordExpression());
+		}
+		Code[] first = splitFirstMessage(ctx.keywordExpression());
+		if ( first==null ) { // ResolveSymbols reported it
+			return visit(ctx.keywordExpression());
+		}
+		Code code = first[0];
+		int n = ctx.cascadeMessage().size()+1;
+		for (int i = 0; i<n; i++) {
+			Code message = i==0 ? first[1] : visit(ctx.cascadeMessage(i-1));
+			if ( i<n-1 ) {
+				code = aggregateResult(code, Compiler.dup());
+				code = aggregateResult(code, message);
+				code = aggregateResult(code, Compiler.pop());
+			}
+			else {
+				code = aggregateResult(code, message);
+			}
+		}
+		return code;
+	}
+
+	/** True if expr ends by sending a message to a receiver other than
+	 *  super, so further messages can be cascaded to that receiver.
+	 */
+	public static boolean canCascade(SmalltalkParser.KeywordExpressionContext expr) {
+		if ( expr instanceof SmalltalkParser.KeywordSendContext ) {
+			return true;
+		}
+		if ( !(expr instanceof SmalltalkParser.PassThroughContext) ) {
+			return false;
+		}
+		SmalltalkParser.BinaryExpressionContext binary = ((SmalltalkParser.PassThroughContext) expr).recv;
+		return binary.unaryExpression().size()>1 ||
+			   binary.unaryExpression(0) instanceof SmalltalkParser.UnaryMsgSendContext;
+	}
+
+	/** Return the code for the receiver of the last message in expr and
+	 *  the code for that message, or null unless {@link #canCascade}.
+	 */
+	private Code[] splitFirstMessage(SmalltalkParser.KeywordExpressionContext expr) {
+		if ( expr instanceof SmalltalkParser.KeywordSendContext ) {
+			SmalltalkParser.KeywordSendContext send = (SmalltalkParser.KeywordSendContext) expr;
+			Code message = Code.None;
+			for (SmalltalkParser.BinaryExpressionContext arg : send.args) {
+				message = aggregateResult(message, visit(arg));
+			}
+			message = sendKeywordMsg(send, message, send.args, send.KEYWORD());
+			return new Code[] {visit(send.recv), message};
+		}
+		if ( !(expr instanceof SmalltalkParser.PassThroughContext) ) {
+			return null;
+		}
+		SmalltalkParser.BinaryExpressionContext binary = ((SmalltalkParser.PassThroughContext) expr).recv;
+		int n = binary.unaryExpression().size();
+		if ( n>1 ) {
+			Code recv = visit(binary.unaryExpression(0));
+			for (int i = 1; i<n-1; i++) {
+				recv = aggregateResult(recv, visit(binary.unaryExpression(i)));
+				recv = aggregateResult(recv, compiler.dbg(binary.bop(i-1).getStart()));
+				recv = aggregateResult(recv, visit(binary.bop(i-1)));
+			}
+			Code message = visit(binary.unaryExpression(n-1));
+			message = aggregateResult(message, compiler.dbg(binary.bop(n-2).getStart()));
+			message = aggregateResult(message, visit(binary.bop(n-2)));
+			return new Code[] {recv, message};
+		}
+		if ( binary.unaryExpression(0) instanceof SmalltalkParser.UnaryMsgSendContext ) {
+			SmalltalkParser.UnaryMsgSendContext send = (SmalltalkParser.UnaryMsgSendContext) binary.unaryExpression(0);
+			Code message = aggregateResult(compiler.dbg(send.ID().getSymbol()),
+										   Compiler.send(0, getLiteralIndex(send.ID().getText())));
+			return new Code[] {visit(send.unaryExpression()), message};
+		}
+		return null;
+	}
+
+	@Override
+	public Code visitCascadeUnary(SmalltalkParser.CascadeUnaryContext ctx) {
+		Code code = compiler.dbg(ctx.ID().getSymbol());
+		return aggregateResult(code, Compiler.send(0, getLiteralIndex(ctx.ID().getText())));
+	}
+
+	@Override
+	public Code visitCascadeBinary(SmalltalkParser.CascadeBinaryContext ctx) {
+		Code code = visit(ctx.unaryExpression());
+		code = aggregateResult(code, compiler.dbg(ctx.bop().getStart()));
+		return aggregateResult(code, visit(ctx.bop()));
+	}
+
+	@Override
+	public Code visitCascadeKeyword(SmalltalkParser.CascadeKeywordContext ctx) {
+		Code code = Code.None;
+		for (SmalltalkParser.BinaryExpressionContext arg : ctx.args) {
+			code = aggregateResult(code, visit(arg));
+		}
+		return sendKeywordMsg(ctx, code, ctx.args, ctx.KEYWORD());
+	}
+
 	@Override
 	public Code visitBinaryExpression(SmalltalkParser.BinaryExpressionContext ctx) {
 
@@ -252,6 +418,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		for(int i=1;i<ctx.unaryExpression().size();i++)
 		{
 			code = aggregateResult(code,visit(ctx.unaryExpression(i)));
+			code = aggregateResult(code,compiler.dbg(ctx.bop(i-1).getStart()));
 			code = aggregateResult(code,visit(ctx.bop(i-1)));
 		}
 		return code;
@@ -259,19 +426,29 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
 	@Override
 	public Code visitBop(SmalltalkParser.BopContext ctx) {
+		if ( compiler.genSpecialSends ) {
+			short opcode = Bytecode.specialSelectorOpcode(ctx.getText());
+			if ( opcode!=0 ) {
+				return Code.of(opcode);
+			}
+		}
 		int index = getLiteralIndex(ctx.getText());
 		Code send = Compiler.send(1,index);
 		return send;
 	}
 
-	private void setSuperClassFields()
+	/** Number the fields of a class after all inherited fields so that
+	 *  push_field/store_field operands index the object's full field list.
+	 */
+	private void setSuperClassFields(STClass stClass)
 	{
-		STClass stClass = currentClassScope;
-		int superclassfields  = stClass.getSuperClassScope().getDefinedFields().size();
+		ClassSymbol superClass = stClass.getSuperClassScope();
+		int superclassfields = superClass!=null ? superClass.getNumberOfFields() : 0;
 		int i=0;
 		for(FieldSymbol field : stClass.getDefinedFields())
 		{
 			field.setInsertionOrderNumber(superclassfields+i);
+			i++;
 		}
 	}
 
@@ -282,10 +459,6 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
 		if(ctx.sym instanceof STField)
 		{
-			if(currentClassScope.getSuperClassScope() != null)
-			{
-				setSuperClassFields();
-			}
 			code = Compiler.push_field(currentClassScope.getFieldIndex(ctx.sym.getName()));
 		}
 		else if((ctx.sym instanceof STVariable) || (ctx.sym instanceof STArg))
@@ -313,6 +486,15 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 			else
 				code = Compiler.push_int(Integer.parseInt(ctx.NUMBER().getText()));
 		}
+		else if(ctx.CHAR() != null)
+		{
+			code = Compiler.push_char(ctx.CHAR().getText().charAt(1));
+		}
+		else if(ctx.SYMBOL() != null)
+		{
+			// symbols are strings at run time
+			code = Compiler.push_literal(getLiteralIndex(ctx.SYMBOL().getText().substring(1)));
+		}
 		else
 		{
 			if (!(ctx.getText().equals("nil") ||
@@ -320,11 +502,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 					ctx.getText().equals("true") ||
 					ctx.getText().equals("false")))
 			{
-				String str = ctx.getText();
-				if (str.contains("\'")) {
-					str = str.replace("\'", "");
-				}
-				int literalIndex = getLiteralIndex(str);
+				int literalIndex = getLiteralIndex(stringValue(ctx.getText()));
 				code = Compiler.push_literal(literalIndex);
 			}
 			else
@@ -349,6 +527,55 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		return code;
 	}
 
+	/** Push a literal array with one instruction; the VM builds each
+	 *  array in a class's constant pool once.
+	 */
+	@Override
+	public Code visitLiteralArray(SmalltalkParser.LiteralArrayContext ctx) {
+		return Compiler.push_constant(currentClassScope.getConstantIndex(literalArray(ctx.literalArrayElement())));
+	}
+
+	protected List<Object> literalArray(List<SmalltalkParser.LiteralArrayElementContext> elements) {
+		List<Object> array = new ArrayList<>();
+		for (SmalltalkParser.LiteralArrayElementContext e : elements) {
+			array.add(literalArrayElement(e));
+		}
+		return array;
+	}
+
+	protected Object literalArrayElement(SmalltalkParser.LiteralArrayElementContext ctx) {
+		String text = ctx.getText();
+		if ( ctx.NUMBER()!=null ) {
+			return text.contains(".") ? (Object) Float.parseFloat(text) : (Object) Integer.parseInt(text);
+		}
+		if ( ctx.CHAR()!=null ) return text.charAt(1);
+		if ( ctx.STRING()!=null ) return stringValue(text);
+		if ( ctx.SYMBOL()!=null ) return text.substring(1);
+		if ( ctx.literalArray()!=null ) return literalArray(ctx.literalArray().literalArrayElement());
+		if ( text.startsWith("(") ) return literalArray(ctx.literalArrayElement());
+		switch ( text ) {
+			case "nil" : return null;
+			case "true" : return true;
+			case "false" : return false;
+		}
+		return text; // a bare name or keywords is a symbol
+	}
+
+	/** Strip the quotes around a string literal and turn each '' in it into ' */
+	protected static String stringValue(String text) {
+		return text.substring(1, text.length()-1).replace("''", "'");
+	}
+
+	/** Evaluate each element of {...} then collect them with PUSH_ARRAY */
+	@Override
+	public Code visitArray(SmalltalkParser.ArrayContext ctx) {
+		Code code = Code.None;
+		for (SmalltalkParser.MessageExpressionContext e : ctx.messageExpression()) {
+			code = aggregateResult(code, visit(e));
+		}
+		return aggregateResult(code, Compiler.push_array(ctx.messageExpression().size()));
+	}
+
 	@Override
 	public Code visitBlock(SmalltalkParser.BlockContext ctx) {
 		currentScope = ctx.scope;
@@ -359,9 +586,11 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 		{
 			code = aggregateResult(code,Compiler.push_nil());
 		}
+		code = aggregateResult(code,compiler.dbg(ctx.getStop())); // ]
 		code = aggregateResult(code,Compiler.block_return());
 		ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope,(STBlock) currentScope);
 		ctx.scope.compiledBlock.bytecode = code.bytes();
+		ctx.scope.compiledBlock.lines = code.getLineTable();
 		popScope();
 		return blockd;
 	}
@@ -412,6 +641,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 			buffer.append(keywords.get(i).getText());
 		}
 		Code e = Compiler.send(args.size(),getLiteralIndex(buffer.toString()));
+		code = aggregateResult(code,compiler.dbg(keywords.get(0).getSymbol()));
 		code = aggregateResult(code,e);
 		return code;
 	}
@@ -1,31 +1,72 @@
 package smalltalk.compiler;
 
+import org.antlr.symtab.GlobalScope;
+import org.antlr.symtab.MethodSymbol;
 import org.antlr.symtab.Scope;
+import org.antlr.symtab.StringTable;
 import org.antlr.symtab.VariableSymbol;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import smalltalk.compiler.ir.PassManager;
 import smalltalk.compiler.symbols.*;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import static smalltalk.compiler.misc.Utils.*;
 
+/** Compile Smalltalk source into a symbol table. A compiler keeps its
+ *  parser and {@link #errors} so use one per thread; to compile on many
+ *  threads against one image, freeze the image's symbol table and give
+ *  each compiler a table with it as prelude (see
+ *  {@link STSymbolTable#STSymbolTable(STSymbolTable)}).
+ */
 public class Compiler {
 	protected STSymbolTable symtab;
 	protected SmalltalkParser parser;
 	protected CommonTokenStream tokens;
 	protected SmalltalkParser.FileContext fileTree;
 	protected String fileName;
-	public boolean genDbg; // generate dbg file,line instructions
+	public boolean genDbg; // record line:charPos of instructions in each block's line table
+	/** Compile common binary selectors like + and < to special-selector
+	 *  opcodes; turn off to see every binary operation as a real send.
+	 */
+	public boolean genSpecialSends = true;
+	/** Tag methods with trivial bodies with a quick kind (see
+	 *  {@link STCompiledBlock#quickKind}); turn off to make every send
+	 *  run a method's code.
+	 */
+	public boolean genQuickMethods = true;
+	/** Compile sends whose result is returned at once to SEND_TAIL (see
+	 *  {@link STCompiledBlock#markTailSends()}) so recursion through them
+	 *  runs in constant VM frames.
+	 */
+	public boolean genTailSends;
+	/** Passes to run over each method's IR before send sites are
+	 *  numbered; null to leave code as generated.
+	 */
+	public PassManager optimizer;
+	/** Only parse and define symbols up front, leaving each method's code
+	 *  to be generated the first time {@link STMethod#getCompiledBlock()}
+	 *  asks for it; see {@link #compileAll()}.
+	 */
+	public boolean lazy;
 
 	public final List<String> errors = new ArrayList<>();
 
+	protected SmalltalkLexer doitLexer;
+	protected SmalltalkParser doitParser;
+	protected StringTable doitSelectors;
+	protected int doitSelectorsCopied; // size of symtab.selectors when copied
+
 	public Compiler() {
 		symtab = new STSymbolTable();
 	}
@@ -35,13 +76,83 @@ public class Compiler {
 	}
 
 	public STSymbolTable compile(String fileName, String input) {
+		ParserRuleContext tree = analyze(input);
+		codeGen(tree);
+		return symtab;
+	}
+
+	/** Parse input then define and resolve its symbols, leaving code
+	 *  generation for later. Return the tree or null upon syntax error.
+	 */
+	public ParserRuleContext analyze(String input) {
 		ParserRuleContext tree = parseClasses(new ANTLRInputStream(input));
 		if ( tree!=null ) {
 			defSymbols(tree);
 			resolveSymbols(tree);
 		}
-		codeGen(tree);
-		return symtab;
+		return tree;
+	}
+
+	/** Compile statements, as in a main program, against the classes
+	 *  already in the symbol table and return them as method main of a
+	 *  new MainClass; its {@link STCompiledBlock#enclosingClass} holds the
+	 *  literals. The value of the last statement is returned rather than
+	 *  self, and nil if there are none. MainClass sees the globals but
+	 *  isn't defined in them, and selectors new to the program get IDs
+	 *  from a private copy of the symbol table's, so each doit is thrown
+	 *  away after use and the symbol table is left as it was. Return null
+	 *  upon error, which goes to {@link #errors}. The lexer and parser
+	 *  are reused between calls.
+	 */
+	public STCompiledBlock compileDoit(String expr) {
+		int nerrors = errors.size();
+		CharStream input = new ANTLRInputStream(expr);
+		if ( doitParser==null ) {
+			doitLexer = new SmalltalkLexer(input);
+			doitParser = new SmalltalkParser(new CommonTokenStream(doitLexer));
+		}
+		else {
+			doitLexer.setInputStream(input);
+			doitParser.setTokenStream(new CommonTokenStream(doitLexer));
+		}
+		SmalltalkParser.DoitContext tree = doitParser.doit();
+		if ( doitParser.getNumberOfSyntaxErrors()>0 ) {
+			errors.add("syntax error in doit");
+			return null;
+		}
+		// define MainClass in a scratch scope then hang it off the globals
+		// without adding it to them
+		ParseTreeWalker walker = new ParseTreeWalker();
+		DefineSymbols def = new DefineSymbols(this);
+		def.currentScope = new GlobalScope(symtab.GLOBALS);
+		walker.walk(def, tree);
+		STMethod main = tree.main().scope;
+		tree.main().classScope.setScope(symtab.GLOBALS);
+		walker.walk(new ResolveSymbols(this), tree);
+		if ( errors.size()>nerrors ) {
+			return null;
+		}
+		new CodeGenerator(this).visit(tree);
+		if ( errors.size()>nerrors ) {
+			return null;
+		}
+		finish(main.compiledBlock, getDoitSelectors());
+		return main.compiledBlock;
+	}
+
+	/** Return a copy of the symbol table's selectors for doits to add to,
+	 *  made again once the program has gained selectors so IDs the two
+	 *  share always agree.
+	 */
+	protected StringTable getDoitSelectors() {
+		if ( doitSelectors==null || doitSelectorsCopied!=symtab.selectors.size() ) {
+			doitSelectors = new StringTable();
+			for (String selector : symtab.selectors.toArray()) {
+				doitSelectors.add(selector);
+			}
+			doitSelectorsCopied = symtab.selectors.size();
+		}
+		return doitSelectors;
 	}
 
 	/** Parse classes and/or a chunk of code, returning AST root.
@@ -77,7 +188,107 @@ public class Compiler {
 	public void codeGen(ParserRuleContext tree)
 	{
 		CodeGenerator codegen = new CodeGenerator(this);
+		codegen.deferMethods = lazy;
 		codegen.visit(tree);
+		if ( lazy ) {
+			return;
+		}
+		for (STClass c : symtab.getOwnClasses()) {
+			for (STCompiledBlock m : c.getCompiledMethods()) {
+				finish(m);
+			}
+		}
+	}
+
+	/** Generate code like {@link #codeGen(ParserRuleContext)} but a class
+	 *  at a time in file order, handing each to emit once its methods are
+	 *  finished. The parser and each class's parse tree are then dropped,
+	 *  as is the tree in method symbols, so the tree is freed as code is
+	 *  generated; tree can't be used again.
+	 */
+	public void codeGen(ParserRuleContext tree, Consumer<STClass> emit) {
+		parser = null; // and its tokens
+		fileTree = null;
+		CodeGenerator codegen = new CodeGenerator(this);
+		codegen.startFile();
+		List<ParseTree> children = tree.children;
+		for (int i = 0; i<children.size(); i++) {
+			ParseTree child = children.get(i);
+			STClass c = null;
+			if ( child instanceof SmalltalkParser.ClassDefContext ) {
+				c = ((SmalltalkParser.ClassDefContext) child).scope;
+			}
+			else if ( child instanceof SmalltalkParser.MainContext ) {
+				c = ((SmalltalkParser.MainContext) child).classScope;
+			}
+			if ( c==null ) { // EOF, empty main or a class in error
+				continue;
+			}
+			codegen.visit(child);
+			children.set(i, null);
+			for (MethodSymbol m : c.getDefinedMethods()) {
+				((STMethod) m).setDefNode(null);
+				for (Scope blk : ((STMethod) m).getAllNestedScopedSymbols()) {
+					((STBlock) blk).setDefNode(null);
+				}
+				finish(((STMethod) m).compiledBlock);
+			}
+			emit.accept(c);
+		}
+	}
+
+	/** Optimize a freshly generated method and number its sends */
+	protected void finish(STCompiledBlock m) {
+		finish(m, symtab.selectors);
+	}
+
+	protected void finish(STCompiledBlock m, StringTable selectors) {
+		if ( optimizer!=null && optimizer.optimize(m) ) {
+			if ( genQuickMethods ) {
+				m.assignQuickKind();
+			}
+		}
+		if ( genTailSends ) {
+			m.markTailSends();
+		}
+		m.assignSendSites();
+		m.assignSelectorIDs(selectors);
+	}
+
+	/** Arrange for method's code to be generated from tree, its method
+	 *  definition or main program, the first time it is asked for.
+	 */
+	public void defer(STMethod method, STClass enclosingClass, ParserRuleContext tree) {
+		method.pendingCodeGen = () -> generate(method, enclosingClass, tree);
+	}
+
+	/** Generate the code for a deferred method unless another thread
+	 *  beat us to it. Code generation adds to the class's literals and
+	 *  the symbol table's selectors so it's done holding the symbol
+	 *  table's lock.
+	 */
+	protected void generate(STMethod method, STClass enclosingClass, ParserRuleContext tree) {
+		synchronized ( symtab ) {
+			if ( method.pendingCodeGen==null ) {
+				return;
+			}
+			CodeGenerator codegen = new CodeGenerator(this);
+			codegen.currentClassScope = enclosingClass;
+			codegen.currentScope = method.getEnclosingScope();
+			codegen.visit(tree);
+			finish(method.compiledBlock);
+			method.pendingCodeGen = null;
+		}
+	}
+
+	/** Generate the code for any methods still deferred, class by class in
+	 *  definition order, as a batch build would. The result is the same
+	 *  as compiling without {@link #lazy}.
+	 */
+	public void compileAll() {
+		for (STClass c : symtab.getOwnClasses()) {
+			c.getCompiledMethods();
+		}
 	}
 
 	public STBlock createBlock(STMethod currentMethod, ParserRuleContext tree) {
@@ -139,6 +350,10 @@ public class Compiler {
 	public static Code push_false()				{ return Code.of(Bytecode.FALSE); }
 	public static Code method_return()          { return Code.of(Bytecode.RETURN); }
 	public static Code block_return()          { return Code.of(Bytecode.BLOCK_RETURN); }
+	public static Code push_char(char c)
+	{
+		return Code.of(Bytecode.PUSH_CHAR).join(shortToBytes(c));
+	}
 	public static Code push_int(int x)
 	{
 		return Code.of(Bytecode.PUSH_INT).join(intToBytes(x));
@@ -167,6 +382,24 @@ public class Compiler {
 	{
 		return Code.of(Bytecode.PUSH_LITERAL).join(toLiteral(literalIndex));
 	}
+	public static Code push_constant(int constantIndex)
+	{
+		return Code.of(Bytecode.PUSH_CONSTANT).join(shortToBytes(constantIndex));
+	}
+	public static Code push_array(int n)
+	{
+		return Code.of(Bytecode.PUSH_ARRAY).join(shortToBytes(n));
+	}
+	/** Return a mark giving the location of t to the next instruction when
+	 *  generating debugging info, else no code.
+	 */
+	public Code dbg(Token t) {
+		if ( !genDbg || t==null ) {
+			return Code.None;
+		}
+		return Code.mark(Bytecode.combineLineCharPos(t.getLine(), t.getCharPositionInLine()));
+	}
+
 	public static Code push_global(int globalIndex)
 	{
 		Code code = Code.of(Bytecode.PUSH_GLOBAL).join(toLiteral(globalIndex));
@@ -181,6 +414,10 @@ public class Compiler {
 	{
 		return Code.of(Bytecode.POP);
 	}
+	public static Code dup()
+	{
+		return Code.of(Bytecode.DUP);
+	}
 	public static Code block(int blocknum)
 	{
 		return Code.of(Bytecode.BLOCK).join(shortToBytes(blocknum));
@@ -192,6 +429,12 @@ public class Compiler {
 		return code;
 	}
 
+	public static Code send_super_direct(int nargs,int index,int classIndex)
+	{
+		Code code = Code.of(Bytecode.SEND_SUPER_DIRECT).join(shortToBytes(nargs)).join(toLiteral(index)).join(toLiteral(classIndex));
+		return code;
+	}
+
 	public String getFileName() {
 		return fileName;
 	}
@@ -0,0 +1,178 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Write each method body that occurs more than once in a program only
+ *  once, in a shared section next to the classes.
+ *
+ *  A body is a method's code and that of its nested blocks, plus
+ *  argument and local counts, send sites, line table and so on: all of
+ *  {@link STCompiledBlock#serializeBody} but the names. Operands index
+ *  their class's literals, so a body is normalized by renumbering them
+ *  to index its own list of the literal strings it uses, in order of
+ *  first use. Two methods then have the same body exactly when their
+ *  normalized JSON is the same, and that text is the key under which
+ *  the body is stored.
+ *
+ *  A class refers to a shared body by its index in the shared section
+ *  and keeps the names of the method and its blocks (see
+ *  {@link #serializeReference}). A VM rebuilds the method by mapping the
+ *  body's literals back into the class's literal table. Primitive
+ *  methods have no code and are always written in place, as are
+ *  methods that push literal arrays from their class's constant pool.
+ */
+public class Deduplicator {
+	protected final STSymbolTable symtab;
+
+	/** Normalized bodies by their JSON text, in order of first appearance */
+	protected final Map<String,JsonObject> bodies = new LinkedHashMap<>();
+
+	/** The key of the body of each method with code */
+	protected final Map<STCompiledBlock,String> keys = new HashMap<>();
+
+	/** Bodies used by more than one method, in the order written */
+	public final List<JsonObject> shared = new ArrayList<>();
+
+	/** Index in {@link #shared} of the body of each method that uses one */
+	protected final Map<STCompiledBlock,Integer> sharedIndex = new HashMap<>();
+
+	/** Number of methods with code and how many of those use a shared body */
+	public int methods, sharingMethods;
+
+	/** Size of the JSON for all classes written without and with sharing */
+	public int bytesBefore, bytesAfter;
+
+	public Deduplicator(STSymbolTable symtab) {
+		this.symtab = symtab;
+	}
+
+	/** Find the bodies to share and return how many there are */
+	public int dedup() {
+		Map<String,Integer> uses = new HashMap<>();
+		for (STClass c : symtab.getClasses()) {
+			for (STCompiledBlock m : c.getCompiledMethods()) {
+				if ( m.primitiveName!=null ) continue;
+				methods++;
+				if ( pushesConstants(m) ) continue;
+				JsonObject body = normalize(c, m);
+				String key = body.toString();
+				bodies.putIfAbsent(key, body);
+				keys.put(m, key);
+				uses.merge(key, 1, Integer::sum);
+			}
+		}
+		Map<String,Integer> indexes = new HashMap<>();
+		for (Map.Entry<String,JsonObject> body : bodies.entrySet()) {
+			if ( uses.get(body.getKey())>1 ) {
+				indexes.put(body.getKey(), shared.size());
+				shared.add(body.getValue());
+			}
+		}
+		for (Map.Entry<STCompiledBlock,String> e : keys.entrySet()) {
+			Integer i = indexes.get(e.getValue());
+			if ( i!=null ) {
+				sharedIndex.put(e.getKey(), i);
+				sharingMethods++;
+			}
+		}
+		for (STClass c : symtab.getClasses()) {
+			bytesBefore += c.serialize().toString().length();
+			bytesAfter += serialize(c).toString().length();
+		}
+		bytesAfter += serializeShared().toString().length();
+		return shared.size();
+	}
+
+	protected static boolean pushesConstants(STCompiledBlock m) {
+		if ( Bytecode.uses(m.bytecode, Bytecode.PUSH_CONSTANT) ) return true;
+		if ( m.blocks!=null ) {
+			for (STCompiledBlock blk : m.blocks) {
+				if ( Bytecode.uses(blk.bytecode, Bytecode.PUSH_CONSTANT) ) return true;
+			}
+		}
+		return false;
+	}
+
+	/** Return m's body with literal operands indexing a "literals" list
+	 *  of the strings it uses.
+	 */
+	protected JsonObject normalize(STClass c, STCompiledBlock m) {
+		List<Integer> used = new ArrayList<>();
+		Bytecode.addLiteralsUsed(m.bytecode, used);
+		if ( m.blocks!=null ) {
+			for (STCompiledBlock blk : m.blocks) {
+				Bytecode.addLiteralsUsed(blk.bytecode, used);
+			}
+		}
+		int[] literalMap = new int[c.stringTable.size()];
+		Arrays.fill(literalMap, -1);
+		JsonArrayBuilder literals = Json.createArrayBuilder();
+		for (int i = 0; i<used.size(); i++) {
+			literalMap[used.get(i)] = i;
+			literals.add(c.stringTable.get(used.get(i)));
+		}
+		JsonObject body = m.serializeBody(literalMap);
+		JsonObjectBuilder builder = Json.createObjectBuilder();
+		builder.add("literals", literals);
+		for (Map.Entry<String,JsonValue> e : body.entrySet()) {
+			builder.add(e.getKey(), e.getValue());
+		}
+		return builder.build();
+	}
+
+	/** Serialize c, writing methods whose bodies are shared as references */
+	public JsonObject serialize(STClass c) {
+		return c.serialize(m -> sharedIndex.containsKey(m) ? serializeReference(m) : m.serialize());
+	}
+
+	/** Return the names of m and its blocks and the index of its body */
+	protected JsonObject serializeReference(STCompiledBlock m) {
+		JsonObjectBuilder builder = Json.createObjectBuilder();
+		builder.add("name", m.name);
+		builder.add("isClassMethod", m.isClassMethod);
+		builder.add("qualifiedName", m.qualifiedName);
+		builder.add("shared", sharedIndex.get(m));
+		JsonArrayBuilder blockArray = Json.createArrayBuilder();
+		if ( m.blocks!=null ) {
+			for (STCompiledBlock blk : m.blocks) {
+				blockArray.add(Json.createObjectBuilder()
+								   .add("name", blk.name)
+								   .add("qualifiedName", blk.qualifiedName));
+			}
+		}
+		builder.add("blocks", blockArray);
+		return builder.build();
+	}
+
+	/** Return the shared section: bodies indexed by the "shared" field
+	 *  of methods that refer to them.
+	 */
+	public JsonArray serializeShared() {
+		JsonArrayBuilder array = Json.createArrayBuilder();
+		for (JsonObject body : shared) {
+			array.add(body);
+		}
+		return array.build();
+	}
+
+	/** Return a summary of what {@link #dedup()} found */
+	public String getReport() {
+		return String.format("shared %d bodies among %d of %d methods; %d bytes of class JSON became %d, saving %d%n",
+							 shared.size(), sharingMethods, methods, bytesBefore, bytesAfter, bytesBefore-bytesAfter);
+	}
+}
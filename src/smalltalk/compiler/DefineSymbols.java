@@ -59,7 +59,7 @@ public class DefineSymbols extends SmalltalkBaseListener {
 
 	@Override
 	public void enterMain(SmalltalkParser.MainContext ctx) {
-		if ( ctx.body().getChildCount()==0 ) return;
+		if ( isEmptyMain(ctx) ) return;
 		// pretend user defined "class MainClass [main [...]]"
 		// define MainClass
 		STClass cl = new STClass("MainClass", "Object");
@@ -77,11 +77,16 @@ public class DefineSymbols extends SmalltalkBaseListener {
 
 	@Override
 	public void exitMain(SmalltalkParser.MainContext ctx) {
-		if ( ctx.body().getChildCount()==0 ) return;
+		if ( isEmptyMain(ctx) ) return;
 		popScope(); // pop main method
 		popScope(); // pop MainClass
 	}
 
+	/** A file without statements has no main; an empty doit answers nil */
+	protected boolean isEmptyMain(SmalltalkParser.MainContext ctx) {
+		return ctx.body().getChildCount()==0 && !(ctx.getParent() instanceof SmalltalkParser.DoitContext);
+	}
+
 	@Override
 	public void exitClassMethod(SmalltalkParser.ClassMethodContext ctx) {
 		ctx.method().scope.isClassMethod = true;
@@ -133,6 +138,14 @@ public class DefineSymbols extends SmalltalkBaseListener {
 		SmalltalkParser.MethodContext methodNode = (SmalltalkParser.MethodContext)ctx.getParent();
 		String primitiveName = ctx.SYMBOL().getText();
 		primitiveName = primitiveName.substring(1); // Strip # from #Foo
+		Primitives.Definition primitive = Primitives.lookup(primitiveName);
+		String where = " for "+ctx.selector+" in "+currentScope.toQualifierString(">>");
+		if ( primitive==null ) {
+			compiler.error("unknown primitive "+primitiveName+where);
+		}
+		else if ( primitive.nargs!=ctx.args.size() ) {
+			compiler.error("primitive "+primitiveName+" takes "+primitive.nargs+" args not "+ctx.args.size()+where);
+		}
 		STMethod m =
 			compiler.createPrimitiveMethod((STClass) currentScope, ctx.selector, primitiveName,
 										   methodNode);
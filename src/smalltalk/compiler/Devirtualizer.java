@@ -0,0 +1,106 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.util.List;
+import java.util.Map;
+
+/** Turn sends of selectors with a single implementor in the whole
+ *  program into direct calls.
+ *
+ *  After all code is compiled, {@link STSymbolTable#getImplementors()}
+ *  gives the classes defining each selector. A SEND whose selector only
+ *  one class defines becomes SEND_DIRECT, which also names that class.
+ *  A VM calls the method directly when the receiver is an instance of
+ *  the class or a subclass. That is the guard: any other receiver, nil
+ *  included, takes a normal send and so gets the usual
+ *  doesNotUnderstand. A VM must also check that no code it loaded later
+ *  overrides the method below that class before trusting the opcode.
+ *
+ *  SEND_DIRECT is two bytes longer than SEND. There are no jumps, so
+ *  rewritten code only needs its send sites and line table adjusted.
+ *  Special-selector sends keep their opcodes. Run this before linking
+ *  and verifying, and after tree shaking so dead implementors don't
+ *  block it.
+ */
+public class Devirtualizer {
+	protected final STSymbolTable symtab;
+	protected Map<String,List<STClass>> implementors;
+
+	/** Number of send instructions seen and rewritten */
+	public int sends, rewritten;
+
+	public Devirtualizer(STSymbolTable symtab) {
+		this.symtab = symtab;
+	}
+
+	/** Rewrite every eligible send, returning how many were rewritten */
+	public int devirtualize() {
+		symtab.checkNoPrelude("devirtualizing");
+		implementors = symtab.getImplementors();
+		for (STClass c : symtab.getClasses()) {
+			for (STCompiledBlock m : c.getCompiledMethods()) {
+				int before = rewritten;
+				devirtualize(m);
+				if ( m.blocks!=null ) {
+					for (STCompiledBlock blk : m.blocks) {
+						devirtualize(blk);
+					}
+				}
+				if ( rewritten>before ) {
+					m.assignSendSites();
+				}
+			}
+		}
+		return rewritten;
+	}
+
+	/** Return the only class implementing selector or null */
+	public STClass getSoleImplementor(String selector) {
+		List<STClass> classes = implementors.get(selector);
+		return classes!=null && classes.size()==1 ? classes.get(0) : null;
+	}
+
+	protected void devirtualize(STCompiledBlock blk) {
+		byte[] code = blk.bytecode;
+		if ( code==null ) return;
+		int n = 0;
+		for (int ip = 0; ip<code.length; ip += Bytecode.instructionSize(code[ip])) {
+			if ( code[ip]==Bytecode.SEND ) {
+				sends++;
+				if ( getSoleImplementor(blk.getSelector(ip))!=null ) n++;
+			}
+		}
+		if ( n==0 ) return;
+		int growth = Bytecode.instructionSize(Bytecode.SEND_DIRECT)-Bytecode.instructionSize(Bytecode.SEND);
+		byte[] newCode = new byte[code.length+n*growth];
+		int[] newAddress = new int[code.length+1];
+		int to = 0;
+		int ip = 0;
+		while ( ip<code.length ) {
+			int size = Bytecode.instructionSize(code[ip]);
+			newAddress[ip] = to;
+			System.arraycopy(code, ip, newCode, to, size);
+			STClass target = code[ip]==Bytecode.SEND ? getSoleImplementor(blk.getSelector(ip)) : null;
+			if ( target!=null ) {
+				newCode[to] = (byte)Bytecode.SEND_DIRECT;
+				Bytecode.putShort(newCode, to+size, blk.enclosingClass.stringTable.add(target.getName()));
+				to += growth;
+				rewritten++;
+			}
+			ip += size;
+			to += size;
+		}
+		newAddress[code.length] = to;
+		blk.bytecode = newCode;
+		if ( blk.lines!=null ) {
+			int[] addresses = new int[blk.lines.size()];
+			for (int i = 0; i<addresses.length; i++) {
+				addresses[i] = newAddress[blk.lines.addresses[i]];
+			}
+			blk.lines = new LineTable(addresses, blk.lines.locations);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.FieldSymbol;
+import org.antlr.symtab.MethodSymbol;
+import org.antlr.symtab.Symbol;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/** Write the same text as {@link STClass#toTestString()} straight to a
+ *  Writer, one line at a time, for disassembling whole images. The
+ *  template-based toTestString builds a string per method and per class
+ *  and re-indents them as they nest; here each instruction is formatted
+ *  into one reused buffer and written out with the current indentation.
+ *  Wrap the Writer in a BufferedWriter.
+ */
+public class Disassembler {
+	protected final Writer out;
+
+	/** The line being formatted, without indentation */
+	protected final StringBuilder line = new StringBuilder(80);
+
+	protected String indent = "";
+
+	public Disassembler(Writer out) {
+		this.out = out;
+	}
+
+	/** Disassemble every class in the order they were defined */
+	public void disassemble(STSymbolTable symtab) throws IOException {
+		for (Symbol s : symtab.GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				disassemble((STClass) s);
+			}
+		}
+	}
+
+	public void disassemble(STClass c) throws IOException {
+		line.append("name: ").append(c.getName());
+		emitLine();
+		line.append("superClass: ");
+		String superClassName = c.getSuperClassName();
+		if ( superClassName!=null && !superClassName.equals("Object") ) {
+			line.append(superClassName);
+		}
+		emitLine();
+		line.append("fields: ");
+		boolean first = true;
+		for (FieldSymbol f : c.getDefinedFields()) {
+			if ( !first ) line.append(',');
+			first = false;
+			line.append(f.getName());
+		}
+		emitLine();
+		line.append("literals: ");
+		c.getCompiledMethods(); // generate any deferred methods so their literals are listed
+		String[] literals = c.stringTable.toArray();
+		for (int i = 0; i<literals.length; i++) {
+			if ( i>0 ) line.append(',');
+			line.append('\'').append(literals[i]).append('\'');
+		}
+		emitLine();
+		if ( !c.constants.isEmpty() ) {
+			line.append("constants: ");
+			for (int i = 0; i<c.constants.size(); i++) {
+				if ( i>0 ) line.append(',');
+				line.append(STClass.constantToString(c.constants.get(i)));
+			}
+			emitLine();
+		}
+		line.append("methods:");
+		emitLine();
+		String saved = indent;
+		indent = saved+"    ";
+		first = true;
+		for (MethodSymbol m : c.getDefinedMethods()) {
+			if ( !first ) emitLine(); // blank line between methods
+			first = false;
+			disassemble(((STMethod) m).getCompiledBlock(), literals);
+		}
+		indent = saved;
+	}
+
+	public void disassemble(STCompiledBlock blk, String[] literals) throws IOException {
+		line.append("name: ");
+		if ( blk.isClassMethod ) line.append("static ");
+		line.append(blk.name);
+		emitLine();
+		line.append("qualifiedName: ").append(blk.qualifiedName);
+		emitLine();
+		line.append("nargs: ").append(blk.nargs);
+		emitLine();
+		line.append("nlocals: ").append(blk.nlocals);
+		emitLine();
+		byte[] code = blk.bytecode;
+		int ip = 0;
+		while ( code!=null && ip<code.length ) {
+			ip = Bytecode.disassembleLine(line, blk.name, code, literals, blk.lines, ip);
+			emitLine();
+		}
+		if ( blk.blocks!=null && blk.blocks.length>0 ) {
+			line.append("blocks:");
+			emitLine();
+			String saved = indent;
+			indent = saved+"    ";
+			for (int i = 0; i<blk.blocks.length; i++) {
+				if ( i>0 ) emitLine();
+				disassemble(blk.blocks[i], literals);
+			}
+			indent = saved;
+		}
+	}
+
+	/** Write the indented line, unless it's blank, and a newline */
+	protected void emitLine() throws IOException {
+		if ( line.length()>0 ) {
+			out.write(indent);
+			out.append(line);
+			line.setLength(0);
+		}
+		out.write('\n');
+	}
+}
@@ -0,0 +1,262 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonStructure;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** A whole program in one file: the JSON {@link STC#writeObjectFiles}
+ *  would write to a directory, stored as sections found through an index
+ *  so a reader can decode classes one at a time as they are needed.
+ *
+ *  The layout, with integers big-endian:
+ *
+ *    magic    4 bytes "STIM"
+ *    version  u2
+ *    flags    u2, bit 0 set if sections are Deflate-compressed
+ *    count    u4
+ *    index    count entries of
+ *               name    u2 length then that many bytes of UTF-8
+ *               offset  u4 from the start of the file
+ *               length  u4 bytes stored
+ *               size    u4 bytes of JSON once inflated
+ *    sections the JSON text of each entry, UTF-8
+ *
+ *  Classes are indexed by name. The global table and the shared method
+ *  bodies, if any, are indexed by {@link STC#GLOBALS_FILE_NAME} and
+ *  {@link STC#SHARED_FILE_NAME}, which can't be class names.
+ *
+ *  Opening an archive maps the file and reads only the index; each
+ *  section is decoded by the first call that asks for it, and the time
+ *  that took is recorded in {@link #loadNanos}.
+ */
+public class ImageArchive {
+	public static final byte[] MAGIC = {'S','T','I','M'};
+	public static final int VERSION = 1;
+	public static final int FLAG_DEFLATE = 1;
+
+	protected static class Entry {
+		final String name;
+		final int offset, length, size;
+
+		Entry(String name, int offset, int length, int size) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+			this.size = size;
+		}
+	}
+
+	public final Path file;
+	public final boolean deflated;
+
+	protected final MappedByteBuffer buffer;
+
+	/** Index entries by name, in file order */
+	protected final Map<String,Entry> index = new LinkedHashMap<>();
+
+	/** Nanoseconds spent decoding each section read so far, in the order read */
+	public final Map<String,Long> loadNanos = new LinkedHashMap<>();
+
+	/** Map file and read its index */
+	public ImageArchive(Path file) throws IOException {
+		this.file = file;
+		try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			buffer.get(magic);
+			for (int i = 0; i<MAGIC.length; i++) {
+				if ( magic[i]!=MAGIC[i] ) {
+					throw new IOException(file+" is not an image archive");
+				}
+			}
+			int version = buffer.getShort() & 0xFFFF;
+			if ( version!=VERSION ) {
+				throw new IOException(file+" is image archive version "+version+" not "+VERSION);
+			}
+			deflated = (buffer.getShort() & FLAG_DEFLATE)!=0;
+			int count = buffer.getInt();
+			for (int i = 0; i<count; i++) {
+				byte[] name = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(name);
+				Entry e = new Entry(new String(name, StandardCharsets.UTF_8),
+									buffer.getInt(), buffer.getInt(), buffer.getInt());
+				if ( e.offset<0 || e.length<0 || e.size<0 || (long) e.offset+e.length>buffer.capacity() ) {
+					throw new IOException(file+" section "+e.name+" lies outside the file");
+				}
+				index.put(e.name, e);
+			}
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException(file+" is truncated");
+		}
+	}
+
+	/** Names of the classes in the archive, in the order written */
+	public List<String> getClassNames() {
+		List<String> names = new ArrayList<>();
+		for (String name : index.keySet()) {
+			if ( hasClass(name) ) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	public boolean hasClass(String name) {
+		return index.containsKey(name) && !name.equals(STC.GLOBALS_FILE_NAME) && !name.equals(STC.SHARED_FILE_NAME);
+	}
+
+	/** Return the serialized class or null if the archive has no such class */
+	public JsonObject readClass(String name) throws IOException {
+		return hasClass(name) ? (JsonObject) read(name) : null;
+	}
+
+	/** Return the global table or null if the program wasn't linked */
+	public JsonArray readGlobals() throws IOException {
+		return index.containsKey(STC.GLOBALS_FILE_NAME) ? (JsonArray) read(STC.GLOBALS_FILE_NAME) : null;
+	}
+
+	/** Return the shared method bodies or null if there are none */
+	public JsonArray readShared() throws IOException {
+		return index.containsKey(STC.SHARED_FILE_NAME) ? (JsonArray) read(STC.SHARED_FILE_NAME) : null;
+	}
+
+	protected JsonStructure read(String name) throws IOException {
+		long start = System.nanoTime();
+		Entry e = index.get(name);
+		byte[] stored = new byte[e.length];
+		ByteBuffer section = buffer.duplicate();
+		section.position(e.offset);
+		section.get(stored);
+		byte[] text = stored;
+		if ( deflated ) {
+			text = new byte[e.size];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(stored);
+				int n = inflater.inflate(text);
+				if ( n!=e.size || !inflater.finished() ) {
+					throw new IOException(file+" section "+name+" inflates to the wrong size");
+				}
+			}
+			catch (DataFormatException ex) {
+				throw new IOException(file+" section "+name+" is corrupt: "+ex.getMessage());
+			}
+			finally {
+				inflater.end();
+			}
+		}
+		try ( JsonReader json = Json.createReader(new StringReader(new String(text, StandardCharsets.UTF_8))) ) {
+			JsonStructure s = json.read();
+			loadNanos.put(name, System.nanoTime()-start);
+			return s;
+		}
+	}
+
+	/** Return how many classes were decoded and the time each took */
+	public String getLoadReport() {
+		StringBuilder buf = new StringBuilder();
+		long total = 0;
+		int nclasses = 0;
+		for (Map.Entry<String,Long> e : loadNanos.entrySet()) {
+			buf.append(String.format("  %-20s %8.3f ms%n", e.getKey(), e.getValue()/1000000.0));
+			total += e.getValue();
+			if ( hasClass(e.getKey()) ) nclasses++;
+		}
+		return String.format("loaded %d of %d classes from %s in %.3f ms%n",
+							 nclasses, getClassNames().size(), file, total/1000000.0) + buf;
+	}
+
+	/** Write every class in symtab, its global table and, if dedup isn't
+	 *  null, the method bodies its classes share to one archive file.
+	 */
+	public static void write(Path file, STSymbolTable symtab, Deduplicator dedup, boolean deflate) throws IOException {
+		Map<String,String> sections = new LinkedHashMap<>();
+		if ( symtab.globals.size()>0 ) {
+			sections.put(STC.GLOBALS_FILE_NAME, symtab.serializeGlobals().toString());
+		}
+		if ( dedup!=null && dedup.shared.size()>0 ) {
+			sections.put(STC.SHARED_FILE_NAME, dedup.serializeShared().toString());
+		}
+		for (STClass c : symtab.getClasses()) {
+			sections.put(c.getName(), (dedup!=null ? dedup.serialize(c) : c.serialize()).toString());
+		}
+
+		List<byte[]> names = new ArrayList<>();
+		List<byte[]> data = new ArrayList<>();
+		List<Integer> sizes = new ArrayList<>();
+		int headerSize = MAGIC.length+2+2+4;
+		for (Map.Entry<String,String> s : sections.entrySet()) {
+			byte[] name = s.getKey().getBytes(StandardCharsets.UTF_8);
+			byte[] text = s.getValue().getBytes(StandardCharsets.UTF_8);
+			names.add(name);
+			sizes.add(text.length);
+			data.add(deflate ? deflate(text) : text);
+			headerSize += 2+name.length+4+4+4;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(deflate ? FLAG_DEFLATE : 0);
+		out.writeInt(sections.size());
+		int offset = headerSize;
+		for (int i = 0; i<names.size(); i++) {
+			out.writeShort(names.get(i).length);
+			out.write(names.get(i));
+			out.writeInt(offset);
+			out.writeInt(data.get(i).length);
+			out.writeInt(sizes.get(i));
+			offset += data.get(i).length;
+		}
+		for (byte[] d : data) {
+			out.write(d);
+		}
+		out.flush();
+		Files.write(file, bytes.toByteArray());
+	}
+
+	protected static byte[] deflate(byte[] text) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setInput(text);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(text.length/2+16);
+			byte[] chunk = new byte[4096];
+			while ( !deflater.finished() ) {
+				out.write(chunk, 0, deflater.deflate(chunk));
+			}
+			return out.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package smalltalk.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/** Debugging information for a compiled block that maps bytecode
+ *  addresses to source locations, kept beside the bytecode rather than in
+ *  it so that code compiled with -dbg is identical to code compiled
+ *  without it.
+ *
+ *  An entry gives the line:charPos (see
+ *  {@link Bytecode#combineLineCharPos}) of the instruction at its address;
+ *  instructions without an entry belong to the nearest entry before them.
+ *  Entries are sorted by address so lookup is a binary search. The
+ *  serialized form stores each entry as deltas from the previous one in
+ *  variable-length integers, typically 3 bytes per entry.
+ */
+public class LineTable {
+	/** Bytecode address of each entry, strictly increasing */
+	public final int[] addresses;
+
+	/** Combined line and char position of each entry */
+	public final int[] locations;
+
+	public LineTable(int[] addresses, int[] locations) {
+		this.addresses = addresses;
+		this.locations = locations;
+	}
+
+	public int size() {
+		return addresses.length;
+	}
+
+	/** Return the location of the instruction at ip or -1 if it precedes
+	 *  all entries.
+	 */
+	public int getLocation(int ip) {
+		int i = Arrays.binarySearch(addresses, ip);
+		if ( i<0 ) {
+			i = -i-2; // the entry before the insertion point
+		}
+		return i>=0 ? locations[i] : -1;
+	}
+
+	/** Return the location of an entry at exactly ip or -1 if there isn't one */
+	public int getLocationAt(int ip) {
+		int i = Arrays.binarySearch(addresses, ip);
+		return i>=0 ? locations[i] : -1;
+	}
+
+	/** Return the entries delta-encoded as unsigned address deltas, signed
+	 *  line deltas and char positions, each in 7-bit groups.
+	 */
+	public byte[] encode() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int prevAddress = 0;
+		int prevLine = 0;
+		for (int i = 0; i<addresses.length; i++) {
+			int line = Bytecode.lineFromCombined(locations[i]);
+			writeVarInt(out, addresses[i]-prevAddress);
+			writeVarInt(out, zigzag(line-prevLine));
+			writeVarInt(out, Bytecode.charPosFromCombined(locations[i]));
+			prevAddress = addresses[i];
+			prevLine = line;
+		}
+		return out.toByteArray();
+	}
+
+	public static LineTable decode(byte[] encoded) {
+		int[] addresses = new int[encoded.length/3+1];
+		int[] locations = new int[addresses.length];
+		int n = 0;
+		int[] pos = {0};
+		int address = 0;
+		int line = 0;
+		while ( pos[0]<encoded.length ) {
+			address += readVarInt(encoded, pos);
+			line += unzigzag(readVarInt(encoded, pos));
+			int charPos = readVarInt(encoded, pos);
+			if ( n==addresses.length ) {
+				addresses = Arrays.copyOf(addresses, n*2);
+				locations = Arrays.copyOf(locations, n*2);
+			}
+			addresses[n] = address;
+			locations[n] = Bytecode.combineLineCharPos(line, charPos);
+			n++;
+		}
+		return new LineTable(Arrays.copyOf(addresses, n), Arrays.copyOf(locations, n));
+	}
+
+	protected static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	protected static int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	protected static void writeVarInt(ByteArrayOutputStream out, int v) {
+		while ( (v & ~0x7F)!=0 ) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	protected static int readVarInt(byte[] in, int[] pos) {
+		int v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in[pos[0]++];
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ( (b & 0x80)!=0 );
+		return v;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i<addresses.length; i++) {
+			if ( i>0 ) buf.append(", ");
+			buf.append(addresses[i]).append('=')
+			   .append(Bytecode.lineFromCombined(locations[i])).append(':')
+			   .append(Bytecode.charPosFromCombined(locations[i]));
+		}
+		return buf.toString();
+	}
+}
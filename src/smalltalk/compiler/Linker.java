@@ -0,0 +1,105 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Resolve global references once the whole program is compiled.
+ *
+ *  The code generator can't tell a global from a class that is defined
+ *  later, so it emits PUSH_GLOBAL with the name as a literal. The linker
+ *  numbers every global in {@link STSymbolTable#globals}, rewrites each
+ *  PUSH_GLOBAL in place to PUSH_GLOBAL_SLOT with the slot number, and
+ *  reports names that aren't globals. Linking again after compiling more
+ *  code into the same symbol table keeps existing slot numbers.
+ */
+public class Linker {
+	/** Globals the VM provides that aren't classes, with the class that
+	 *  must be defined for each to exist.
+	 */
+	public static final String[][] PREDEFINED_GLOBALS = {
+		{"Transcript", "TranscriptStream"}
+	};
+
+	protected final STSymbolTable symtab;
+
+	/** Slot of each global in {@link STSymbolTable#globals} */
+	protected final Map<String,Integer> slots = new HashMap<>();
+
+	public final List<String> errors = new ArrayList<>();
+
+	public Linker(STSymbolTable symtab) {
+		this.symtab = symtab;
+	}
+
+	/** Link the program, returning the number of instructions rewritten */
+	public int link() {
+		symtab.checkNoPrelude("linking");
+		defineGlobals();
+		int n = 0;
+		for (STClass c : symtab.getClasses()) {
+			for (STCompiledBlock m : c.getCompiledMethods()) {
+				n += link(m);
+			}
+		}
+		return n;
+	}
+
+	protected void defineGlobals() {
+		for (STClass c : symtab.getClasses()) {
+			symtab.globals.add(c.getName());
+		}
+		for (String[] g : PREDEFINED_GLOBALS) {
+			if ( symtab.GLOBALS.resolve(g[1]) instanceof STClass ) {
+				symtab.globals.add(g[0]);
+			}
+		}
+		String[] names = symtab.globals.toArray();
+		for (int i = 0; i<names.length; i++) {
+			slots.put(names[i], i);
+		}
+	}
+
+	protected int link(STCompiledBlock blk) {
+		int n = 0;
+		byte[] code = blk.bytecode;
+		int ip = 0;
+		while ( code!=null && ip<code.length ) {
+			int opcode = code[ip];
+			if ( opcode==Bytecode.PUSH_GLOBAL ) {
+				String name = blk.enclosingClass.stringTable.get(Bytecode.getShort(code, ip+1));
+				int slot = globalSlot(name);
+				if ( slot<0 ) {
+					error("unknown global "+name+" in "+blk.qualifiedName);
+				}
+				else {
+					code[ip] = (byte)Bytecode.PUSH_GLOBAL_SLOT;
+					Bytecode.putShort(code, ip+1, slot);
+					n++;
+				}
+			}
+			ip += Bytecode.instructionSize(opcode);
+		}
+		if ( blk.blocks!=null ) {
+			for (STCompiledBlock b : blk.blocks) {
+				n += link(b);
+			}
+		}
+		return n;
+	}
+
+	/** Return the slot of a defined global or -1 */
+	protected int globalSlot(String name) {
+		Integer slot = slots.get(name);
+		return slot!=null ? slot : -1;
+	}
+
+	public void error(String msg) {
+		errors.add(msg);
+	}
+}
@@ -0,0 +1,159 @@
+package smalltalk.compiler;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Utils;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/** Compile files to .sto files as {@link STC#writeObjectFiles} would, but
+ *  write each class as soon as its code is generated rather than once the
+ *  whole program is.
+ *
+ *  Every file is parsed and its symbols defined and resolved first, as
+ *  code may refer to classes defined after it. Code generation then goes
+ *  a class at a time (see {@link Compiler#codeGen(ParserRuleContext,
+ *  java.util.function.Consumer)}), dropping each class's parse tree, and
+ *  hands the class to a writer thread through a bounded queue. The writer
+ *  links, verifies and serializes it while the next class is generated;
+ *  code generation waits if it gets {@link #QUEUE_CAPACITY} classes
+ *  ahead. All class names are known before code generation starts, so
+ *  the global table is fixed then and linking a class alone gives the
+ *  same slots as linking the whole program.
+ *
+ *  Passes that need the whole program before anything is written, such
+ *  as tree shaking, can't be used; the symbol table holds the compiled
+ *  program afterwards for those that run after writing.
+ */
+public class Pipeline {
+	/** How many generated classes may wait to be written */
+	public static final int QUEUE_CAPACITY = 8;
+
+	/** Put in the queue after the last class */
+	protected static final STClass END = new STClass("<end>", null);
+
+	protected final STSymbolTable symtab;
+	protected final String dir;
+
+	/** Null if not linking */
+	protected final Linker linker;
+
+	protected final Verifier verifier = new Verifier();
+
+	protected final BlockingQueue<STClass> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+	/** The first exception the writer thread hit, if any */
+	protected volatile Exception writeError;
+
+	/** Number of .sto files written */
+	public int written;
+
+	public Pipeline(STSymbolTable symtab, String dir, boolean link) {
+		this.symtab = symtab;
+		this.dir = dir;
+		this.linker = link ? new Linker(symtab) : null;
+	}
+
+	/** Compile file i with compilers[i], whose options are set, and write
+	 *  the program to dir. Throw an exception listing any compile, link or
+	 *  verify errors as {@link STC} does; files for classes generated
+	 *  before the error was found may have been written.
+	 */
+	public void compile(List<Compiler> compilers, List<String> fileNames) throws IOException, InterruptedException {
+		List<ParserRuleContext> trees = new ArrayList<>();
+		for (int i = 0; i<fileNames.size(); i++) {
+			String input = new String(Utils.readFile(STC.getFileURL(fileNames.get(i)).getFile()));
+			trees.add(compilers.get(i).analyze(input));
+			checkErrors(compilers.get(i));
+		}
+		if ( linker!=null ) {
+			linker.defineGlobals();
+		}
+		Thread writer = new Thread(this::writeClasses, "sto-writer");
+		writer.start();
+		try {
+			for (int i = 0; i<trees.size(); i++) {
+				compilers.get(i).codeGen(trees.get(i), this::put);
+				trees.set(i, null);
+				checkErrors(compilers.get(i));
+			}
+		}
+		finally {
+			queue.put(END);
+			writer.join();
+		}
+		if ( writeError instanceof IOException ) {
+			throw (IOException) writeError;
+		}
+		if ( writeError!=null ) {
+			throw new RuntimeException(writeError);
+		}
+		if ( linker!=null && linker.errors.size()>0 ) {
+			throw new RuntimeException("link errors: "+linker.errors.toString(), null);
+		}
+		if ( verifier.errors.size()>0 ) {
+			throw new RuntimeException("verify errors: "+verifier.errors.toString(), null);
+		}
+		if ( symtab.globals.size()>0 ) {
+			Files.write(Paths.get(dir, STC.GLOBALS_FILE_NAME), symtab.serializeGlobals().toString().getBytes());
+		}
+	}
+
+	protected void checkErrors(Compiler c) {
+		if ( c.errors.size()>0 ) {
+			throw new RuntimeException("compile errors: "+c.errors.toString(), null);
+		}
+	}
+
+	protected void put(STClass c) {
+		try {
+			queue.put(c);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted compiling "+c.getName(), ie);
+		}
+	}
+
+	/** Run by the writer thread until it takes {@link #END}. After an
+	 *  error it keeps emptying the queue so code generation can't block.
+	 */
+	protected void writeClasses() {
+		try {
+			for (STClass c = queue.take(); c!=END; c = queue.take()) {
+				if ( writeError==null ) {
+					try {
+						write(c);
+					}
+					catch (IOException|RuntimeException e) {
+						writeError = e;
+					}
+				}
+			}
+		}
+		catch (InterruptedException ie) {
+			writeError = ie;
+		}
+	}
+
+	protected void write(STClass c) throws IOException {
+		for (STCompiledBlock m : c.getCompiledMethods()) {
+			if ( linker!=null ) {
+				linker.link(m);
+			}
+			if ( verifier.verify(c, m, symtab.globals.size()) ) {
+				m.verified = true;
+			}
+		}
+		Files.write(Paths.get(dir, c.getName()+".sto"), c.serialize().toString().getBytes());
+		written++;
+	}
+}
@@ -0,0 +1,108 @@
+package smalltalk.compiler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** The primitives a method can bind with &lt;primitive:#Name&gt;, each
+ *  with a stable numeric ID: its index in {@link #primitives}. Compiled
+ *  primitive methods carry the ID so a VM can find the implementation
+ *  with an array index; the name is kept for debugging.
+ *
+ *  IDs are part of the object file format: append new primitives to the
+ *  end and never reorder or remove one. A VM's table of implementations
+ *  must use the same order (see {@link smalltalk.vm.Primitive}).
+ */
+public class Primitives {
+	public static class Definition {
+		public final String name;
+		public final int id;
+		/** Number of arguments, not counting the receiver */
+		public final int nargs;
+
+		public Definition(String name, int id, int nargs) {
+			this.name = name;
+			this.id = id;
+			this.nargs = nargs;
+		}
+
+		@Override
+		public String toString() {
+			return name+"#"+id;
+		}
+	}
+
+	/** Name and number of arguments of each primitive, indexed by ID */
+	protected static final Object[][] table = {
+		{"Object_Class_ERROR", 1},
+		{"Object_Class_BASICNEW", 0},
+		{"Object_PRINT", 0},
+		{"Object_CLASSNAME", 0},
+		{"Object_ASSTRING", 0},
+		{"Object_SAME", 1},
+		{"Object_HASH", 0},
+
+		{"BlockDescriptor_VALUE", 0},
+		{"BlockDescriptor_VALUE_1_ARG", 1},
+		{"BlockDescriptor_VALUE_2_ARGS", 2},
+
+		{"Character_Class_NEW", 1},
+		{"Character_ASINTEGER", 0},
+
+		{"String_Class_NEW", 1},
+		{"String_CAT", 1},
+		{"String_ASARRAY", 0},
+		{"String_EQ", 1},
+
+		{"Boolean_NOT", 0},
+		{"Boolean_IFTRUE", 1},
+		{"Boolean_IFTRUE_IFFALSE", 2},
+
+		{"Integer_ADD", 1},
+		{"Integer_SUB", 1},
+		{"Integer_MULT", 1},
+		{"Integer_DIV", 1},
+		{"Integer_LT", 1},
+		{"Integer_GT", 1},
+		{"Integer_LE", 1},
+		{"Integer_GE", 1},
+		{"Integer_EQ", 1},
+		{"Integer_MOD", 1},
+		{"Integer_ASFLOAT", 0},
+
+		{"Float_ADD", 1},
+		{"Float_SUB", 1},
+		{"Float_MULT", 1},
+		{"Float_DIV", 1},
+		{"Float_LT", 1},
+		{"Float_GT", 1},
+		{"Float_LE", 1},
+		{"Float_GE", 1},
+		{"Float_EQ", 1},
+		{"Float_ASINTEGER", 0},
+
+		{"Array_Class_NEW", 1},
+		{"Array_SIZE", 0},
+		{"Array_AT", 1},
+		{"Array_AT_PUT", 2},
+
+		{"TranscriptStream_SHOW", 1},
+	};
+
+	/** All primitives, indexed by ID */
+	public static final Definition[] primitives = new Definition[table.length];
+
+	protected static final Map<String,Definition> byName = new HashMap<>();
+
+	static {
+		for (int id = 0; id<table.length; id++) {
+			Definition p = new Definition((String) table[id][0], id, (Integer) table[id][1]);
+			primitives[id] = p;
+			byName.put(p.name, p);
+		}
+	}
+
+	/** Return the primitive with this name or null if there is none */
+	public static Definition lookup(String name) {
+		return byName.get(name);
+	}
+}
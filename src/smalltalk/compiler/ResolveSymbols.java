@@ -5,7 +5,9 @@ import org.antlr.symtab.VariableSymbol;
 import org.antlr.v4.runtime.Token;
 
 /** Set the symbol references in the parse tree nodes for ID and lvalues.
- *  Check that the left-hand side of assignments are variables. Other
+ *  Check that the left-hand side of assignments are variables and that
+ *  cascades have a receiver; these errors are found before any code is
+ *  generated, which may be later, in lazy mode. Other
  *  unknown symbols could simply be references to type names that will
  *  be compiled later. Mostly done to verify scopes/symbols in
  *  {@see smalltalk.compiler.test.TestIDLookup}.
@@ -25,6 +27,14 @@ public class ResolveSymbols extends SetScope {
 		ctx.sym = checkIDExists(ctx.getStart());
 	}
 
+	@Override
+	public void enterMessageExpression(SmalltalkParser.MessageExpressionContext ctx) {
+		if ( !ctx.cascadeMessage().isEmpty() && !CodeGenerator.canCascade(ctx.keywordExpression()) ) {
+			compiler.error("cascade needs a message to a receiver other than super in "+
+						   currentScope.toQualifierString(">>"));
+		}
+	}
+
 	public VariableSymbol checkIDExists(Token ID) {
 		Symbol sym = currentScope.resolve(ID.getText());
 		if ( sym==null ) {
@@ -1,17 +1,32 @@
 package smalltalk.compiler;
 
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
 import org.antlr.symtab.ClassSymbol;
 import org.antlr.symtab.Symbol;
 import org.antlr.v4.runtime.misc.Utils;
+import smalltalk.aot.AOTCompiler;
+import smalltalk.compiler.ir.PassManager;
 import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
 import smalltalk.compiler.symbols.STSymbolTable;
 
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 /** Smalltalk compiler.
  *
@@ -27,12 +42,31 @@ import java.nio.file.Paths;
  *  and it knows the main class to execute.
  */
 public class STC {
+	/** Written next to the .sto files for a linked program */
+	public static final String GLOBALS_FILE_NAME = "globals.json";
+
+	/** Written next to the .sto files for method bodies they share */
+	public static final String SHARED_FILE_NAME = "shared.json";
+
 	public static void main(String[] args) throws Exception {
 		int fi = 0;
 		boolean dbg = false;
 		boolean dis = false; // disassemble
+		boolean specialSends = true;
+		boolean aot = false;
+		boolean link = true;
+		boolean shake = false;
+		boolean cha = false;
+		boolean stats = false;
+		boolean quick = true;
+		boolean dedup = false;
+		boolean optimize = false;
+		boolean tail = false;
+		boolean pipeline = false;
+		String imageFileName = null;
+		boolean deflate = false;
 		String outputDir = ".";
-		String stFileName = null;
+		List<String> stFileNames = new ArrayList<>();
 
 		while (fi<args.length) {
 			switch ( args[fi] ) {
@@ -42,44 +76,273 @@ public class STC {
 				case "-dis" :
 					dis = true;
 					break;
+				case "-nospecial" :
+					specialSends = false;
+					break;
+				case "-aot" :
+					aot = true;
+					break;
+				case "-nolink" :
+					link = false;
+					break;
+				case "-shake" :
+					shake = true;
+					break;
+				case "-cha" :
+					cha = true;
+					break;
+				case "-stats" :
+					stats = true;
+					break;
+				case "-noquick" :
+					quick = false;
+					break;
+				case "-dedup" :
+					dedup = true;
+					break;
+				case "-O" :
+					optimize = true;
+					break;
+				case "-tail" :
+					tail = true;
+					break;
+				case "-pipeline" :
+					pipeline = true;
+					break;
+				case "-image" :
+					fi++;
+					imageFileName = args[fi];
+					break;
+				case "-deflate" :
+					deflate = true;
+					break;
 				case "-o" :
 					fi++;
 					outputDir = args[fi];
 					break;
 				default :
-					stFileName = args[fi];
+					stFileNames.add(args[fi]);
 					break;
 			}
 			fi++;
 		}
 
-		if ( stFileName==null ) {
-			System.err.println("$ java smalltalk.compiler.STC [-dis] [-o outputdir] file.st");
+		if ( stats ) {
+			watchHeap();
+		}
+		if ( stFileNames.isEmpty() ) {
+			System.err.println("$ java smalltalk.compiler.STC [-dis] [-dbg] [-nospecial] [-aot] [-nolink] [-shake] [-cha] [-stats] [-noquick] [-dedup] [-O] [-tail] [-pipeline] [-image file.sti [-deflate]] [-o outputdir] file.st...");
 			System.exit(1);
 		}
-		STSymbolTable symtab = compile(stFileName, dbg);
-		writeObjectFiles(outputDir, stFileName, symtab);
+		if ( pipeline && (shake || cha || dedup || imageFileName!=null) ) {
+			System.err.println("-pipeline writes classes as they are compiled so it can't be used with -shake, -cha, -dedup or -image");
+			System.exit(1);
+		}
+		// Compile all files into one symbol table so they share selector IDs
+		STSymbolTable symtab = new STSymbolTable();
+		PassManager optimizer = optimize ? PassManager.standard() : null;
+		List<Compiler> compilers = new ArrayList<>();
+		for (String f : stFileNames) {
+			Compiler c = new Compiler(symtab);
+			c.genDbg = dbg;
+			c.genSpecialSends = specialSends;
+			c.genQuickMethods = quick;
+			c.genTailSends = tail;
+			c.optimizer = optimizer;
+			if ( pipeline ) {
+				compilers.add(c);
+			}
+			else {
+				compile(c, f);
+			}
+		}
+		String stFileName = stFileNames.get(stFileNames.size()-1);
+		if ( pipeline ) {
+			new Pipeline(symtab, outputDir, link).compile(compilers, stFileNames);
+		}
+		if ( optimizer!=null ) {
+			System.out.print(optimizer.getReport());
+		}
+		if ( shake ) {
+			TreeShaker shaker = new TreeShaker(symtab);
+			shaker.shake();
+			System.out.print(shaker.getReport());
+		}
+		if ( cha ) {
+			Devirtualizer devirtualizer = new Devirtualizer(symtab);
+			devirtualizer.devirtualize();
+			System.out.printf("devirtualized %d of %d sends%n", devirtualizer.rewritten, devirtualizer.sends);
+		}
+		if ( link && !pipeline ) {
+			link(symtab);
+		}
+		if ( !pipeline ) {
+			verify(symtab);
+		}
+		if ( stats ) {
+			System.out.print(getStats(symtab));
+		}
+		Deduplicator deduplicator = null;
+		if ( dedup ) {
+			deduplicator = new Deduplicator(symtab);
+			deduplicator.dedup();
+			System.out.print(deduplicator.getReport());
+		}
+		if ( imageFileName!=null ) {
+			ImageArchive.write(Paths.get(outputDir, imageFileName), symtab, deduplicator, deflate);
+		}
+		else if ( !pipeline ) {
+			writeObjectFiles(outputDir, stFileName, symtab, deduplicator);
+		}
+		if ( aot ) {
+			writeJar(outputDir, stFileName, symtab);
+		}
 		if ( dis ) {
 			disassembleOutput(outputDir, stFileName, symtab);
 		}
+		if ( stats ) {
+			System.gc();
+			// notifications of the collection may not have arrived yet
+			peakLiveHeap = Math.max(peakLiveHeap, liveHeapAfterGc());
+			System.out.printf("peak heap after gc: %.1f MB%n", peakLiveHeap/(1024.0*1024.0));
+		}
+	}
+
+	/** The most heap in use just after a garbage collection, in bytes,
+	 *  since {@link #watchHeap()}; what a program's data needed at most.
+	 */
+	protected static volatile long peakLiveHeap;
+
+	protected static boolean watchingHeap;
+
+	/** Start tracking {@link #peakLiveHeap} from zero */
+	public static synchronized void watchHeap() {
+		peakLiveHeap = 0;
+		if ( watchingHeap ) {
+			return;
+		}
+		watchingHeap = true;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			((NotificationEmitter) gc).addNotificationListener((n, handback) -> {
+				if ( !n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION) ) {
+					return;
+				}
+				GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData) n.getUserData()).getGcInfo();
+				long used = 0;
+				for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+					MemoryUsage after = info.getMemoryUsageAfterGc().get(pool.getName());
+					if ( pool.getType()==MemoryType.HEAP && after!=null ) {
+						used += after.getUsed();
+					}
+				}
+				peakLiveHeap = Math.max(peakLiveHeap, used);
+			}, null, null);
+		}
 	}
 
+	/** Return the heap in use just after the last collection of each heap pool */
+	public static long liveHeapAfterGc() {
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			MemoryUsage after = pool.getCollectionUsage();
+			if ( pool.getType()==MemoryType.HEAP && after!=null ) {
+				used += after.getUsed();
+			}
+		}
+		return used;
+	}
+
+	/** Write the disassembly of every class to file-teststring.txt in dir,
+	 *  where file is the last component of stFileName.
+	 */
 	public static void disassembleOutput(String dir, String stFileName, STSymbolTable symtab) throws IOException {
-		for (Symbol s : symtab.GLOBALS.getSymbols()) {
-			if ( s instanceof ClassSymbol ) {
-				String obj = ((STClass) s).toTestString();
-				Files.write(Paths.get(dir, stFileName+"-teststring.txt"), obj.getBytes());
+		String baseName = Paths.get(stFileName).getFileName().toString();
+		try (Writer out = Files.newBufferedWriter(Paths.get(dir, baseName+"-teststring.txt"))) {
+			new Disassembler(out).disassemble(symtab);
+		}
+	}
+
+	/** Return counts of classes, methods and code in a program, breaking
+	 *  down quick methods by kind.
+	 */
+	public static String getStats(STSymbolTable symtab) {
+		int nclasses = 0, nmethods = 0, nprimitives = 0, nquick = 0, nbytes = 0;
+		int[] quickCounts = new int[Bytecode.quickKinds.length];
+		for (STClass c : symtab.getClasses()) {
+			nclasses++;
+			for (STCompiledBlock m : c.getCompiledMethods()) {
+				nmethods++;
+				if ( m.primitiveName!=null ) nprimitives++;
+				if ( m.isQuick() ) nquick++;
+				quickCounts[m.quickKind]++;
+				nbytes += TreeShaker.codeSize(m);
+			}
+		}
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("classes: %d%n", nclasses));
+		buf.append(String.format("methods: %d (%d primitive, %d quick)%n", nmethods, nprimitives, nquick));
+		buf.append("quick methods:");
+		for (int k = Bytecode.QUICK_NONE+1; k<quickCounts.length; k++) {
+			if ( quickCounts[k]>0 ) {
+				buf.append(' ').append(Bytecode.quickKinds[k]).append('=').append(quickCounts[k]);
 			}
 		}
+		buf.append(String.format("%nbytecode: %d bytes%n", nbytes));
+		return buf.toString();
 	}
 
 	public static void writeObjectFiles(String dir, String stFileName, STSymbolTable symtab) throws IOException {
+		writeObjectFiles(dir, stFileName, symtab, null);
+	}
+
+	/** Write a .sto file per class. Given a deduplicator that has run,
+	 *  write classes with references to shared method bodies and the
+	 *  bodies to {@link #SHARED_FILE_NAME}.
+	 */
+	public static void writeObjectFiles(String dir, String stFileName, STSymbolTable symtab, Deduplicator dedup) throws IOException {
 		for (Symbol s : symtab.GLOBALS.getSymbols()) {
 			if ( s instanceof ClassSymbol ) {
-				String obj = ((STClass) s).serialize().toString();
+				STClass c = (STClass) s;
+				String obj = (dedup!=null ? dedup.serialize(c) : c.serialize()).toString();
 				Files.write(Paths.get(dir, s.getName()+".sto"), obj.getBytes());
 			}
 		}
+		if ( symtab.globals.size()>0 ) {
+			Files.write(Paths.get(dir, GLOBALS_FILE_NAME), symtab.serializeGlobals().toString().getBytes());
+		}
+		if ( dedup!=null && dedup.shared.size()>0 ) {
+			Files.write(Paths.get(dir, SHARED_FILE_NAME), dedup.serializeShared().toString().getBytes());
+		}
+	}
+
+	/** Link a whole program, throwing an exception listing any unresolved
+	 *  globals; see {@link Linker}.
+	 */
+	public static void link(STSymbolTable symtab) {
+		Linker linker = new Linker(symtab);
+		linker.link();
+		if ( linker.errors.size()>0 ) {
+			throw new RuntimeException("link errors: "+linker.errors.toString(),null);
+		}
+	}
+
+	/** Verify all compiled code, marking it so the VM needn't check it
+	 *  again, and throw an exception listing any errors; see
+	 *  {@link Verifier}.
+	 */
+	public static void verify(STSymbolTable symtab) {
+		Verifier verifier = new Verifier();
+		if ( verifier.verify(symtab)>0 ) {
+			throw new RuntimeException("verify errors: "+verifier.errors.toString(),null);
+		}
+	}
+
+	/** Translate all classes to JVM bytecode in a jar named after the
+	 *  source file, next to the .sto files; see {@link AOTCompiler}.
+	 */
+	public static void writeJar(String dir, String stFileName, STSymbolTable symtab) throws IOException {
+		String base = Paths.get(stFileName).getFileName().toString().replaceFirst("\\.st$", "");
+		AOTCompiler.writeJar(Paths.get(dir, base+".jar").toString(), new AOTCompiler().translate(symtab));
 	}
 
 	public static STSymbolTable compile(String fileName, boolean genDbg) {
@@ -97,7 +360,12 @@ public class STC {
 			c = new Compiler();
 		}
 		c.genDbg = genDbg;
+		return compile(c, fileName);
+	}
 
+	/** Compile a file with a compiler whose options have already been set */
+	public static STSymbolTable compile(Compiler c, String fileName) {
+		STSymbolTable symtab;
 		URL imageURL = getFileURL(fileName);
 		try {
 			fileName = Paths.get(fileName).getFileName().toString();
@@ -0,0 +1,217 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.MethodSymbol;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Drop the classes and methods a whole program can't reach from
+ *  MainClass>>main so the image prelude isn't shipped in full.
+ *
+ *  A class is live if live code names it, if it is the superclass of a
+ *  live class, or if the VM uses it directly (see {@link #VM_CLASSES}).
+ *  A selector is live if live code sends it or the VM sends it (see
+ *  {@link #VM_SELECTORS}). A method is live if its class and its selector
+ *  are. This ignores receiver types so it keeps every live class's
+ *  implementation of a sent selector. Both sets grow from main in a
+ *  worklist until nothing new is found; each method is scanned once.
+ *
+ *  Shake before linking so the global table and selector-indexed method
+ *  tables only cover what remains. Literals used only by dropped methods
+ *  stay in their class's string table. Methods a lazy compiler deferred
+ *  are only generated if live; the byte counts in {@link #getReport()}
+ *  cover generated code.
+ */
+public class TreeShaker {
+	/** Classes the VM instantiates itself for literals, blocks and results */
+	public static final String[] VM_CLASSES = {
+		"Object", "UndefinedObject", "Boolean", "Integer", "Float", "Character",
+		"String", "Array", "BlockDescriptor"
+	};
+
+	/** Selectors the VM sends itself: main to start and asString to print */
+	public static final String[] VM_SELECTORS = { "main", "asString" };
+
+	protected final STSymbolTable symtab;
+
+	public final Set<STClass> liveClasses = new LinkedHashSet<>();
+	public final Set<String> liveSelectors = new HashSet<>();
+	protected final Set<STCompiledBlock> liveMethods = new HashSet<>();
+
+	/** Methods in any class by selector, to find implementors when a
+	 *  selector becomes live.
+	 */
+	protected Map<String,List<STClass>> implementors;
+
+	protected final Deque<STCompiledBlock> work = new ArrayDeque<>();
+
+	public final List<String> removedClasses = new ArrayList<>();
+
+	/** Methods removed from classes that were kept */
+	public final List<String> removedMethods = new ArrayList<>();
+
+	protected int classesBefore, methodsBefore, methodsRemoved, bytesBefore, bytesRemoved;
+
+	public TreeShaker(STSymbolTable symtab) {
+		this.symtab = symtab;
+	}
+
+	/** Find what main reaches, remove the rest from the symbol table and
+	 *  return the number of methods removed.
+	 */
+	public int shake() {
+		symtab.checkNoPrelude("shaking");
+		if ( symtab.globals.size()>0 ) {
+			throw new IllegalStateException("shake the program before linking it");
+		}
+		STClass mainClass = (STClass) symtab.GLOBALS.resolve("MainClass");
+		if ( mainClass==null || mainClass.resolveMethod("main")==null ) {
+			throw new IllegalStateException("no MainClass>>main to start from");
+		}
+		implementors = symtab.getImplementors();
+		for (String name : VM_CLASSES) {
+			markGlobal(name);
+		}
+		markClass(mainClass);
+		for (String selector : VM_SELECTORS) {
+			markSelector(selector);
+		}
+		while ( !work.isEmpty() ) {
+			scan(work.pop());
+		}
+		remove();
+		return methodsRemoved;
+	}
+
+	protected void markGlobal(String name) {
+		for (String[] g : Linker.PREDEFINED_GLOBALS) {
+			if ( g[0].equals(name) ) {
+				name = g[1];
+			}
+		}
+		if ( symtab.GLOBALS.resolve(name) instanceof STClass ) {
+			markClass((STClass) symtab.GLOBALS.resolve(name));
+		}
+	}
+
+	protected void markClass(STClass c) {
+		if ( !liveClasses.add(c) ) {
+			return;
+		}
+		for (MethodSymbol m : c.getDefinedMethods()) {
+			if ( liveSelectors.contains(m.getName()) ) {
+				markMethod(((STMethod) m).getCompiledBlock());
+			}
+		}
+		if ( c.getSuperClassScope() instanceof STClass ) {
+			markClass((STClass) c.getSuperClassScope());
+		}
+	}
+
+	protected void markSelector(String selector) {
+		if ( !liveSelectors.add(selector) ) {
+			return;
+		}
+		for (STClass c : implementors.getOrDefault(selector, new ArrayList<>())) {
+			if ( liveClasses.contains(c) ) {
+				markMethod(c.resolveMethod(selector).getCompiledBlock());
+			}
+		}
+	}
+
+	protected void markMethod(STCompiledBlock m) {
+		if ( m!=null && liveMethods.add(m) ) {
+			work.push(m);
+		}
+	}
+
+	/** Mark the selectors sent and the globals named by a method and its blocks */
+	protected void scan(STCompiledBlock m) {
+		scanCode(m);
+		if ( m.blocks!=null ) {
+			for (STCompiledBlock blk : m.blocks) {
+				scanCode(blk);
+			}
+		}
+	}
+
+	protected void scanCode(STCompiledBlock blk) {
+		byte[] code = blk.bytecode;
+		int ip = 0;
+		while ( code!=null && ip<code.length ) {
+			int opcode = code[ip];
+			if ( Bytecode.isSend(opcode) ) {
+				markSelector(blk.getSelector(ip));
+			}
+			else if ( opcode==Bytecode.PUSH_GLOBAL ) {
+				markGlobal(blk.enclosingClass.stringTable.get(Bytecode.getShort(code, ip+1)));
+			}
+			ip += Bytecode.instructionSize(opcode);
+		}
+	}
+
+	protected void remove() {
+		for (STClass c : symtab.getClasses()) {
+			classesBefore++;
+			for (MethodSymbol m : new ArrayList<>(c.getDefinedMethods())) {
+				methodsBefore++;
+				if ( ((STMethod) m).pendingCodeGen!=null ) {
+					// deferred by a lazy compiler and never reached, so never generated
+					methodsRemoved++;
+					if ( liveClasses.contains(c) ) {
+						removedMethods.add(m.getQualifiedName(">>"));
+						c.removeMethod(m.getName());
+					}
+					continue;
+				}
+				STCompiledBlock blk = ((STMethod) m).compiledBlock;
+				bytesBefore += codeSize(blk);
+				if ( !liveClasses.contains(c) || !liveMethods.contains(blk) ) {
+					methodsRemoved++;
+					bytesRemoved += codeSize(blk);
+					if ( liveClasses.contains(c) ) {
+						removedMethods.add(blk.qualifiedName);
+						c.removeMethod(m.getName());
+					}
+				}
+			}
+			if ( !liveClasses.contains(c) ) {
+				removedClasses.add(c.getName());
+				symtab.removeClass(c.getName());
+			}
+		}
+	}
+
+	/** Return the number of bytes of code in m and its nested blocks */
+	public static int codeSize(STCompiledBlock m) {
+		int n = m.bytecode!=null ? m.bytecode.length : 0;
+		if ( m.blocks!=null ) {
+			for (STCompiledBlock blk : m.blocks) {
+				n += codeSize(blk);
+			}
+		}
+		return n;
+	}
+
+	/** Return a summary of what {@link #shake()} removed */
+	public String getReport() {
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("kept %d of %d classes, %d of %d methods, %d of %d bytes of code\n",
+								 classesBefore-removedClasses.size(), classesBefore,
+								 methodsBefore-methodsRemoved, methodsBefore,
+								 bytesBefore-bytesRemoved, bytesBefore));
+		buf.append("removed classes: ").append(String.join(", ", removedClasses)).append('\n');
+		buf.append("removed methods: ").append(String.join(", ", removedMethods)).append('\n');
+		return buf.toString();
+	}
+}
@@ -0,0 +1,339 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.MethodSymbol;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Check compiled code once so the interpreter can execute it without
+ *  checking operands as it goes.
+ *
+ *  For each method and its nested blocks, every opcode must be defined
+ *  in {@link Bytecode#instructions} and its operands must lie within the
+ *  code. Literal, field, global slot and block operands must index
+ *  existing entries, and PUSH_LOCAL/STORE_LOCAL must name a variable of
+ *  a lexically enclosing block or method. A block's enclosing code is the
+ *  code holding the BLOCK instruction that creates it. The operand stack
+ *  must never go below empty, and code must return before it ends.
+ *  Instructions after a return can't run so only their operands are
+ *  checked. Each send instruction must have exactly one entry in the
+ *  block's send sites, which list the sends in order, and one global
+ *  selector ID per site, as the VM indexes its caches by site.
+ *
+ *  There are no jumps, so each block is checked in a single forward pass
+ *  over its instructions, after one pass over the whole method finds the
+ *  enclosing code of each block. Work is linear in the size of the code.
+ *
+ *  The checks are on plain arrays so the VM can verify code it loads
+ *  without a "verified" flag.
+ */
+public class Verifier {
+	public final List<String> errors = new ArrayList<>();
+
+	/** Verify every method of every class in a compiled program and mark
+	 *  those that pass as verified. Return the number that failed.
+	 */
+	public int verify(STSymbolTable symtab) {
+		int failed = 0;
+		for (STClass c : symtab.getClasses()) {
+			for (MethodSymbol m : c.getDefinedMethods()) {
+				STCompiledBlock method = ((STMethod) m).getCompiledBlock();
+				if ( verify(c, method, symtab.globals.size()) ) {
+					method.verified = true;
+				}
+				else {
+					failed++;
+				}
+			}
+		}
+		return failed;
+	}
+
+	public boolean verify(STClass c, STCompiledBlock method, int nglobals) {
+		int nblocks = method.blocks!=null ? method.blocks.length : 0;
+		String[] names = new String[nblocks+1];
+		byte[][] code = new byte[nblocks+1][];
+		int[] nvars = new int[nblocks+1];
+		int[][] sites = new int[nblocks+1][];
+		int[] nselectors = new int[nblocks+1];
+		for (int i = 0; i<=nblocks; i++) {
+			STCompiledBlock blk = i==0 ? method : method.blocks[i-1];
+			names[i] = blk.qualifiedName;
+			code[i] = blk.bytecode;
+			nvars[i] = blk.nargs+blk.nlocals;
+			sites[i] = blk.sendSites;
+			nselectors[i] = blk.sendSelectors.length;
+		}
+		return verify(names, code, nvars, sites, nselectors,
+					  c.stringTable.size(), c.constants.size(), c.getNumberOfFields(), nglobals);
+	}
+
+	/** Verify a method and its nested blocks. Element 0 of each array
+	 *  describes the method and element i+1 describes block i; nvars
+	 *  counts arguments plus locals. Null or empty code, as for a
+	 *  primitive, is skipped. Return true if there were no errors.
+	 */
+	public boolean verify(String[] names, byte[][] code, int[] nvars,
+						  int nliterals, int nfields, int nglobals)
+	{
+		return verify(names, code, nvars, nliterals, 0, nfields, nglobals);
+	}
+
+	/** Verify code whose class has nconstants literal arrays */
+	public boolean verify(String[] names, byte[][] code, int[] nvars,
+						  int nliterals, int nconstants, int nfields, int nglobals)
+	{
+		return verify(names, code, nvars, null, null, nliterals, nconstants, nfields, nglobals);
+	}
+
+	/** Verify code along with its send sites: sites[k] holds the address
+	 *  of each send in code[k] and nselectors[k] how many selector IDs
+	 *  code[k] has. Null sites skips the send site checks.
+	 */
+	public boolean verify(String[] names, byte[][] code, int[] nvars, int[][] sites, int[] nselectors,
+						  int nliterals, int nconstants, int nfields, int nglobals)
+	{
+		int before = errors.size();
+		int[] enclosing = new int[code.length];
+		Arrays.fill(enclosing, -1);
+		for (int k = 0; k<code.length; k++) {
+			if ( !decode(names, code, k, enclosing) ) {
+				return false; // can't find instruction boundaries
+			}
+		}
+		int[] depth = nestingDepths(names, enclosing);
+		if ( depth==null ) {
+			return false;
+		}
+		for (int k = 0; k<code.length; k++) {
+			if ( code[k]!=null && code[k].length>0 ) {
+				checkOperands(names[k], code[k], k, enclosing, depth, nvars, nliterals, nconstants, nfields, nglobals);
+			}
+			if ( sites!=null ) {
+				checkSendSites(names[k], code[k], sites[k], nselectors[k]);
+			}
+		}
+		return errors.size()==before;
+	}
+
+	/** Check opcodes and instruction lengths in code[k] and record which
+	 *  block each BLOCK instruction creates.
+	 */
+	protected boolean decode(String[] names, byte[][] code, int k, int[] enclosing) {
+		byte[] c = code[k];
+		int ip = 0;
+		while ( c!=null && ip<c.length ) {
+			int opcode = c[ip];
+			if ( opcode<=0 || opcode>=Bytecode.instructions.length || Bytecode.instructions[opcode]==null ) {
+				error(names[k], ip, "invalid opcode "+opcode);
+				return false;
+			}
+			int size = Bytecode.instructionSize(opcode);
+			if ( ip+size>c.length ) {
+				error(names[k], ip, Bytecode.instructions[opcode].name+" runs past the end of the code");
+				return false;
+			}
+			if ( opcode==Bytecode.BLOCK ) {
+				int b = Bytecode.getShort(c, ip+1);
+				if ( b+1<code.length ) {
+					if ( enclosing[b+1]>=0 && enclosing[b+1]!=k ) {
+						error(names[k], ip, "block "+b+" is also created in "+names[enclosing[b+1]]);
+					}
+					enclosing[b+1] = k;
+				}
+			}
+			ip += size;
+		}
+		return true;
+	}
+
+	/** Return how many scopes enclose each block, -1 for blocks that are
+	 *  never created, or null if a block (indirectly) creates itself.
+	 */
+	protected int[] nestingDepths(String[] names, int[] enclosing) {
+		int[] depth = new int[enclosing.length];
+		for (int k = 1; k<enclosing.length; k++) {
+			int d = 1;
+			int e = enclosing[k];
+			while ( e>0 ) {
+				e = enclosing[e];
+				if ( ++d>=enclosing.length ) {
+					errors.add(names[k]+": block is nested within itself");
+					return null;
+				}
+			}
+			depth[k] = e==0 ? d : -1;
+		}
+		return depth;
+	}
+
+	protected void checkOperands(String name, byte[] c, int k, int[] enclosing, int[] depth, int[] nvars,
+								 int nliterals, int nconstants, int nfields, int nglobals)
+	{
+		int sp = 0;
+		int ip = 0;
+		boolean reachable = true; // code after a return never runs
+		while ( ip<c.length ) {
+			int opcode = c[ip];
+			int pops = 0;
+			int pushes = 0;
+			switch ( opcode ) {
+				case Bytecode.NIL :
+				case Bytecode.SELF :
+				case Bytecode.TRUE :
+				case Bytecode.FALSE :
+				case Bytecode.PUSH_CHAR :
+				case Bytecode.PUSH_INT :
+				case Bytecode.PUSH_FLOAT :
+					pushes = 1;
+					break;
+				case Bytecode.PUSH_FIELD :
+					checkIndex(name, ip, "field", Bytecode.getShort(c, ip+1), nfields);
+					pushes = 1;
+					break;
+				case Bytecode.STORE_FIELD :
+					checkIndex(name, ip, "field", Bytecode.getShort(c, ip+1), nfields);
+					pops = pushes = 1;
+					break;
+				case Bytecode.PUSH_LOCAL :
+				case Bytecode.STORE_LOCAL : {
+					int delta = Bytecode.getShort(c, ip+1);
+					int index = Bytecode.getShort(c, ip+3);
+					if ( depth[k]<0 && delta>0 ) {
+						error(name, ip, "outer variable in a block that is never created");
+					}
+					else if ( delta>Math.max(depth[k], 0) ) {
+						error(name, ip, "no enclosing scope "+delta+" levels out");
+					}
+					else {
+						int scope = k;
+						for (int i = 0; i<delta; i++) scope = enclosing[scope];
+						checkIndex(name, ip, "local", index, nvars[scope]);
+					}
+					if ( opcode==Bytecode.STORE_LOCAL ) pops = 1;
+					pushes = 1;
+					break;
+				}
+				case Bytecode.PUSH_LITERAL :
+				case Bytecode.PUSH_GLOBAL :
+					checkIndex(name, ip, "literal", Bytecode.getShort(c, ip+1), nliterals);
+					pushes = 1;
+					break;
+				case Bytecode.PUSH_GLOBAL_SLOT :
+					checkIndex(name, ip, "global slot", Bytecode.getShort(c, ip+1), nglobals);
+					pushes = 1;
+					break;
+				case Bytecode.PUSH_CONSTANT :
+					checkIndex(name, ip, "constant", Bytecode.getShort(c, ip+1), nconstants);
+					pushes = 1;
+					break;
+				case Bytecode.PUSH_ARRAY :
+					pops = Bytecode.getShort(c, ip+1);
+					pushes = 1;
+					break;
+				case Bytecode.POP :
+					pops = 1;
+					break;
+				case Bytecode.DUP :
+					pops = 1;
+					pushes = 2;
+					break;
+				case Bytecode.SEND_DIRECT :
+				case Bytecode.SEND_SUPER_DIRECT :
+					checkIndex(name, ip, "literal", Bytecode.getShort(c, ip+5), nliterals);
+					// fall through
+				case Bytecode.SEND :
+				case Bytecode.SEND_TAIL :
+				case Bytecode.SEND_SUPER :
+					checkIndex(name, ip, "literal", Bytecode.getShort(c, ip+3), nliterals);
+					if ( opcode==Bytecode.SEND_TAIL ) {
+						checkTail(name, c, ip, k==0 ? Bytecode.RETURN : Bytecode.BLOCK_RETURN);
+					}
+					pops = Bytecode.getShort(c, ip+1)+1; // args and receiver
+					pushes = 1;
+					break;
+				case Bytecode.BLOCK :
+					checkIndex(name, ip, "block", Bytecode.getShort(c, ip+1), nvars.length-1);
+					pushes = 1;
+					break;
+				case Bytecode.BLOCK_RETURN :
+				case Bytecode.RETURN :
+					pops = 1;
+					break;
+				case Bytecode.DBG :
+					checkIndex(name, ip, "literal", Bytecode.getShort(c, ip+1), nliterals);
+					break;
+				default : // special-selector sends
+					pops = 2;
+					pushes = 1;
+					break;
+			}
+			if ( reachable ) {
+				if ( sp<pops ) {
+					error(name, ip, Bytecode.instructions[opcode].name+" needs "+pops+" operands but the stack has "+sp);
+					return;
+				}
+				sp += pushes-pops;
+				reachable = opcode!=Bytecode.RETURN && opcode!=Bytecode.BLOCK_RETURN;
+			}
+			ip += Bytecode.instructionSize(opcode);
+		}
+		if ( reachable ) {
+			errors.add(name+": code runs off the end without returning");
+		}
+	}
+
+	/** Match the sends in c, whose instructions decode, against its send
+	 *  sites in a single pass as both are in address order.
+	 */
+	protected void checkSendSites(String name, byte[] c, int[] sites, int nselectors) {
+		int s = 0;
+		int ip = 0;
+		while ( c!=null && ip<c.length ) {
+			int opcode = c[ip];
+			for (; s<sites.length && sites[s]<ip; s++) {
+				error(name, sites[s], "send site "+s+" isn't at a send");
+			}
+			if ( Bytecode.isSend(opcode) ) {
+				if ( s<sites.length && sites[s]==ip ) {
+					s++;
+				}
+				else {
+					error(name, ip, Bytecode.instructions[opcode].name+" has no send site");
+				}
+			}
+			ip += Bytecode.instructionSize(opcode);
+		}
+		for (; s<sites.length; s++) {
+			error(name, sites[s], "send site "+s+" isn't at a send");
+		}
+		if ( nselectors!=sites.length ) {
+			errors.add(name+": "+nselectors+" send selectors for "+sites.length+" send sites");
+		}
+	}
+
+	/** A VM runs the method a SEND_TAIL calls in place of its sender, so
+	 *  the sender must return the result right away.
+	 */
+	protected void checkTail(String name, byte[] c, int ip, int ret) {
+		int next = ip+Bytecode.instructionSize(Bytecode.SEND_TAIL);
+		if ( next>=c.length || c[next]!=ret ) {
+			error(name, ip, "send_tail isn't followed by "+Bytecode.instructions[ret].name);
+		}
+	}
+
+	protected void checkIndex(String name, int ip, String what, int index, int n) {
+		if ( index>=n ) {
+			error(name, ip, what+" "+index+" out of range 0.."+(n-1));
+		}
+	}
+
+	protected void error(String name, int ip, String msg) {
+		errors.add(name+" at "+ip+": "+msg);
+	}
+}
@@ -0,0 +1,33 @@
+package smalltalk.compiler.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A run of instructions that execute in order. The bytecode has no
+ *  branches, so a function's first block is its only entry; each block
+ *  after it starts just past a return and is dead code the code
+ *  generator leaves as a failsafe.
+ */
+public class BasicBlock {
+	public final int index;
+
+	public final List<Instr> instrs = new ArrayList<>();
+
+	public BasicBlock(int index) {
+		this.index = index;
+	}
+
+	public String toString(String[] literals) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("B").append(index).append(":\n");
+		for (Instr I : instrs) {
+			buf.append("    ").append(I.toString(literals)).append('\n');
+		}
+		return buf.toString();
+	}
+
+	@Override
+	public String toString() {
+		return toString(null);
+	}
+}
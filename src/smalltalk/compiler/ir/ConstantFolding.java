@@ -0,0 +1,62 @@
+package smalltalk.compiler.ir;
+
+import smalltalk.compiler.Bytecode;
+
+import java.util.Map;
+
+/** Evaluate special-selector sends whose operands are integer constants
+ *  used nowhere else. A VM computes these on small integers without
+ *  sending anything, so the result doesn't depend on the image; this
+ *  folds exactly the cases its fast path handles, which excludes
+ *  division by zero.
+ */
+public class ConstantFolding implements Pass {
+	@Override
+	public String getName() { return "constant folding"; }
+
+	@Override
+	public int run(IRFunction f) {
+		int n = 0;
+		Map<Instr,Integer> uses = f.countUses();
+		for (Instr I : f.instructions()) {
+			if ( !Bytecode.isSpecialSend(I.opcode) ) continue;
+			Instr a = I.args.get(0);
+			Instr b = I.args.get(1);
+			if ( a.opcode!=Bytecode.PUSH_INT || b.opcode!=Bytecode.PUSH_INT ||
+				 uses.get(a)!=1 || uses.get(b)!=1 )
+			{
+				continue;
+			}
+			Instr result = fold(f, I.opcode, a.operands[0], b.operands[0]);
+			if ( result!=null ) {
+				f.remove(a);
+				f.remove(b);
+				I.args.clear();
+				f.replace(I, result);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	protected Instr fold(IRFunction f, int opcode, int x, int y) {
+		switch ( opcode ) {
+			case Bytecode.ADD : return f.newInstr(Bytecode.PUSH_INT, x+y);
+			case Bytecode.SUB : return f.newInstr(Bytecode.PUSH_INT, x-y);
+			case Bytecode.MUL : return f.newInstr(Bytecode.PUSH_INT, x*y);
+			case Bytecode.DIV : return y!=0 ? f.newInstr(Bytecode.PUSH_INT, x/y) : null;
+			case Bytecode.LT : return bool(f, x<y);
+			case Bytecode.GT : return bool(f, x>y);
+			case Bytecode.LE : return bool(f, x<=y);
+			case Bytecode.GE : return bool(f, x>=y);
+			case Bytecode.EQ :
+			case Bytecode.SAME : return bool(f, x==y);
+			case Bytecode.NE : return bool(f, x!=y);
+		}
+		return null;
+	}
+
+	protected Instr bool(IRFunction f, boolean b) {
+		return f.newInstr(b ? Bytecode.TRUE : Bytecode.FALSE);
+	}
+}
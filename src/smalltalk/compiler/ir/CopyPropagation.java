@@ -0,0 +1,50 @@
+package smalltalk.compiler.ir;
+
+import smalltalk.compiler.Bytecode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Replace reads of tracked locals with what they read, where that can
+ *  be pushed again: a constant stored in the local, nil for a local not
+ *  yet stored, or another local that still holds the same value. Block
+ *  constants aren't repeated since each push makes a new closure.
+ */
+public class CopyPropagation implements Pass {
+	@Override
+	public String getName() { return "copy propagation"; }
+
+	@Override
+	public int run(IRFunction f) {
+		int n = 0;
+		Map<Integer,Instr> lastStore = new HashMap<>();
+		for (Instr I : f.instructions()) {
+			if ( I.opcode==Bytecode.STORE_LOCAL && I.operands[0]==0 ) {
+				lastStore.put(I.operands[1], I);
+			}
+			if ( !I.tracked ) continue;
+			Instr copy = null;
+			if ( I.def==null ) {
+				if ( I.operands[1]>=f.blk.nargs ) {
+					copy = f.newInstr(Bytecode.NIL);
+				}
+			}
+			else {
+				Instr value = I.def.args.get(0);
+				if ( value.isConstant() && value.opcode!=Bytecode.BLOCK ) {
+					copy = f.newInstr(value.opcode, value.operands);
+				}
+				else if ( value.tracked && lastStore.get(value.operands[1])==value.def ) {
+					copy = f.newInstr(Bytecode.PUSH_LOCAL, value.operands);
+					copy.tracked = true;
+					copy.def = value.def;
+				}
+			}
+			if ( copy!=null ) {
+				f.replace(I, copy);
+				n++;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,43 @@
+package smalltalk.compiler.ir;
+
+import smalltalk.compiler.Bytecode;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Remove stores to tracked locals that no read sees, then pops of pure
+ *  values used nowhere else along with the instructions that pushed them.
+ */
+public class DeadStoreElimination implements Pass {
+	@Override
+	public String getName() { return "dead store elimination"; }
+
+	@Override
+	public int run(IRFunction f) {
+		int n = 0;
+		Set<Instr> read = new HashSet<>();
+		for (Instr I : f.instructions()) {
+			if ( I.def!=null ) {
+				read.add(I.def);
+			}
+		}
+		for (Instr I : f.instructions()) {
+			if ( I.opcode==Bytecode.STORE_LOCAL && I.operands[0]==0 && f.isTracked(I.operands[1]) &&
+				 !read.contains(I) )
+			{
+				f.remove(I);
+				n++;
+			}
+		}
+		Map<Instr,Integer> uses = f.countUses();
+		for (Instr I : f.instructions()) {
+			if ( I.opcode==Bytecode.POP && I.args.get(0).isPure() && uses.get(I.args.get(0))==1 ) {
+				f.remove(I.args.get(0));
+				f.remove(I);
+				n++;
+			}
+		}
+		return n;
+	}
+}
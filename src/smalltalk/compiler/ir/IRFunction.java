@@ -0,0 +1,212 @@
+package smalltalk.compiler.ir;
+
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Code;
+import smalltalk.compiler.symbols.STCompiledBlock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The code of one method or block in SSA form, built from its bytecode
+ *  by simulating the operand stack: each instruction refers to the
+ *  instructions that computed its operands rather than to stack slots,
+ *  and each read of a tracked local refers to the store it sees.
+ *
+ *  Since the bytecode has no branches there are never two stores a read
+ *  could see and so no phi functions. A local is tracked if no nested
+ *  block of the method refers to a local with its index, since a block
+ *  could then change it during any send (see {@link #isTracked}).
+ *
+ *  {@link #lower()} turns the instructions back into bytecode, in order,
+ *  checking that each finds its operands on top of the stack. Passes
+ *  must keep that true: replacing an instruction by one with the same
+ *  stack effect, removing a store, or removing an instruction together
+ *  with its only use all do.
+ */
+public class IRFunction {
+	public final STCompiledBlock blk;
+
+	public final List<BasicBlock> blocks = new ArrayList<>();
+
+	/** Literal strings of the enclosing class, for printing */
+	public final String[] literals;
+
+	/** Indexes of args and locals that some nested block of the method refers to */
+	protected final boolean[] captured;
+
+	protected int nextID = 0;
+
+	/** Build the IR for blk, which is method or one of its nested blocks */
+	public IRFunction(STCompiledBlock blk, STCompiledBlock method) {
+		this.blk = blk;
+		this.literals = blk.enclosingClass.stringTable.toArray();
+		captured = new boolean[blk.nargs+blk.nlocals];
+		if ( method.blocks!=null ) {
+			for (STCompiledBlock nested : method.blocks) {
+				markCaptured(nested.bytecode);
+			}
+		}
+		build();
+	}
+
+	protected void markCaptured(byte[] code) {
+		int ip = 0;
+		while ( code!=null && ip<code.length ) {
+			int opcode = code[ip];
+			if ( (opcode==Bytecode.PUSH_LOCAL || opcode==Bytecode.STORE_LOCAL) && Bytecode.getShort(code, ip+1)>0 ) {
+				int index = Bytecode.getShort(code, ip+3);
+				if ( index<captured.length ) {
+					captured[index] = true;
+				}
+			}
+			ip += Bytecode.instructionSize(opcode);
+		}
+	}
+
+	/** True if every store to the arg or local with this index is an
+	 *  instruction of this function.
+	 */
+	public boolean isTracked(int index) {
+		return index<captured.length && !captured[index];
+	}
+
+	protected void build() {
+		byte[] code = blk.bytecode;
+		List<Instr> stack = new ArrayList<>();
+		Map<Integer,Instr> lastStore = new HashMap<>();
+		BasicBlock bb = new BasicBlock(0);
+		blocks.add(bb);
+		int ip = 0;
+		while ( code!=null && ip<code.length ) {
+			int opcode = code[ip];
+			Instr I = newInstr(opcode, Bytecode.getOperands(code, ip));
+			if ( blk.lines!=null ) {
+				I.location = blk.lines.getLocationAt(ip);
+			}
+			int n = I.stackArgCount();
+			if ( stack.size()<n ) {
+				throw new IllegalArgumentException("stack underflow at "+ip+" in "+blk.qualifiedName);
+			}
+			List<Instr> args = stack.subList(stack.size()-n, stack.size());
+			I.args.addAll(args);
+			args.clear();
+			if ( I.keepsArg() ) {
+				stack.add(I.args.get(0));
+			}
+			if ( I.hasValue() ) {
+				stack.add(I);
+			}
+			if ( opcode==Bytecode.PUSH_LOCAL && I.operands[0]==0 && isTracked(I.operands[1]) ) {
+				I.tracked = true;
+				I.def = lastStore.get(I.operands[1]);
+			}
+			else if ( opcode==Bytecode.STORE_LOCAL && I.operands[0]==0 ) {
+				lastStore.put(I.operands[1], I);
+			}
+			bb.instrs.add(I);
+			ip += Bytecode.instructionSize(opcode);
+			if ( (opcode==Bytecode.RETURN || opcode==Bytecode.BLOCK_RETURN) && ip<code.length ) {
+				bb = new BasicBlock(blocks.size());
+				blocks.add(bb);
+			}
+		}
+	}
+
+	public Instr newInstr(int opcode, int... operands) {
+		return new Instr(nextID++, opcode, operands);
+	}
+
+	/** Return all instructions in execution order */
+	public List<Instr> instructions() {
+		List<Instr> all = new ArrayList<>();
+		for (BasicBlock bb : blocks) {
+			all.addAll(bb.instrs);
+		}
+		return all;
+	}
+
+	/** Return how many instructions take each value as an operand */
+	public Map<Instr,Integer> countUses() {
+		Map<Instr,Integer> uses = new HashMap<>();
+		for (BasicBlock bb : blocks) {
+			for (Instr I : bb.instrs) {
+				for (Instr arg : I.args) {
+					uses.merge(arg, 1, Integer::sum);
+				}
+			}
+		}
+		return uses;
+	}
+
+	/** Put I in place of old, which must have no operands, and make
+	 *  every use of old use I.
+	 */
+	public void replace(Instr old, Instr I) {
+		I.location = old.location;
+		for (BasicBlock bb : blocks) {
+			for (int i = 0; i<bb.instrs.size(); i++) {
+				Instr J = bb.instrs.get(i);
+				if ( J==old ) {
+					bb.instrs.set(i, I);
+				}
+				J.args.replaceAll(arg -> arg==old ? I : arg);
+			}
+		}
+	}
+
+	public void remove(Instr I) {
+		for (BasicBlock bb : blocks) {
+			if ( bb.instrs.remove(I) ) {
+				return;
+			}
+		}
+	}
+
+	/** Return the bytecode for the instructions, with a line table entry
+	 *  for each instruction with a location. Throw IllegalStateException
+	 *  if an instruction doesn't find its operands on top of the stack.
+	 */
+	public Code lower() {
+		Code code = new Code();
+		List<Instr> stack = new ArrayList<>();
+		for (BasicBlock bb : blocks) {
+			for (Instr I : bb.instrs) {
+				int n = I.args.size();
+				if ( stack.size()<n || !stack.subList(stack.size()-n, stack.size()).equals(I.args) ) {
+					throw new IllegalStateException("operands of "+I.toString(literals)+" in "+blk.qualifiedName+
+													" aren't on top of the stack");
+				}
+				stack.subList(stack.size()-n, stack.size()).clear();
+				if ( I.keepsArg() ) {
+					stack.add(I.args.get(0));
+				}
+				if ( I.hasValue() ) {
+					stack.add(I);
+				}
+				if ( I.location>=0 ) {
+					code.join(Code.mark(I.location));
+				}
+				code.join(Bytecode.encode(I.opcode, I.operands));
+			}
+		}
+		return code;
+	}
+
+	/** Replace the block's code and line table with those of {@link #lower()} */
+	public void lowerInto() {
+		Code code = lower();
+		blk.bytecode = code.bytes();
+		blk.lines = code.getLineTable();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		for (BasicBlock bb : blocks) {
+			buf.append(bb.toString(literals));
+		}
+		return buf.toString();
+	}
+}
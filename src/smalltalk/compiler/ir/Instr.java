@@ -0,0 +1,160 @@
+package smalltalk.compiler.ir;
+
+import smalltalk.compiler.Bytecode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** One instruction of an {@link IRFunction}: a bytecode instruction
+ *  whose stack operands are explicit references to the instructions that
+ *  computed them.
+ *
+ *  Instructions that push a value, such as sends and constants, are
+ *  values themselves. The stores and returns leave their argument on the
+ *  stack, as the bytecode does, and pop consumes it; neither defines a
+ *  new value. Dup leaves its argument and pushes itself, a copy. A
+ *  push_local of a local the function owns and no nested block can see
+ *  also records in {@link #def} the store it reads, which numbers the
+ *  versions of that local.
+ */
+public class Instr {
+	/** Unique within its function; value instructions print as v&lt;id&gt; */
+	public final int id;
+
+	public short opcode;
+
+	/** The instruction's immediate operands as {@link Bytecode#getOperands} decodes them */
+	public int[] operands;
+
+	/** Stack operands in push order: receiver then arguments for a send */
+	public final List<Instr> args = new ArrayList<>();
+
+	/** True for a push_local of a local whose stores are all visible
+	 *  in this function; see {@link IRFunction#isTracked(int)}.
+	 */
+	public boolean tracked;
+
+	/** For a tracked push_local, the store_local it reads or null if it
+	 *  reads the local's value on entry: the argument or nil.
+	 */
+	public Instr def;
+
+	/** Source location from the block's line table or -1 */
+	public int location = -1;
+
+	public Instr(int id, int opcode, int[] operands) {
+		this.id = id;
+		this.opcode = (short) opcode;
+		this.operands = operands;
+	}
+
+	/** True if executing this pushes a new value */
+	public boolean hasValue() {
+		switch ( opcode ) {
+			case Bytecode.STORE_FIELD :
+			case Bytecode.STORE_LOCAL :
+			case Bytecode.POP :
+			case Bytecode.RETURN :
+			case Bytecode.BLOCK_RETURN :
+			case Bytecode.DBG :
+				return false;
+		}
+		return true;
+	}
+
+	/** True if this pushes a value without side effects or reading
+	 *  anything a send could change, so it can be removed or repeated.
+	 */
+	public boolean isConstant() {
+		switch ( opcode ) {
+			case Bytecode.NIL :
+			case Bytecode.SELF :
+			case Bytecode.TRUE :
+			case Bytecode.FALSE :
+			case Bytecode.PUSH_CHAR :
+			case Bytecode.PUSH_INT :
+			case Bytecode.PUSH_FLOAT :
+			case Bytecode.PUSH_LITERAL :
+			case Bytecode.PUSH_CONSTANT :
+			case Bytecode.BLOCK :
+				return true;
+		}
+		return false;
+	}
+
+	/** True if this pushes a value without side effects, so an unused one
+	 *  can be removed.
+	 */
+	public boolean isPure() {
+		return isConstant() || opcode==Bytecode.PUSH_LOCAL || opcode==Bytecode.PUSH_FIELD ||
+			   opcode==Bytecode.PUSH_GLOBAL_SLOT || opcode==Bytecode.DUP;
+	}
+
+	/** Return how many values this takes off the stack */
+	public int stackArgCount() {
+		switch ( opcode ) {
+			case Bytecode.PUSH_ARRAY :
+				return operands[0];
+			case Bytecode.STORE_FIELD :
+			case Bytecode.STORE_LOCAL :
+			case Bytecode.POP :
+			case Bytecode.DUP :
+			case Bytecode.RETURN :
+			case Bytecode.BLOCK_RETURN :
+				return 1;
+			case Bytecode.SEND :
+			case Bytecode.SEND_TAIL :
+			case Bytecode.SEND_SUPER :
+			case Bytecode.SEND_DIRECT :
+			case Bytecode.SEND_SUPER_DIRECT :
+				return operands[0]+1;
+		}
+		return Bytecode.isSpecialSend(opcode) ? 2 : 0;
+	}
+
+	/** True if this leaves its argument on the stack rather than popping it */
+	public boolean keepsArg() {
+		return opcode==Bytecode.STORE_FIELD || opcode==Bytecode.STORE_LOCAL || opcode==Bytecode.DUP ||
+			   opcode==Bytecode.RETURN || opcode==Bytecode.BLOCK_RETURN;
+	}
+
+	/** Return this like "v3 = send 1, 'foo:' (v1, v2)", naming literals
+	 *  if literals isn't null. A load of a tracked local also shows the
+	 *  value it reads.
+	 */
+	public String toString(String[] literals) {
+		StringBuilder buf = new StringBuilder();
+		if ( hasValue() ) {
+			buf.append('v').append(id).append(" = ");
+		}
+		String name = Bytecode.instructions[opcode].name;
+		buf.append(name);
+		if ( literals!=null ) {
+			String instr = Bytecode.disassembleInstruction("", Bytecode.encode(opcode, operands).bytes(), literals, 0);
+			String ops = instr.substring(instr.indexOf(name)+name.length()).trim();
+			if ( !ops.isEmpty() ) {
+				buf.append(' ').append(ops);
+			}
+		}
+		else {
+			for (int i = 0; i<operands.length; i++) {
+				buf.append(i==0 ? " " : ", ").append(operands[i]);
+			}
+		}
+		for (int i = 0; i<args.size(); i++) {
+			buf.append(i==0 ? " (" : ", ").append('v').append(args.get(i).id);
+		}
+		if ( !args.isEmpty() ) {
+			buf.append(')');
+		}
+		if ( tracked ) {
+			buf.append(def!=null ? " = v"+def.args.get(0).id : " = entry");
+		}
+		return buf.toString();
+	}
+
+	@Override
+	public String toString() {
+		return toString(null);
+	}
+}
@@ -0,0 +1,9 @@
+package smalltalk.compiler.ir;
+
+/** A transformation of an {@link IRFunction} run by a {@link PassManager} */
+public interface Pass {
+	String getName();
+
+	/** Transform f in place and return how many changes were made */
+	int run(IRFunction f);
+}
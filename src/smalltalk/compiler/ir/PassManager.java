@@ -0,0 +1,112 @@
+package smalltalk.compiler.ir;
+
+import smalltalk.compiler.symbols.STCompiledBlock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Runs a list of passes over the IR of methods and their blocks and
+ *  lowers any that changed back to bytecode. The passes run in order,
+ *  repeatedly, until a round changes nothing, since one pass often
+ *  exposes work for another: folding a constant stored in a local lets
+ *  copy propagation push it at each read, which leaves the store dead.
+ */
+public class PassManager {
+	/** Rounds after which a function is lowered even if passes still make changes */
+	public static final int MAX_ROUNDS = 10;
+
+	protected final List<Pass> passes = new ArrayList<>();
+
+	/** Assigns slots to locals once the passes are done, or null */
+	public SlotAllocator slotAllocator;
+
+	/** Changes each pass made, by pass name */
+	public final Map<String,Integer> changes = new LinkedHashMap<>();
+
+	protected final Set<STCompiledBlock> optimized = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/** Number of methods and blocks optimized and how many of those changed */
+	public int functions, changed;
+
+	public PassManager add(Pass pass) {
+		passes.add(pass);
+		changes.put(pass.getName(), 0);
+		return this;
+	}
+
+	/** Return a manager running copy propagation, constant folding and
+	 *  dead store elimination, then slot allocation.
+	 */
+	public static PassManager standard() {
+		PassManager manager = new PassManager()
+			.add(new CopyPropagation())
+			.add(new ConstantFolding())
+			.add(new DeadStoreElimination());
+		manager.slotAllocator = new SlotAllocator();
+		return manager;
+	}
+
+	/** Optimize the code of method and its nested blocks in place unless
+	 *  this already has; return true if any code changed. A compiler
+	 *  offers every method in its symbol table after each file.
+	 */
+	public boolean optimize(STCompiledBlock method) {
+		if ( method.primitiveName!=null || !optimized.add(method) ) return false;
+		boolean any = optimize(method, method);
+		if ( method.blocks!=null ) {
+			for (STCompiledBlock blk : method.blocks) {
+				any |= optimize(blk, method);
+			}
+		}
+		if ( slotAllocator!=null ) {
+			any |= slotAllocator.allocate(method);
+		}
+		return any;
+	}
+
+	protected boolean optimize(STCompiledBlock blk, STCompiledBlock method) {
+		IRFunction f = new IRFunction(blk, method);
+		functions++;
+		if ( run(f)>0 ) {
+			f.lowerInto();
+			changed++;
+			return true;
+		}
+		return false;
+	}
+
+	/** Run the passes over f and return how many changes they made */
+	public int run(IRFunction f) {
+		int total = 0;
+		for (int round = 0; round<MAX_ROUNDS; round++) {
+			int n = 0;
+			for (Pass pass : passes) {
+				int k = pass.run(f);
+				changes.merge(pass.getName(), k, Integer::sum);
+				n += k;
+			}
+			if ( n==0 ) break;
+			total += n;
+		}
+		return total;
+	}
+
+	/** Return the number of functions changed and the changes by pass */
+	public String getReport() {
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("optimized %d of %d methods and blocks:", changed, functions));
+		for (Map.Entry<String,Integer> e : changes.entrySet()) {
+			buf.append(String.format(" %s %d", e.getKey(), e.getValue()));
+		}
+		if ( slotAllocator!=null ) {
+			buf.append(String.format("; %d locals need %d slots", slotAllocator.localsBefore, slotAllocator.localsAfter));
+		}
+		buf.append(String.format("%n"));
+		return buf.toString();
+	}
+}
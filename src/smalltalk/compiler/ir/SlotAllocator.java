@@ -0,0 +1,147 @@
+package smalltalk.compiler.ir;
+
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.symbols.STCompiledBlock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Give the locals of a method and its blocks as few slots as possible.
+ *
+ *  Each store to a tracked local (see {@link IRFunction#isTracked})
+ *  starts a value that lives until the last read that sees it; reads of
+ *  the local's initial nil make a value that lives from the start of the
+ *  function. Values whose lifetimes don't overlap share a slot, so one
+ *  local may even move between slots. A store no read sees is removed,
+ *  which removes a local that is never read altogether. Arguments keep
+ *  their slots and every other local gets a slot of its own, renumbered
+ *  in the function and in the nested blocks that refer to it.
+ *
+ *  {@link STCompiledBlock#nlocals} shrinks to the slots used.
+ */
+public class SlotAllocator {
+	/** Locals in all functions seen before and after allocation */
+	public int localsBefore, localsAfter;
+
+	/** Allocate slots in method and its blocks; return true if any changed */
+	public boolean allocate(STCompiledBlock method) {
+		if ( method.primitiveName!=null ) return false;
+		int nblocks = method.blocks!=null ? method.blocks.length : 0;
+		// element 0 is the method and element i+1 is block i
+		IRFunction[] functions = new IRFunction[nblocks+1];
+		functions[0] = new IRFunction(method, method);
+		for (int i = 0; i<nblocks; i++) {
+			functions[i+1] = new IRFunction(method.blocks[i], method);
+		}
+		int[] enclosing = new int[nblocks+1];
+		enclosing[0] = -1;
+		for (int k = 0; k<functions.length; k++) {
+			for (Instr I : functions[k].instructions()) {
+				if ( I.opcode==Bytecode.BLOCK ) {
+					enclosing[I.operands[0]+1] = k;
+				}
+			}
+		}
+
+		List<Map<Instr,Integer>> slots = new ArrayList<>();
+		List<int[]> fixed = new ArrayList<>();
+		boolean changed = false;
+		for (IRFunction f : functions) {
+			Map<Instr,Integer> slotOf = new HashMap<>();
+			int[] fixedSlot = new int[f.blk.nargs+f.blk.nlocals];
+			int nlocals = color(f, slotOf, fixedSlot);
+			slots.add(slotOf);
+			fixed.add(fixedSlot);
+			localsBefore += f.blk.nlocals;
+			localsAfter += nlocals;
+			changed |= nlocals!=f.blk.nlocals;
+			f.blk.nlocals = nlocals;
+		}
+
+		for (int k = 0; k<functions.length; k++) {
+			for (Instr I : functions[k].instructions()) {
+				if ( I.opcode!=Bytecode.PUSH_LOCAL && I.opcode!=Bytecode.STORE_LOCAL ) continue;
+				int owner = k;
+				for (int s = 0; s<I.operands[0] && owner>=0; s++) {
+					owner = enclosing[owner];
+				}
+				if ( owner<0 ) continue; // the verifier reports these
+				Integer slot = slots.get(owner).get(I);
+				int index = slot!=null ? slot : fixed.get(owner)[I.operands[1]];
+				if ( index!=I.operands[1] ) {
+					I.operands = new int[] {I.operands[0], index};
+					changed = true;
+				}
+			}
+		}
+		for (IRFunction f : functions) {
+			f.lowerInto();
+		}
+		return changed;
+	}
+
+	/** Assign slots to f's locals, removing stores no read sees. Put the
+	 *  slot of each tracked load and store in slotOf and the new slot of
+	 *  every other arg or local in fixedSlot. Return the number of slots
+	 *  needed beyond the args.
+	 */
+	protected int color(IRFunction f, Map<Instr,Integer> slotOf, int[] fixedSlot) {
+		int nargs = f.blk.nargs;
+		int next = nargs;
+		for (int i = 0; i<fixedSlot.length; i++) {
+			fixedSlot[i] = i<nargs || !f.isTracked(i) ? (i<nargs ? i : next++) : -1;
+		}
+		// a value is a store or, for reads of a local's initial nil, the local's index
+		List<Instr> code = f.instructions();
+		Map<Object,int[]> lifetimes = new HashMap<>();
+		Map<Object,List<Instr>> uses = new HashMap<>();
+		List<Object> values = new ArrayList<>();
+		for (int ip = 0; ip<code.size(); ip++) {
+			Instr I = code.get(ip);
+			if ( I.opcode==Bytecode.STORE_LOCAL && I.operands[0]==0 && fixedSlot[I.operands[1]]<0 ) {
+				lifetimes.put(I, new int[] {ip, -1});
+				uses.put(I, new ArrayList<>());
+				values.add(I);
+			}
+			else if ( I.tracked && I.operands[1]>=nargs ) {
+				Object value = I.def!=null ? I.def : I.operands[1];
+				if ( !lifetimes.containsKey(value) ) {
+					lifetimes.put(value, new int[] {0, -1});
+					uses.put(value, new ArrayList<>());
+					values.add(value);
+				}
+				lifetimes.get(value)[1] = ip;
+				uses.get(value).add(I);
+			}
+		}
+		// nil values start at 0 so go first, then stores in code order
+		values.sort((a, b) -> lifetimes.get(a)[0]-lifetimes.get(b)[0]);
+		List<Integer> busyUntil = new ArrayList<>(); // by slot-next
+		for (Object value : values) {
+			int[] life = lifetimes.get(value);
+			if ( life[1]<0 ) {
+				f.remove((Instr) value); // stored but never read
+				continue;
+			}
+			int color = 0;
+			while ( color<busyUntil.size() && busyUntil.get(color)>=life[0] ) {
+				color++;
+			}
+			if ( color==busyUntil.size() ) {
+				busyUntil.add(life[1]);
+			}
+			else {
+				busyUntil.set(color, life[1]);
+			}
+			if ( value instanceof Instr ) {
+				slotOf.put((Instr) value, next+color);
+			}
+			for (Instr use : uses.get(value)) {
+				slotOf.put(use, next+color);
+			}
+		}
+		return next+busyUntil.size()-nargs;
+	}
+}
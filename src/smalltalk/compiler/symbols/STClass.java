@@ -11,8 +11,13 @@ import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
 
 /** Represents a compile-time Smalltalk class in a Smalltalk program; it
  *  corresponds to STMetaClassObject in the VM.
@@ -25,6 +30,13 @@ public class STClass extends ClassSymbol {
 	 */
 	public final StringTable stringTable = new StringTable();
 
+	/** The literal arrays pushed by PUSH_CONSTANT in this class's code,
+	 *  each built once by the VM. An array is a list of Integer, Float,
+	 *  Character, String (for strings and symbols), Boolean, null for nil
+	 *  and nested lists.
+	 */
+	public final List<List<Object>> constants = new ArrayList<>();
+
 	public STClass(String name, String superClassName) {
 		super(name);
 		setSuperClass(superClassName);
@@ -35,10 +47,62 @@ public class STClass extends ClassSymbol {
 		return sym!=null && sym.getScope() instanceof STClass ? sym.getInsertionOrderNumber() : -1;
 	}
 
+	/** Return the index of a literal array in {@link #constants}, adding
+	 *  it if no equal array is there yet.
+	 */
+	public int getConstantIndex(List<Object> array) {
+		int i = constants.indexOf(array);
+		if ( i<0 ) {
+			i = constants.size();
+			constants.add(array);
+		}
+		return i;
+	}
+
 	public STMethod resolveMethod(String name) {
 		return (STMethod)super.resolveMethod(name);
 	}
 
+	/** Forget a method, as when {@link smalltalk.compiler.TreeShaker} finds
+	 *  it unreachable.
+	 */
+	public void removeMethod(String name) {
+		symbols.remove(name);
+	}
+
+	/** Return the compiled code for all methods defined in this class, in
+	 *  definition order, skipping any method that has not been compiled.
+	 *  Methods a lazy compiler deferred are generated first.
+	 */
+	public List<STCompiledBlock> getCompiledMethods() {
+		List<STCompiledBlock> compiled = new ArrayList<>();
+		for (MethodSymbol m : getDefinedMethods()) {
+			STCompiledBlock blk = ((STMethod) m).getCompiledBlock();
+			if ( blk!=null ) {
+				compiled.add(blk);
+			}
+		}
+		return compiled;
+	}
+
+	/** Return this class's method table: the index of each method defined
+	 *  here within {@link #getDefinedMethods()}, keyed by its global
+	 *  selector ID, in ascending ID order. Inherited methods are not
+	 *  included; a VM merges the tables up the class hierarchy.
+	 */
+	public SortedMap<Integer,Integer> getMethodTable() {
+		SortedMap<Integer,Integer> table = new TreeMap<>();
+		int i = 0;
+		for (MethodSymbol m : getDefinedMethods()) {
+			STCompiledBlock blk = ((STMethod) m).getCompiledBlock();
+			if ( blk!=null && blk.selectorID>=0 ) {
+				table.put(blk.selectorID, i);
+			}
+			i++;
+		}
+		return table;
+	}
+
 	@Override
 	public String toString() {
 		return "class "+name;
@@ -49,6 +113,16 @@ public class STClass extends ClassSymbol {
 	 *  The VM loads such JSON to execute code.
 	 */
 	public JsonObject serialize() {
+		return serialize(STCompiledBlock::serialize);
+	}
+
+	/** Serialize this class, writing each method with methodWriter */
+	public JsonObject serialize(Function<STCompiledBlock,JsonObject> methodWriter) {
+		// generating deferred methods adds literals so do it before writing them
+		List<STCompiledBlock> compiled = new ArrayList<>();
+		for (MethodSymbol m : getDefinedMethods()) {
+			compiled.add(((STMethod) m).getCompiledBlock());
+		}
 		JsonObjectBuilder builder =  Json.createObjectBuilder();
 		builder.add("name", name);
 		if ( superClassName!=null ) {
@@ -61,19 +135,68 @@ public class STClass extends ClassSymbol {
 			}
 		}
 		builder.add("literals", litArray);
+		if ( !constants.isEmpty() ) {
+			JsonArrayBuilder constArray = Json.createArrayBuilder();
+			for (List<Object> array : constants) {
+				constArray.add(serializeConstant(array));
+			}
+			builder.add("constants", constArray);
+		}
 		JsonArrayBuilder fieldArray = Json.createArrayBuilder();
 		for (FieldSymbol f : getDefinedFields()) {
 			fieldArray.add(f.getName());
 		}
 		builder.add("fields", fieldArray);
 		JsonArrayBuilder methodArray = Json.createArrayBuilder();
-		for(MethodSymbol m : getDefinedMethods()) {
-			methodArray.add(((STMethod) m).compiledBlock.serialize());
+		for (STCompiledBlock blk : compiled) {
+			methodArray.add(methodWriter.apply(blk));
 		}
 		builder.add("methods", methodArray);
+		JsonArrayBuilder tableArray = Json.createArrayBuilder();
+		for (Map.Entry<Integer,Integer> entry : getMethodTable().entrySet()) {
+			tableArray.add(Json.createArrayBuilder().add(entry.getKey()).add(entry.getValue()));
+		}
+		builder.add("methodTable", tableArray);
 		return builder.build();
 	}
 
+	/** Return the JSON for an element of a literal array: an integer,
+	 *  string, boolean, null or array as itself, a character as
+	 *  {"char":"c"} and a float as {"float":"1.5"}.
+	 */
+	public static JsonValue serializeConstant(Object value) {
+		JsonArrayBuilder builder = Json.createArrayBuilder();
+		if ( value==null ) builder.addNull();
+		else if ( value instanceof Integer ) builder.add((Integer) value);
+		else if ( value instanceof Float ) builder.add(Json.createObjectBuilder().add("float", value.toString()));
+		else if ( value instanceof Boolean ) builder.add((Boolean) value);
+		else if ( value instanceof String ) builder.add((String) value);
+		else if ( value instanceof Character ) builder.add(Json.createObjectBuilder().add("char", value.toString()));
+		else {
+			JsonArrayBuilder elements = Json.createArrayBuilder();
+			for (Object e : (List<?>) value) {
+				elements.add(serializeConstant(e));
+			}
+			builder.add(elements);
+		}
+		return builder.build().get(0);
+	}
+
+	/** Return a literal array element as it would appear in source */
+	public static String constantToString(Object value) {
+		if ( value instanceof String ) return "'"+value+"'";
+		if ( value instanceof Character ) return "$"+value;
+		if ( value instanceof List ) {
+			StringBuilder buf = new StringBuilder("#(");
+			for (Object e : (List<?>) value) {
+				if ( buf.length()>2 ) buf.append(' ');
+				buf.append(constantToString(e));
+			}
+			return buf.append(')').toString();
+		}
+		return value==null ? "nil" : value.toString();
+	}
+
 	public String toTestString() { return getAsString(); }
 
 	public String getAsString() {
@@ -82,12 +205,13 @@ public class STClass extends ClassSymbol {
 			"superClass: <superClassName>\n" +
 			"fields: <fields; separator={,}>\n" +
 			"literals: <literals:{s|'<s>'}; separator={,}>\n"+
+			"<if(constants)>constants: <constants; separator={,}>\n<endif>"+
 			"methods:\n" +
 			"    <methods; separator={<\\n>}>"
 		);
 		template.impl.nativeGroup.setListener(STCompiledBlock.templateErrorListener);
 		template.add("name", name);
-		if ( !superClassName.equals("Object") ) {
+		if ( superClassName!=null && !superClassName.equals("Object") ) {
 			template.add("superClassName", superClassName);
 		}
 		else {
@@ -100,9 +224,12 @@ public class STClass extends ClassSymbol {
 		template.add("fields", fields);
 		List<String> methods = new ArrayList<>();
 		for(MethodSymbol m : getDefinedMethods()) {
-			methods.add(((STMethod) m).compiledBlock.toTestString());
+			methods.add(((STMethod) m).getCompiledBlock().toTestString());
 		}
 		template.add("literals", stringTable.toArray());
+		for (List<Object> array : constants) {
+			template.add("constants", constantToString(array));
+		}
 		template.add("methods", methods);
 		return template.render();
 	}
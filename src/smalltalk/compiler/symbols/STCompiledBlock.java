@@ -1,20 +1,24 @@
 package smalltalk.compiler.symbols;
 
+import org.antlr.symtab.StringTable;
 import org.antlr.symtab.Utils;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.misc.ErrorBuffer;
 import org.stringtemplate.v4.misc.STMessage;
 import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.LineTable;
 
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import java.util.Arrays;
 
 /** This object represents the compiled code for a block or method and is
  *  more or less equivalent to the class with same name in VM.
  *  Fields enclosingClass is STClass in compiler and STMetaClassObject in VM.
- *  Field primitiveName in STClass corresponds to field primitive in VM.
+ *  Fields primitiveName and primitiveID correspond to field primitive in
+ *  VM, which is found by ID.
  *
  *  This holds all of the bytecode and meta information about the block, such
  *  as the number of arguments and the number of local variables.
@@ -79,17 +83,64 @@ public class STCompiledBlock {
 	/** The fixed number of arguments taken by this method */
 	public final int nargs;
 
-	/** The number of local variables defined within the block, not including the arguments */
-	public final int nlocals;
+	/** The number of local variables defined within the block, not including
+	 *  the arguments; {@link smalltalk.compiler.ir.SlotAllocator} may lower it
+	 *  to the number of slots the locals need.
+	 */
+	public int nlocals;
 
 	/** In the compiler, this is the primitive name. In the VM, the equivalent
 	 *  class has a 'primitive' field that points at an actual Primitive object.
  	 */
 	public final String primitiveName;
 
+	/** The primitive's ID in {@link smalltalk.compiler.Primitives}, which
+	 *  a VM uses to find it; -1 if this isn't a primitive.
+	 */
+	public final int primitiveID;
+
 	/** True if method was defined as a class method in Smalltalk code */
 	public final boolean isClassMethod;
 
+	/** The bytecode address of each send instruction (see
+	 *  {@link Bytecode#isSend(int)}), in order of appearance. The index of
+	 *  an address within this array is the inline-cache slot for that send
+	 *  site so a VM can keep its caches in a flat array of size
+	 *  sendSites.length per block. Filled in by
+	 *  {@link #assignSendSites()} once the bytecode is final.
+	 */
+	public int[] sendSites = new int[0];
+
+	/** Source locations of instructions when compiled with
+	 *  {@link smalltalk.compiler.Compiler#genDbg}; null otherwise.
+	 */
+	public LineTable lines;
+
+	/** The global selector ID of this method (see
+	 *  {@link STSymbolTable#selectors}); -1 for blocks.
+	 */
+	public int selectorID = -1;
+
+	/** The global selector ID sent by each send site, parallel to
+	 *  {@link #sendSites}, so a VM can dispatch with an array index
+	 *  rather than hashing the selector string.
+	 */
+	public int[] sendSelectors = new int[0];
+
+	/** Set on a method once {@link smalltalk.compiler.Verifier} has checked
+	 *  it and its nested blocks so a VM can run it without checking.
+	 */
+	public boolean verified;
+
+	/** For a method whose body is trivial, such as ^self or field := arg,
+	 *  the kind of body (see {@link Bytecode#QUICK_NONE} and following);
+	 *  a VM can answer a send to it without creating a context.
+	 */
+	public short quickKind = Bytecode.QUICK_NONE;
+
+	/** The field index, literal index or constant a quick method uses */
+	public int quickOperand;
+
 	public STCompiledBlock(STClass enclosingClass, STBlock blk) {
 		this.enclosingClass = enclosingClass;
 		this.name = blk.getName();
@@ -98,15 +149,109 @@ public class STCompiledBlock {
 		nlocals = blk.nlocals();
 		if ( blk instanceof STPrimitiveMethod ) {
 			primitiveName = ((STPrimitiveMethod) blk).primitiveName;
+			primitiveID = ((STPrimitiveMethod) blk).primitiveID;
 		}
 		else {
 			primitiveName = null;
+			primitiveID = -1;
 		}
 		isClassMethod = blk instanceof STMethod && ((STMethod) blk).isClassMethod;
 	}
 
 	public String toTestString() { return getAsString(); }
 
+	/** Number the send sites in this block and in all nested blocks. */
+	public void assignSendSites() {
+		int n = 0;
+		int[] sites = new int[bytecode!=null ? bytecode.length : 0];
+		int ip = 0;
+		while ( bytecode!=null && ip<bytecode.length ) {
+			int opcode = bytecode[ip];
+			if ( Bytecode.isSend(opcode) ) {
+				sites[n++] = ip;
+			}
+			ip += Bytecode.instructionSize(opcode);
+		}
+		sendSites = Arrays.copyOf(sites, n);
+		if ( blocks!=null ) {
+			for (STCompiledBlock block : blocks) {
+				block.assignSendSites();
+			}
+		}
+	}
+
+	/** Turn each send whose result this method or one of its blocks
+	 *  returns right away into SEND_TAIL, so a VM can run the method it
+	 *  calls in the sender's context. A block's RETURN is a return from
+	 *  its home method, so only BLOCK_RETURN ends a tail send in a block.
+	 *  Return the number of sends changed.
+	 */
+	public int markTailSends() {
+		int n = markTailSends(Bytecode.RETURN);
+		if ( blocks!=null ) {
+			for (STCompiledBlock block : blocks) {
+				n += block.markTailSends(Bytecode.BLOCK_RETURN);
+			}
+		}
+		return n;
+	}
+
+	protected int markTailSends(int ret) {
+		int n = 0;
+		int ip = 0;
+		while ( bytecode!=null && ip<bytecode.length ) {
+			int opcode = bytecode[ip];
+			int next = ip+Bytecode.instructionSize(opcode);
+			if ( opcode==Bytecode.SEND && next<bytecode.length && bytecode[next]==ret ) {
+				bytecode[ip] = Bytecode.SEND_TAIL;
+				n++;
+			}
+			ip = next;
+		}
+		return n;
+	}
+
+	/** Recognize a method with a trivial body and set {@link #quickKind}
+	 *  and {@link #quickOperand}. Blocks are never quick.
+	 */
+	public void assignQuickKind() {
+		int[] operand = new int[1];
+		quickKind = primitiveName==null ? Bytecode.quickKind(bytecode, nargs, operand) : Bytecode.QUICK_NONE;
+		quickOperand = operand[0];
+	}
+
+	public boolean isQuick() { return quickKind!=Bytecode.QUICK_NONE; }
+
+	/** Number the selector of this method and of every send site in it
+	 *  and its nested blocks using the program-wide table. Call on methods
+	 *  after {@link #assignSendSites()}.
+	 */
+	public void assignSelectorIDs(StringTable selectors) {
+		selectorID = selectors.add(name);
+		assignSendSelectors(selectors);
+	}
+
+	protected void assignSendSelectors(StringTable selectors) {
+		sendSelectors = new int[sendSites.length];
+		for (int i = 0; i<sendSites.length; i++) {
+			sendSelectors[i] = selectors.add(getSelector(sendSites[i]));
+		}
+		if ( blocks!=null ) {
+			for (STCompiledBlock block : blocks) {
+				block.assignSendSelectors(selectors);
+			}
+		}
+	}
+
+	/** Return the selector sent by the send instruction at ip */
+	public String getSelector(int ip) {
+		int opcode = bytecode[ip];
+		if ( Bytecode.isSpecialSend(opcode) ) {
+			return Bytecode.specialSelector(opcode);
+		}
+		return enclosingClass.stringTable.get(Bytecode.getShort(bytecode, ip+3));
+	}
+
 	/** Return a JSON object with all relevant info about a ST block/method,
 	 *  which is wrapped in the JSON for an ST class via {@link STClass#serialize()}.
 	 *  The VM loads such JSON to execute code.
@@ -116,26 +261,77 @@ public class STCompiledBlock {
 		builder.add("name", name);
 		builder.add("isClassMethod", isClassMethod);
 		builder.add("qualifiedName", qualifiedName);
+		addBody(builder, null);
+		JsonArrayBuilder blockArray = Json.createArrayBuilder();
+		if ( blocks!=null ) {
+			for (STCompiledBlock block : blocks) {
+				blockArray.add(block.serialize());
+			}
+		}
+		builder.add("blocks", blockArray);
+		return builder.build();
+	}
+
+	/** Return the JSON for the code of this block and its nested blocks
+	 *  without their names, renumbering operands that index class
+	 *  literals through literalMap (see {@link Bytecode#remapLiterals}).
+	 *  Methods whose bodies are the same in different classes produce
+	 *  equal JSON given maps to the same literal strings.
+	 */
+	public JsonObject serializeBody(int[] literalMap) {
+		JsonObjectBuilder builder = Json.createObjectBuilder();
+		addBody(builder, literalMap);
+		JsonArrayBuilder blockArray = Json.createArrayBuilder();
+		if ( blocks!=null ) {
+			for (STCompiledBlock block : blocks) {
+				blockArray.add(block.serializeBody(literalMap));
+			}
+		}
+		builder.add("blocks", blockArray);
+		return builder.build();
+	}
+
+	protected void addBody(JsonObjectBuilder builder, int[] literalMap) {
 		if ( primitiveName!=null ) {
+			builder.add("primitive", primitiveID);
 			builder.add("primitiveName", primitiveName);
 		}
 		builder.add("nargs", nargs);
 		builder.add("nlocals", nlocals);
+		if ( verified ) {
+			builder.add("verified", true);
+		}
+		if ( isQuick() ) {
+			builder.add("quickKind", quickKind);
+			boolean isLiteral = quickKind==Bytecode.QUICK_LITERAL && literalMap!=null;
+			builder.add("quickOperand", isLiteral ? literalMap[quickOperand] : quickOperand);
+		}
+		builder.add("nsends", sendSites.length);
+		JsonArrayBuilder sendArray = Json.createArrayBuilder();
+		for (int ip : sendSites) {
+			sendArray.add(ip);
+		}
+		builder.add("sendSites", sendArray);
+		JsonArrayBuilder selectorArray = Json.createArrayBuilder();
+		for (int id : sendSelectors) {
+			selectorArray.add(id);
+		}
+		builder.add("sendSelectors", selectorArray);
 		JsonArrayBuilder codeArray = Json.createArrayBuilder();
-		if ( bytecode!=null ) {
-			for (byte b : bytecode) {
+		byte[] code = literalMap!=null ? Bytecode.remapLiterals(bytecode, literalMap) : bytecode;
+		if ( code!=null ) {
+			for (byte b : code) {
 				codeArray.add(b);
 			}
 		}
 		builder.add("bytecode", codeArray);
-		JsonArrayBuilder blockArray = Json.createArrayBuilder();
-		if ( blocks!=null ) {
-			for (STCompiledBlock block : blocks) {
-				blockArray.add(block.serialize());
+		if ( lines!=null ) {
+			JsonArrayBuilder lineArray = Json.createArrayBuilder();
+			for (byte b : lines.encode()) {
+				lineArray.add(b);
 			}
+			builder.add("lines", lineArray);
 		}
-		builder.add("blocks", blockArray);
-		return builder.build();
 	}
 
 	public String getAsString() {
@@ -147,7 +343,7 @@ public class STCompiledBlock {
 		template.add("nargs", nargs);
 		template.add("nlocals", nlocals);
 		template.add("bytecode", bytecode);
-		template.add("assembly", Bytecode.disassemble(this.name, this.bytecode, enclosingClass.stringTable.toArray(), 0));
+		template.add("assembly", Bytecode.disassemble(this.name, this.bytecode, enclosingClass.stringTable.toArray(), lines, 0));
 		template.add("nblocks", blocks!=null ? blocks.length : 0);
         template.add("blocks", Utils.map(blocks, STCompiledBlock::toTestString));
 		return template.render();
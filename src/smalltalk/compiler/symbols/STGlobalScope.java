@@ -0,0 +1,72 @@
+package smalltalk.compiler.symbols;
+
+import org.antlr.symtab.GlobalScope;
+import org.antlr.symtab.Symbol;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** The global scope of an {@link STSymbolTable}. Freezing it makes it
+ *  read-only so compilations on many threads can share it. A scope
+ *  created over a frozen one starts out using the same map of symbols
+ *  and copies it the first time a symbol is defined or the map is asked
+ *  for to change, so the frozen scope never changes.
+ */
+public class STGlobalScope extends GlobalScope {
+	/** True while {@link #symbols} is the frozen scope's map */
+	protected boolean shared;
+
+	protected boolean frozen;
+
+	public STGlobalScope() {
+		super(null);
+	}
+
+	/** Create a scope with the symbols of a frozen scope */
+	public STGlobalScope(STGlobalScope prelude) {
+		super(null);
+		if ( !prelude.frozen ) {
+			throw new IllegalArgumentException("a prelude's globals must be frozen");
+		}
+		symbols = prelude.symbols;
+		shared = true;
+	}
+
+	/** Make this scope read-only from now on */
+	public void freeze() {
+		frozen = true;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	@Override
+	public void define(Symbol sym) throws IllegalArgumentException {
+		copyOnWrite();
+		super.define(sym);
+	}
+
+	/** Return the symbols by name; read-only if frozen. As callers may
+	 *  change the map, a scope still sharing its prelude's copies it.
+	 */
+	@Override
+	public Map<String,? extends Symbol> getMembers() {
+		if ( frozen ) {
+			return Collections.unmodifiableMap(symbols);
+		}
+		copyOnWrite();
+		return symbols;
+	}
+
+	protected void copyOnWrite() {
+		if ( frozen ) {
+			throw new IllegalStateException("frozen globals can't change");
+		}
+		if ( shared ) {
+			symbols = new LinkedHashMap<>(symbols);
+			shared = false;
+		}
+	}
+}
@@ -15,9 +15,27 @@ public class STMethod extends STBlock {
 	 */
 	public boolean isClassMethod;
 
+	/** Set by a lazy {@link smalltalk.compiler.Compiler} to generate
+	 *  {@link #compiledBlock} on the first call to {@link #getCompiledBlock()};
+	 *  null once generated or if the compiler generated code up front.
+	 */
+	public volatile Runnable pendingCodeGen;
+
 	public STMethod(String name, ParserRuleContext tree) {
 		super(name, tree);
 	}
 
 	public boolean isMethod() { return true; }
+
+	/** Return this method's code, generating it first if its compiler
+	 *  deferred it. Safe to call from several threads at once; the code
+	 *  is generated only once.
+	 */
+	public STCompiledBlock getCompiledBlock() {
+		Runnable codeGen = pendingCodeGen;
+		if ( codeGen!=null ) {
+			codeGen.run();
+		}
+		return compiledBlock;
+	}
 }
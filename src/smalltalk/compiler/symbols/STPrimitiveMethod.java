@@ -1,6 +1,7 @@
 package smalltalk.compiler.symbols;
 
 import org.antlr.v4.runtime.ParserRuleContext;
+import smalltalk.compiler.Primitives;
 
 /** "A primitive [message] response is performed directly by the interpreter
  *  without creating a new context or executing any other bytecodes. A
@@ -11,9 +12,14 @@ import org.antlr.v4.runtime.ParserRuleContext;
 public class STPrimitiveMethod extends STMethod {
 	public final String primitiveName;
 
+	/** The ID from {@link Primitives}; -1 if primitiveName is unknown */
+	public final int primitiveID;
+
 	public STPrimitiveMethod(String name, ParserRuleContext tree, String primitiveName) {
 		super(name, tree);
 		this.primitiveName = primitiveName;
+		Primitives.Definition p = Primitives.lookup(primitiveName);
+		this.primitiveID = p!=null ? p.id : -1;
 	}
 
 	@Override
@@ -1,11 +1,133 @@
 package smalltalk.compiler.symbols;
 
-import org.antlr.symtab.GlobalScope;
+import org.antlr.symtab.MethodSymbol;
+import org.antlr.symtab.StringTable;
+import org.antlr.symtab.Symbol;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class STSymbolTable {
-	public final GlobalScope GLOBALS;
+	public final STGlobalScope GLOBALS;
+
+	/** The frozen table whose classes this one shares or null; see
+	 *  {@link #STSymbolTable(STSymbolTable)}.
+	 */
+	public final STSymbolTable prelude;
+
+	/** Every selector defined or sent anywhere in the program. A selector's
+	 *  index is its ID; IDs never change once assigned, so compiling more
+	 *  code into this symbol table leaves existing IDs alone. See
+	 *  {@link STCompiledBlock#assignSelectorIDs}.
+	 */
+	public final StringTable selectors = new StringTable();
+
+	/** The program's globals, filled in by {@link smalltalk.compiler.Linker}.
+	 *  A global's index is the slot number that linked PUSH_GLOBAL_SLOT
+	 *  instructions use.
+	 */
+	public final StringTable globals = new StringTable();
 
 	public STSymbolTable() {
-		this.GLOBALS = new GlobalScope(null);
+		this.GLOBALS = new STGlobalScope();
+		this.prelude = null;
+	}
+
+	/** Create a table for compiling a program against the classes of a
+	 *  frozen prelude, as many threads can at once with a table each.
+	 *  Lookups see the prelude's classes, its selectors keep their IDs,
+	 *  and new classes and selectors go only in this table.
+	 *
+	 *  The prelude's classes aren't copied, so code that rewrites
+	 *  classes in place, like the {@link smalltalk.compiler.Linker} and
+	 *  {@link smalltalk.compiler.TreeShaker}, refuses such a table; load
+	 *  it into a VM, which links its own copy, to run it.
+	 */
+	public STSymbolTable(STSymbolTable prelude) {
+		this.GLOBALS = new STGlobalScope(prelude.GLOBALS);
+		this.prelude = prelude;
+		for (String selector : prelude.selectors.toArray()) {
+			selectors.add(selector);
+		}
+	}
+
+	/** Generate any deferred methods and make the globals read-only so
+	 *  this table can be the prelude of tables on other threads.
+	 */
+	public STSymbolTable freeze() {
+		synchronized ( this ) { // the lock lazy code generation takes
+			for (STClass c : getClasses()) {
+				c.getCompiledMethods();
+			}
+			GLOBALS.freeze();
+		}
+		return this;
+	}
+
+	/** Return the classes this table defines itself: all of them unless
+	 *  it has a prelude.
+	 */
+	public List<STClass> getOwnClasses() {
+		List<STClass> classes = getClasses();
+		if ( prelude!=null ) {
+			classes.removeIf(c -> c.getEnclosingScope()!=GLOBALS);
+		}
+		return classes;
+	}
+
+	/** Throw an exception if this table shares a prelude; call before
+	 *  doing what rewrites classes in place.
+	 */
+	public void checkNoPrelude(String what) {
+		if ( prelude!=null ) {
+			throw new IllegalStateException(what+" would change classes shared with the prelude");
+		}
+	}
+
+	/** Return the global table as a JSON array of names in slot order; the
+	 *  VM needs it to run linked code.
+	 */
+	public JsonArray serializeGlobals() {
+		JsonArrayBuilder names = Json.createArrayBuilder();
+		for (String name : globals.toArray()) {
+			names.add(name);
+		}
+		return names.build();
+	}
+
+	/** Return the classes defining each selector, in class definition
+	 *  order; a class hierarchy analysis of the whole program.
+	 */
+	public Map<String,List<STClass>> getImplementors() {
+		Map<String,List<STClass>> implementors = new HashMap<>();
+		for (STClass c : getClasses()) {
+			for (MethodSymbol m : c.getDefinedMethods()) {
+				implementors.computeIfAbsent(m.getName(), k -> new ArrayList<>()).add(c);
+			}
+		}
+		return implementors;
+	}
+
+	/** Forget a class, as when {@link smalltalk.compiler.TreeShaker} finds
+	 *  it unreachable.
+	 */
+	public void removeClass(String name) {
+		GLOBALS.getMembers().remove(name);
+	}
+
+	/** Return all classes defined in the global scope in definition order. */
+	public List<STClass> getClasses() {
+		List<STClass> classes = new ArrayList<>();
+		for (Symbol s : GLOBALS.getSymbols()) {
+			if ( s instanceof STClass ) {
+				classes.add((STClass) s);
+			}
+		}
+		return classes;
 	}
 }
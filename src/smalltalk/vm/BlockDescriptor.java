@@ -0,0 +1,22 @@
+package smalltalk.vm;
+
+/** A block closure created by the BLOCK instruction. It pairs the
+ *  compiled code with the context in which the block was created so
+ *  the block can reach outer locals and return from its home method.
+ */
+public class BlockDescriptor {
+	public final STCompiledBlock block;
+	public final Context enclosingContext;
+	public final Object receiver;
+
+	public BlockDescriptor(STCompiledBlock block, Context enclosingContext, Object receiver) {
+		this.block = block;
+		this.enclosingContext = enclosingContext;
+		this.receiver = receiver;
+	}
+
+	@Override
+	public String toString() {
+		return "a BlockDescriptor";
+	}
+}
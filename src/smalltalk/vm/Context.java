@@ -0,0 +1,56 @@
+package smalltalk.vm;
+
+/** An activation record for a method or block. Contexts are preallocated
+ *  in a per-depth pool by the {@link VM} and reused by later calls at the
+ *  same depth unless a block has captured them.
+ */
+public class Context {
+	public STCompiledBlock compiledBlock;
+	public Object receiver;
+
+	/** The context in which a block was created; null for methods. PUSH_LOCAL
+	 *  and STORE_LOCAL walk this chain to reach outer variables.
+	 */
+	public Context enclosingContext;
+
+	/** The arguments followed by the local variables */
+	public Object[] locals = new Object[8];
+
+	/** Set when a block refers to this context so it must not be reused */
+	public boolean captured;
+
+	/** Set once a method context finishes so a block's ^ can detect a dead home */
+	public boolean returned;
+
+	/** Last line:charPos reached, as recorded by DBG instructions in code
+	 *  compiled before line tables; see {@link STCompiledBlock#getLocation}.
+	 */
+	public int location;
+
+	public void init(STCompiledBlock compiledBlock, Object receiver, Context enclosingContext) {
+		this.compiledBlock = compiledBlock;
+		this.receiver = receiver;
+		this.enclosingContext = enclosingContext;
+		this.captured = false;
+		this.returned = false;
+		this.location = 0;
+		int n = compiledBlock.nargs + compiledBlock.nlocals;
+		if ( locals.length<n ) {
+			locals = new Object[n];
+		}
+		else {
+			for (int i = compiledBlock.nargs; i<n; i++) {
+				locals[i] = null;
+			}
+		}
+	}
+
+	/** The method context in which this context's block was ultimately defined */
+	public Context home() {
+		Context c = this;
+		while ( c.enclosingContext!=null ) {
+			c = c.enclosingContext;
+		}
+		return c;
+	}
+}
@@ -0,0 +1,107 @@
+package smalltalk.vm;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** A row-displacement dispatch table mapping (class, selector ID) to the
+ *  method to invoke.
+ *
+ *  Conceptually each class has a row indexed by global selector ID holding
+ *  every method it understands, inherited ones included. Most entries are
+ *  empty, so the rows are overlaid in one array: each class's row starts
+ *  at its {@link STMetaClassObject#dispatchOffset}, chosen so that no two
+ *  rows use the same entry. An entry records the class it belongs to so a
+ *  lookup can tell a hit from another class's method.
+ */
+public class DispatchTable {
+	protected final STMetaClassObject[] owners;
+	protected final STCompiledBlock[] methods;
+
+	public DispatchTable(Collection<STMetaClassObject> classes) {
+		Map<STMetaClassObject,TreeMap<Integer,STCompiledBlock>> rows = new HashMap<>();
+		List<STMetaClassObject> order = new ArrayList<>(classes);
+		for (STMetaClassObject c : order) {
+			row(c, rows);
+		}
+		// place the biggest rows first; they are the hardest to fit
+		order.sort((a, b) -> rows.get(b).size()-rows.get(a).size());
+		BitSet used = new BitSet();
+		int size = 0;
+		for (STMetaClassObject c : order) {
+			TreeMap<Integer,STCompiledBlock> row = rows.get(c);
+			int offset = 0;
+			while ( !fits(row, offset, used) ) {
+				offset++;
+			}
+			c.dispatchOffset = offset;
+			for (int id : row.keySet()) {
+				used.set(offset+id);
+			}
+			if ( !row.isEmpty() ) {
+				size = Math.max(size, offset+row.lastKey()+1);
+			}
+		}
+		owners = new STMetaClassObject[size];
+		methods = new STCompiledBlock[size];
+		for (STMetaClassObject c : order) {
+			for (Map.Entry<Integer,STCompiledBlock> e : rows.get(c).entrySet()) {
+				owners[c.dispatchOffset+e.getKey()] = c;
+				methods[c.dispatchOffset+e.getKey()] = e.getValue();
+			}
+		}
+	}
+
+	/** Return the method class c runs for selectorID or null if none */
+	public STCompiledBlock lookup(STMetaClassObject c, int selectorID) {
+		int i = c.dispatchOffset+selectorID;
+		if ( i>=0 && i<owners.length && owners[i]==c ) {
+			return methods[i];
+		}
+		return null;
+	}
+
+	/** The number of entries, used and unused, in the compressed table */
+	public int size() {
+		return owners.length;
+	}
+
+	/** Fraction of entries holding a method */
+	public double density() {
+		if ( owners.length==0 ) return 1.0;
+		int n = 0;
+		for (STMetaClassObject o : owners) {
+			if ( o!=null ) n++;
+		}
+		return n/(double)owners.length;
+	}
+
+	protected static boolean fits(TreeMap<Integer,STCompiledBlock> row, int offset, BitSet used) {
+		for (int id : row.keySet()) {
+			if ( used.get(offset+id) ) return false;
+		}
+		return true;
+	}
+
+	/** The full row for c: its superclass's row overridden by its own methods */
+	protected static TreeMap<Integer,STCompiledBlock> row(STMetaClassObject c,
+														  Map<STMetaClassObject,TreeMap<Integer,STCompiledBlock>> rows)
+	{
+		TreeMap<Integer,STCompiledBlock> row = rows.get(c);
+		if ( row!=null ) {
+			return row;
+		}
+		row = c.superClass!=null ? new TreeMap<>(row(c.superClass, rows)) : new TreeMap<>();
+		for (STCompiledBlock m : c.methods.values()) {
+			if ( m.selectorID>=0 ) {
+				row.put(m.selectorID, m);
+			}
+		}
+		rows.put(c, row);
+		return row;
+	}
+}
@@ -0,0 +1,15 @@
+package smalltalk.vm;
+
+/** Thrown by a ^ inside a block to unwind to the block's home method. */
+public class NonLocalReturn extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public final Context home;
+	public final Object value;
+
+	public NonLocalReturn(Context home, Object value) {
+		super(null, null, false, false); // no stack trace; used for control flow
+		this.home = home;
+		this.value = value;
+	}
+}
@@ -0,0 +1,93 @@
+package smalltalk.vm;
+
+/** The primitives a class can bind with &lt;primitive:#Name&gt;. Constant
+ *  names match the names in Smalltalk source exactly, and constants are
+ *  declared in the order of {@link smalltalk.compiler.Primitives} so a
+ *  compiled block's primitive ID is the ordinal of its constant.
+ */
+public enum Primitive {
+	Object_Class_ERROR(1),
+	Object_Class_BASICNEW(0),
+	Object_PRINT(0),
+	Object_CLASSNAME(0),
+	Object_ASSTRING(0),
+	Object_SAME(1),
+	Object_HASH(0),
+
+	BlockDescriptor_VALUE(0),
+	BlockDescriptor_VALUE_1_ARG(1),
+	BlockDescriptor_VALUE_2_ARGS(2),
+
+	Character_Class_NEW(1),
+	Character_ASINTEGER(0),
+
+	String_Class_NEW(1),
+	String_CAT(1),
+	String_ASARRAY(0),
+	String_EQ(1),
+
+	Boolean_NOT(0),
+	Boolean_IFTRUE(1),
+	Boolean_IFTRUE_IFFALSE(2),
+
+	Integer_ADD(1),
+	Integer_SUB(1),
+	Integer_MULT(1),
+	Integer_DIV(1),
+	Integer_LT(1),
+	Integer_GT(1),
+	Integer_LE(1),
+	Integer_GE(1),
+	Integer_EQ(1),
+	Integer_MOD(1),
+	Integer_ASFLOAT(0),
+
+	Float_ADD(1),
+	Float_SUB(1),
+	Float_MULT(1),
+	Float_DIV(1),
+	Float_LT(1),
+	Float_GT(1),
+	Float_LE(1),
+	Float_GE(1),
+	Float_EQ(1),
+	Float_ASINTEGER(0),
+
+	Array_Class_NEW(1),
+	Array_SIZE(0),
+	Array_AT(1),
+	Array_AT_PUT(2),
+
+	TranscriptStream_SHOW(1)
+	;
+
+	/** Number of arguments, not counting the receiver */
+	public final int nargs;
+
+	Primitive(int nargs) { this.nargs = nargs; }
+
+	protected static final Primitive[] byID = values();
+
+	/** Return the primitive with an ID from the compiler. If the compiler
+	 *  also recorded the name, it must agree.
+	 */
+	public static Primitive forID(int id, String name) {
+		if ( id<0 || id>=byID.length ) {
+			throw new VMException("unknown primitive ID "+id+(name!=null ? " ("+name+")" : ""));
+		}
+		Primitive p = byID[id];
+		if ( name!=null && !name.equals(p.name()) ) {
+			throw new VMException("primitive ID "+id+" is "+p+" not "+name);
+		}
+		return p;
+	}
+
+	public static Primitive lookup(String name) {
+		try {
+			return valueOf(name);
+		}
+		catch (IllegalArgumentException iae) {
+			throw new VMException("unknown primitive "+name);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package smalltalk.vm;
+
+/** A Smalltalk Array; indexed from 1 in Smalltalk code. */
+public class STArray extends STObject {
+	public final Object[] elements;
+
+	public STArray(STMetaClassObject metaclass, int n) {
+		super(metaclass);
+		elements = new Object[n];
+	}
+
+	public STArray(STMetaClassObject metaclass, Object[] elements) {
+		super(metaclass);
+		this.elements = elements;
+	}
+}
@@ -0,0 +1,199 @@
+package smalltalk.vm;
+
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.LineTable;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+
+/** The VM's view of a compiled method or block, loaded from the JSON
+ *  written by {@link smalltalk.compiler.symbols.STCompiledBlock#serialize()}.
+ *
+ *  Each send site has an inline-cache slot numbered by the compiler; see
+ *  {@link smalltalk.compiler.symbols.STCompiledBlock#sendSites}. The
+ *  cache remembers the last receiver class seen at the site and the
+ *  method it resolved to. On a miss, the VM finds the method by the
+ *  site's global selector ID in its {@link DispatchTable}.
+ */
+public class STCompiledBlock {
+	public final String name;
+	public final String qualifiedName;
+	public final int nargs;
+	public final int nlocals;
+	public final byte[] bytecode;
+	public final Primitive primitive;
+	public final boolean isClassMethod;
+
+	/** The class whose code this is; lookup for SEND_SUPER starts above it */
+	public final STMetaClassObject enclosingClass;
+
+	/** The method defining this block. A method is its own method. BLOCK
+	 *  operands index method.blocks.
+	 */
+	public final STCompiledBlock method;
+
+	/** Nested blocks for a method; empty for blocks */
+	public final STCompiledBlock[] blocks;
+
+	/** The global selector ID of this method, from its class's method
+	 *  table; -1 for blocks.
+	 */
+	public int selectorID = -1;
+
+	/** Global selector ID sent by each send site, indexed by cache slot */
+	public final int[] sendSelectors;
+
+	/** The address of each send instruction, indexed by cache slot, as
+	 *  loaded; the VM verifies it against the code before running it.
+	 */
+	public final int[] sendSites;
+
+	/** Maps the address of each send instruction to its cache slot */
+	public final int[] siteAt;
+	public final STMetaClassObject[] cachedClass;
+	public final STCompiledBlock[] cachedMethod;
+
+	/** For each SEND_DIRECT site, the method to call for receivers that
+	 *  are kinds of its class, and for each SEND_SUPER_DIRECT site, the
+	 *  method the super send calls; null at other sites and at direct
+	 *  sites the VM found overridden. Set when the VM links.
+	 */
+	public final STCompiledBlock[] directMethod;
+
+	/** True if the compiler verified this method and its blocks; the VM
+	 *  verifies other code as it links.
+	 */
+	public final boolean verified;
+
+	/** The quick kind and operand of a method with a trivial body (see
+	 *  {@link Bytecode#QUICK_NONE}); the VM answers sends to such methods
+	 *  without a context.
+	 */
+	public final short quickKind;
+	public final int quickOperand;
+
+	/** Source locations of instructions when compiled with -dbg; else null */
+	public final LineTable lines;
+
+	/** A static JVM method (AOTRuntime,Context)Object implementing this
+	 *  code, set by {@link smalltalk.aot.AOTRuntime} when the program was
+	 *  translated ahead of time; null when the code is interpreted.
+	 */
+	public MethodHandle compiledCode;
+
+	public STCompiledBlock(STMetaClassObject enclosingClass, STCompiledBlock method, JsonObject json) {
+		this(enclosingClass, method, json, null);
+	}
+
+	/** Load code whose literal operands index a list other than the
+	 *  class's literals, renumbering operand i to literalMap[i].
+	 */
+	public STCompiledBlock(STMetaClassObject enclosingClass, STCompiledBlock method, JsonObject json, int[] literalMap) {
+		this.enclosingClass = enclosingClass;
+		this.method = method!=null ? method : this;
+		name = json.getString("name");
+		qualifiedName = json.getString("qualifiedName");
+		nargs = json.getInt("nargs");
+		nlocals = json.getInt("nlocals");
+		isClassMethod = json.getBoolean("isClassMethod", false);
+		verified = json.getBoolean("verified", false);
+		quickKind = (short)json.getInt("quickKind", Bytecode.QUICK_NONE);
+		int operand = json.getInt("quickOperand", 0);
+		quickOperand = quickKind==Bytecode.QUICK_LITERAL && literalMap!=null ? literalMap[operand] : operand;
+		if ( json.containsKey("primitive") ) {
+			primitive = Primitive.forID(json.getInt("primitive"), json.getString("primitiveName", null));
+		}
+		else if ( json.containsKey("primitiveName") ) { // written before primitives had IDs
+			primitive = Primitive.lookup(json.getString("primitiveName"));
+		}
+		else {
+			primitive = null;
+		}
+		JsonArray code = json.getJsonArray("bytecode");
+		byte[] codeBytes = new byte[code.size()];
+		for (int i = 0; i<codeBytes.length; i++) {
+			codeBytes[i] = (byte)code.getInt(i);
+		}
+		try {
+			bytecode = literalMap!=null ? Bytecode.remapLiterals(codeBytes, literalMap) : codeBytes;
+		}
+		catch (RuntimeException e) {
+			throw new VMException("malformed shared code in "+qualifiedName);
+		}
+		JsonArray sites = json.getJsonArray("sendSites");
+		sendSites = new int[sites.size()];
+		siteAt = new int[bytecode.length];
+		Arrays.fill(siteAt, -1);
+		for (int i = 0; i<sendSites.length; i++) {
+			sendSites[i] = sites.getInt(i);
+			if ( sendSites[i]>=0 && sendSites[i]<siteAt.length ) { // else verifying fails
+				siteAt[sendSites[i]] = i;
+			}
+		}
+		JsonArray selectors = json.getJsonArray("sendSelectors");
+		sendSelectors = new int[selectors.size()];
+		for (int i = 0; i<sendSelectors.length; i++) {
+			sendSelectors[i] = selectors.getInt(i);
+		}
+		if ( json.containsKey("lines") ) {
+			JsonArray encoded = json.getJsonArray("lines");
+			byte[] bytes = new byte[encoded.size()];
+			for (int i = 0; i<bytes.length; i++) {
+				bytes[i] = (byte)encoded.getInt(i);
+			}
+			lines = LineTable.decode(bytes);
+		}
+		else {
+			lines = null;
+		}
+		cachedClass = new STMetaClassObject[sites.size()];
+		cachedMethod = new STCompiledBlock[sites.size()];
+		directMethod = new STCompiledBlock[sites.size()];
+		JsonArray blockArray = json.getJsonArray("blocks");
+		blocks = new STCompiledBlock[blockArray.size()];
+		for (int i = 0; i<blocks.length; i++) {
+			blocks[i] = new STCompiledBlock(enclosingClass, this, blockArray.getJsonObject(i), literalMap);
+		}
+	}
+
+	public boolean isBlock() { return method!=this; }
+
+	/** Return the selector sent by the send instruction at ip */
+	/** Return the selector sent at send site slot or null if the site or
+	 *  its send is malformed, which verifying reports.
+	 */
+	public String getSiteSelector(int slot) {
+		int ip = sendSites[slot];
+		if ( ip<0 || ip>=bytecode.length || !Bytecode.isSend(bytecode[ip]) ) {
+			return null;
+		}
+		if ( Bytecode.isSpecialSend(bytecode[ip]) ) {
+			return Bytecode.specialSelector(bytecode[ip]);
+		}
+		if ( ip+5>bytecode.length ) {
+			return null;
+		}
+		int literal = Bytecode.getShort(bytecode, ip+3);
+		return literal<enclosingClass.literals.length ? enclosingClass.literals[literal] : null;
+	}
+
+	public String getSelector(int ip) {
+		int opcode = bytecode[ip];
+		if ( Bytecode.isSpecialSend(opcode) ) {
+			return Bytecode.specialSelector(opcode);
+		}
+		return enclosingClass.literals[Bytecode.getShort(bytecode, ip+3)];
+	}
+
+	/** Return the line:charPos of the instruction at ip or -1 if unknown */
+	public int getLocation(int ip) {
+		return lines!=null ? lines.getLocation(ip) : -1;
+	}
+
+	@Override
+	public String toString() {
+		return qualifiedName;
+	}
+}
@@ -0,0 +1,182 @@
+package smalltalk.vm;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The runtime representation of a Smalltalk class, built from the JSON
+ *  written by {@link smalltalk.compiler.symbols.STClass#serialize()}.
+ *  A class object also serves as the receiver of class methods such as
+ *  "Array new: 10"; class and instance methods share one dictionary.
+ */
+public class STMetaClassObject {
+	public final String name;
+	public final String superClassName;
+	public STMetaClassObject superClass;
+
+	/** Strings and selectors referenced by operands in this class's code */
+	public final String[] literals;
+
+	/** Literal arrays pushed by PUSH_CONSTANT, as Object[] of their
+	 *  elements until the VM links them into STArrays.
+	 */
+	public final Object[] constants;
+
+	/** Names of the fields defined in this class, not inherited ones */
+	public final String[] fields;
+
+	/** Total number of fields in an instance, including inherited fields;
+	 *  set once the superclass chain is linked.
+	 */
+	public int numFields;
+
+	public final Map<String,STCompiledBlock> methods = new HashMap<>();
+
+	/** This class's superclass chain from the root class down to this
+	 *  class, so a class's depth in the hierarchy indexes it; set once
+	 *  the superclass chain is linked.
+	 */
+	public STMetaClassObject[] ancestors;
+
+	/** Where this class's row starts in the VM's {@link DispatchTable} */
+	public int dispatchOffset = -1;
+
+	public STMetaClassObject(JsonObject json) {
+		this(json, null);
+	}
+
+	/** Build a class whose methods may refer by index to bodies in a
+	 *  shared section; see {@link smalltalk.compiler.Deduplicator}.
+	 */
+	public STMetaClassObject(JsonObject json, JsonArray shared) {
+		name = json.getString("name");
+		superClassName = json.containsKey("superClassName") ? json.getString("superClassName") : null;
+		JsonArray lits = json.getJsonArray("literals");
+		List<String> literalList = new ArrayList<>();
+		Map<String,Integer> literalIndexes = new HashMap<>();
+		for (int i = 0; i<lits.size(); i++) {
+			literalList.add(lits.getString(i));
+			literalIndexes.put(lits.getString(i), i);
+		}
+		JsonArray constArray = json.containsKey("constants") ? json.getJsonArray("constants") : null;
+		constants = new Object[constArray!=null ? constArray.size() : 0];
+		for (int i = 0; i<constants.length; i++) {
+			constants[i] = loadConstant(constArray.get(i));
+		}
+		JsonArray fieldArray = json.getJsonArray("fields");
+		fields = new String[fieldArray.size()];
+		for (int i = 0; i<fields.length; i++) {
+			fields[i] = fieldArray.getString(i);
+		}
+		List<STCompiledBlock> methodList = new ArrayList<>();
+		for (JsonValue v : json.getJsonArray("methods")) {
+			JsonObject m = (JsonObject)v;
+			STCompiledBlock method;
+			if ( m.containsKey("shared") ) {
+				if ( shared==null || m.getInt("shared")>=shared.size() ) {
+					throw new VMException(m.getString("qualifiedName")+" refers to missing shared body "+m.getInt("shared"));
+				}
+				JsonObject body = shared.getJsonObject(m.getInt("shared"));
+				JsonArray bodyLiterals = body.getJsonArray("literals");
+				int[] literalMap = new int[bodyLiterals.size()];
+				for (int i = 0; i<literalMap.length; i++) {
+					String lit = bodyLiterals.getString(i);
+					Integer index = literalIndexes.get(lit);
+					if ( index==null ) {
+						index = literalList.size();
+						literalList.add(lit);
+						literalIndexes.put(lit, index);
+					}
+					literalMap[i] = index;
+				}
+				method = new STCompiledBlock(this, null, withNames(body, m), literalMap);
+			}
+			else {
+				method = new STCompiledBlock(this, null, m);
+			}
+			methods.put(method.name, method);
+			methodList.add(method);
+		}
+		literals = literalList.toArray(new String[literalList.size()]);
+		for (JsonValue entry : json.getJsonArray("methodTable")) {
+			JsonArray pair = (JsonArray)entry;
+			methodList.get(pair.getInt(1)).selectorID = pair.getInt(0);
+		}
+	}
+
+	/** Decode the JSON written by {@link smalltalk.compiler.symbols.STClass#serializeConstant} */
+	protected static Object loadConstant(JsonValue v) {
+		switch ( v.getValueType() ) {
+			case NULL : return null;
+			case TRUE : return true;
+			case FALSE : return false;
+			case NUMBER : return ((JsonNumber) v).intValue();
+			case STRING : return ((JsonString) v).getString();
+			case ARRAY : {
+				JsonArray a = (JsonArray) v;
+				Object[] elements = new Object[a.size()];
+				for (int i = 0; i<elements.length; i++) {
+					elements[i] = loadConstant(a.get(i));
+				}
+				return elements;
+			}
+		}
+		JsonObject o = (JsonObject) v;
+		if ( o.containsKey("char") ) return o.getString("char").charAt(0);
+		return Float.parseFloat(o.getString("float"));
+	}
+
+	/** Return a shared body with the names from a method referring to it */
+	protected static JsonObject withNames(JsonObject body, JsonObject names) {
+		JsonObjectBuilder builder = Json.createObjectBuilder();
+		for (Map.Entry<String,JsonValue> e : body.entrySet()) {
+			if ( !e.getKey().equals("literals") && !e.getKey().equals("blocks") ) {
+				builder.add(e.getKey(), e.getValue());
+			}
+		}
+		builder.add("name", names.getString("name"));
+		builder.add("qualifiedName", names.getString("qualifiedName"));
+		if ( names.containsKey("isClassMethod") ) {
+			builder.add("isClassMethod", names.getBoolean("isClassMethod"));
+		}
+		JsonArray blocks = body.getJsonArray("blocks");
+		JsonArray blockNames = names.getJsonArray("blocks");
+		JsonArrayBuilder blockArray = Json.createArrayBuilder();
+		for (int i = 0; i<blocks.size(); i++) {
+			blockArray.add(withNames(blocks.getJsonObject(i), blockNames.getJsonObject(i)));
+		}
+		builder.add("blocks", blockArray);
+		return builder.build();
+	}
+
+	/** Find a method in this class or the nearest superclass defining it */
+	public STCompiledBlock resolveMethod(String selector) {
+		STMetaClassObject c = this;
+		while ( c!=null ) {
+			STCompiledBlock m = c.methods.get(selector);
+			if ( m!=null ) return m;
+			c = c.superClass;
+		}
+		return null;
+	}
+
+	/** True if this is c or a subclass of c; constant time */
+	public boolean isKindOf(STMetaClassObject c) {
+		int depth = c.ancestors.length-1;
+		return depth<ancestors.length && ancestors[depth]==c;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,21 @@
+package smalltalk.vm;
+
+/** An instance of a Smalltalk class defined in Smalltalk code. Instances
+ *  of built-in classes like Integer and String are represented directly
+ *  by Java objects; see {@link VM#classOf(Object)}.
+ */
+public class STObject {
+	public final STMetaClassObject metaclass;
+	public final Object[] fields;
+
+	public STObject(STMetaClassObject metaclass) {
+		this.metaclass = metaclass;
+		this.fields = new Object[metaclass.numFields];
+	}
+
+	@Override
+	public String toString() {
+		String name = metaclass.name;
+		return "AEIOU".indexOf(name.charAt(0))>=0 ? "an "+name : "a "+name;
+	}
+}
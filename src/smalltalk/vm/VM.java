@@ -0,0 +1,1125 @@
+package smalltalk.vm;
+
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.Devirtualizer;
+import smalltalk.compiler.ImageArchive;
+import smalltalk.compiler.Linker;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.TreeShaker;
+import smalltalk.compiler.Verifier;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A bytecode interpreter for the output of {@link STC}.
+ *
+ *  Run a program against the standard image like this:
+ *
+ *  $ java smalltalk.vm.VM test/samples/image.st prog.st
+ *
+ *  or load previously written object files with -sto dir or an image
+ *  archive with -image file. Use -time to report how long MainClass>>main
+ *  took to execute and how long each class from an archive took to load.
+ *
+ *  The interpreter is a single switch over the opcodes in {@link Bytecode}.
+ *  Operands live on one preallocated operand stack shared by all contexts,
+ *  and contexts come from a pool indexed by call depth so that a call does
+ *  not allocate unless a block captured the pooled context. Sends use the
+ *  inline-cache slot the compiler assigned to each send site and, on a
+ *  miss, find the method by global selector ID in a {@link DispatchTable}.
+ *
+ *  Smalltalk nil, true/false, integers, floats, characters and strings are
+ *  represented by null, Boolean, Integer, Float, Character and String.
+ */
+public class VM {
+	/** Number of entries in the operand stack shared by all contexts */
+	public static final int DEFAULT_STACK_SIZE = 1<<20;
+
+	/** Loops like whileTrue: and to:do: recurse in Smalltalk so the
+	 *  interpreter thread needs a deep Java stack.
+	 */
+	public static final long THREAD_STACK_SIZE = 1L<<30;
+
+	/** Returned by numeric fast paths that don't apply to their operands */
+	protected static final Object NOT_NUMERIC = new Object();
+
+	public final Map<String,STMetaClassObject> classes = new LinkedHashMap<>();
+
+	/** Global selector IDs assigned by the compiler and the selector each
+	 *  stands for, checked as classes load.
+	 */
+	protected final Map<String,Integer> selectorIDs = new HashMap<>();
+	protected final List<String> selectors = new ArrayList<>();
+
+	/** Names of the program's globals indexed by slot, as numbered by the
+	 *  compiler's linker, and their values once linked.
+	 */
+	protected final List<String> globalNames = new ArrayList<>();
+	protected Object[] globalValues = new Object[0];
+
+	/** Finds methods by class and selector ID; built by {@link #link()} */
+	protected DispatchTable dispatch;
+
+	/** Method bodies shared by loaded classes, or null */
+	protected JsonArray sharedBodies;
+
+	/** Archive whose classes are loaded as {@link #link()} finds them
+	 *  referenced, or null
+	 */
+	protected ImageArchive image;
+
+	/** Where Transcript show: and print write */
+	public PrintStream out = System.out;
+
+	protected final Object[] stack;
+
+	/** Context pool; frames[i] is reused for calls at depth i unless captured */
+	protected Context[] frames = new Context[1024];
+	protected int fp = 0;
+
+	protected STMetaClassObject nilClass;
+	protected STMetaClassObject booleanClass;
+	protected STMetaClassObject integerClass;
+	protected STMetaClassObject floatClass;
+	protected STMetaClassObject characterClass;
+	protected STMetaClassObject stringClass;
+	protected STMetaClassObject arrayClass;
+	protected STMetaClassObject blockClass;
+	protected STObject transcript;
+
+	public VM() {
+		this(DEFAULT_STACK_SIZE);
+	}
+
+	public VM(int stackSize) {
+		stack = new Object[stackSize];
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean specialSends = true;
+		boolean cha = false;
+		boolean quick = true;
+		boolean tail = false;
+		boolean time = false;
+		String stoDir = null;
+		String imageFile = null;
+		List<String> stFiles = new ArrayList<>();
+		for (int i = 0; i<args.length; i++) {
+			switch ( args[i] ) {
+				case "-nospecial" :
+					specialSends = false;
+					break;
+				case "-cha" :
+					cha = true;
+					break;
+				case "-noquick" :
+					quick = false;
+					break;
+				case "-tail" :
+					tail = true;
+					break;
+				case "-time" :
+					time = true;
+					break;
+				case "-sto" :
+					i++;
+					stoDir = args[i];
+					break;
+				case "-image" :
+					i++;
+					imageFile = args[i];
+					break;
+				default :
+					stFiles.add(args[i]);
+					break;
+			}
+		}
+		if ( stoDir==null && imageFile==null && stFiles.isEmpty() ) {
+			System.err.println("$ java smalltalk.vm.VM [-nospecial] [-cha] [-noquick] [-tail] [-time] [-sto dir] [-image file.sti] [image.st] file.st");
+			System.exit(1);
+		}
+
+		VM vm = new VM();
+		if ( stoDir!=null ) {
+			vm.loadDirectory(stoDir);
+		}
+		if ( imageFile!=null ) {
+			vm.loadImage(imageFile);
+		}
+		if ( !stFiles.isEmpty() ) {
+			STSymbolTable symtab = new STSymbolTable();
+			for (String f : stFiles) {
+				Compiler c = new Compiler(symtab);
+				c.genSpecialSends = specialSends;
+				c.genQuickMethods = quick;
+				c.genTailSends = tail;
+				STC.compile(c, f);
+			}
+			if ( cha ) {
+				new Devirtualizer(symtab).devirtualize();
+			}
+			STC.link(symtab);
+			vm.load(symtab);
+		}
+		vm.link();
+		if ( time && vm.image!=null ) {
+			System.err.print(vm.image.getLoadReport());
+		}
+		long start = System.nanoTime();
+		vm.runMain();
+		if ( time ) {
+			System.err.printf("main executed in %.3f ms%n", (System.nanoTime()-start)/1000000.0);
+		}
+	}
+
+	// Loading
+
+	public void load(JsonObject classJSON) {
+		STMetaClassObject c = new STMetaClassObject(classJSON, sharedBodies);
+		for (STCompiledBlock m : c.methods.values()) {
+			defineSelector(m.selectorID, m.name);
+			defineSendSelectors(m);
+		}
+		classes.put(c.name, c);
+	}
+
+	/** Define the selector of each send site; malformed sites are left
+	 *  for {@link #verify} to report when linking.
+	 */
+	protected void defineSendSelectors(STCompiledBlock blk) {
+		int n = Math.min(blk.sendSites.length, blk.sendSelectors.length);
+		for (int slot = 0; slot<n; slot++) {
+			String selector = blk.getSiteSelector(slot);
+			if ( selector!=null && blk.sendSelectors[slot]>=0 ) {
+				defineSelector(blk.sendSelectors[slot], selector);
+			}
+		}
+		for (STCompiledBlock b : blk.blocks) {
+			defineSendSelectors(b);
+		}
+	}
+
+	/** Record that id stands for selector. Code compiled with different
+	 *  symbol tables numbers selectors differently and can't be mixed.
+	 */
+	protected void defineSelector(int id, String selector) {
+		while ( selectors.size()<=id ) {
+			selectors.add(null);
+		}
+		String prev = selectors.get(id);
+		if ( prev!=null && !prev.equals(selector) ) {
+			throw new VMException("selector ID "+id+" is both "+prev+" and "+selector+
+								  "; compile the whole program with one symbol table");
+		}
+		selectors.set(id, selector);
+		selectorIDs.put(selector, id);
+	}
+
+	/** Return the method cl runs for a selector ID or null if it has none */
+	public STCompiledBlock resolveMethod(STMetaClassObject cl, int selectorID) {
+		return dispatch.lookup(cl, selectorID);
+	}
+
+	/** Return the global ID of a selector or -1 if no loaded code uses it */
+	public int selectorID(String selector) {
+		Integer id = selectorIDs.get(selector);
+		return id!=null ? id : -1;
+	}
+
+	/** Load the serialized form of every class in a symbol table and its
+	 *  global table if the program was linked.
+	 */
+	public void load(STSymbolTable symtab) {
+		for (STClass c : symtab.getClasses()) {
+			load(c.serialize());
+		}
+		if ( symtab.globals.size()>0 ) {
+			loadGlobals(symtab.serializeGlobals());
+		}
+	}
+
+	/** Load the method bodies classes loaded after this may share; see
+	 *  {@link smalltalk.compiler.Deduplicator}.
+	 */
+	public void loadShared(JsonArray bodies) {
+		sharedBodies = bodies;
+	}
+
+	/** Load the global table used by PUSH_GLOBAL_SLOT instructions */
+	public void loadGlobals(JsonArray names) {
+		globalNames.clear();
+		for (int i = 0; i<names.size(); i++) {
+			globalNames.add(names.getString(i));
+		}
+	}
+
+	/** Load all .sto files written by {@link STC#writeObjectFiles} in dir
+	 *  plus the global table if there is one.
+	 */
+	public void loadDirectory(String dir) throws IOException {
+		Path globals = Paths.get(dir, STC.GLOBALS_FILE_NAME);
+		if ( Files.exists(globals) ) {
+			try ( Reader r = Files.newBufferedReader(globals); JsonReader json = Json.createReader(r) ) {
+				loadGlobals(json.readArray());
+			}
+		}
+		Path shared = Paths.get(dir, STC.SHARED_FILE_NAME);
+		if ( Files.exists(shared) ) {
+			try ( Reader r = Files.newBufferedReader(shared); JsonReader json = Json.createReader(r) ) {
+				loadShared(json.readArray());
+			}
+		}
+		try ( DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(dir), "*.sto") ) {
+			for (Path f : files) {
+				try ( Reader r = Files.newBufferedReader(f); JsonReader json = Json.createReader(r) ) {
+					load(json.readObject());
+				}
+			}
+		}
+	}
+
+	/** Open an archive written by {@link ImageArchive#write} and load its
+	 *  global table and shared bodies. Its classes are decoded by
+	 *  {@link #link()}, and only those the program can reach.
+	 */
+	public void loadImage(String file) throws IOException {
+		image = new ImageArchive(Paths.get(file));
+		JsonArray globals = image.readGlobals();
+		if ( globals!=null ) {
+			loadGlobals(globals);
+		}
+		JsonArray shared = image.readShared();
+		if ( shared!=null ) {
+			loadShared(shared);
+		}
+	}
+
+	/** Load MainClass and the classes the VM uses from {@link #image},
+	 *  then the classes their code pushes as globals and their
+	 *  superclasses, until nothing new is referenced. Classes already
+	 *  loaded from elsewhere take precedence.
+	 */
+	protected void loadReferencedClasses() {
+		Deque<String> work = new ArrayDeque<>();
+		work.add("MainClass");
+		work.addAll(Arrays.asList(TreeShaker.VM_CLASSES));
+		while ( !work.isEmpty() ) {
+			String name = work.remove();
+			for (String[] g : Linker.PREDEFINED_GLOBALS) {
+				if ( g[0].equals(name) ) name = g[1];
+			}
+			if ( classes.containsKey(name) || !image.hasClass(name) ) continue;
+			try {
+				load(image.readClass(name));
+			}
+			catch (IOException e) {
+				throw new VMException("can't load "+name+": "+e.getMessage());
+			}
+			STMetaClassObject c = classes.get(name);
+			if ( c.superClassName!=null ) {
+				work.add(c.superClassName);
+			}
+			for (STCompiledBlock m : c.methods.values()) {
+				addGlobalsPushed(m, work);
+			}
+		}
+	}
+
+	protected void addGlobalsPushed(STCompiledBlock blk, Deque<String> names) {
+		byte[] code = blk.bytecode;
+		int ip = 0;
+		while ( ip<code.length ) {
+			int opcode = code[ip];
+			if ( opcode==Bytecode.PUSH_GLOBAL ) {
+				names.add(blk.enclosingClass.literals[Bytecode.getShort(code, ip+1)]);
+			}
+			else if ( opcode==Bytecode.PUSH_GLOBAL_SLOT && Bytecode.getShort(code, ip+1)<globalNames.size() ) {
+				names.add(globalNames.get(Bytecode.getShort(code, ip+1)));
+			}
+			ip += Bytecode.instructionSize(opcode);
+		}
+		for (STCompiledBlock b : blk.blocks) {
+			addGlobalsPushed(b, names);
+		}
+	}
+
+	/** Hook up superclasses and find the built-in classes; call once all
+	 *  classes are loaded.
+	 */
+	public void link() {
+		if ( image!=null ) {
+			loadReferencedClasses();
+		}
+		for (STMetaClassObject c : classes.values()) {
+			if ( c.superClassName!=null ) {
+				c.superClass = classes.get(c.superClassName);
+				if ( c.superClass==null ) {
+					throw new VMException("unknown superclass "+c.superClassName+" of "+c.name);
+				}
+			}
+		}
+		for (STMetaClassObject c : classes.values()) {
+			c.numFields = 0;
+			int depth = 0;
+			for (STMetaClassObject s = c; s!=null; s = s.superClass) {
+				c.numFields += s.fields.length;
+				depth++;
+			}
+			c.ancestors = new STMetaClassObject[depth];
+			for (STMetaClassObject s = c; s!=null; s = s.superClass) {
+				c.ancestors[--depth] = s;
+			}
+		}
+		dispatch = new DispatchTable(classes.values());
+		nilClass = classes.get("UndefinedObject");
+		booleanClass = classes.get("Boolean");
+		integerClass = classes.get("Integer");
+		floatClass = classes.get("Float");
+		characterClass = classes.get("Character");
+		stringClass = classes.get("String");
+		arrayClass = classes.get("Array");
+		blockClass = classes.get("BlockDescriptor");
+		for (STMetaClassObject c : classes.values()) {
+			for (int i = 0; i<c.constants.length; i++) {
+				c.constants[i] = constant(c.constants[i]);
+			}
+		}
+		STMetaClassObject transcriptClass = classes.get("TranscriptStream");
+		if ( transcriptClass!=null ) {
+			transcript = new STObject(transcriptClass);
+		}
+		globalValues = new Object[globalNames.size()];
+		for (int i = 0; i<globalValues.length; i++) {
+			String name = globalNames.get(i);
+			// no code pushes a class left in the image so its slot stays nil
+			if ( image==null || classes.containsKey(name) || !image.hasClass(name) ) {
+				globalValues[i] = global(name);
+			}
+		}
+		for (STMetaClassObject c : classes.values()) {
+			for (STCompiledBlock m : c.methods.values()) {
+				if ( !m.verified ) {
+					verify(c, m);
+				}
+			}
+		}
+		Map<STCompiledBlock,Boolean> overridden = new HashMap<>();
+		for (STMetaClassObject c : classes.values()) {
+			for (STCompiledBlock m : c.methods.values()) {
+				bindDirectSends(m, overridden);
+				for (STCompiledBlock blk : m.blocks) {
+					bindDirectSends(blk, overridden);
+				}
+			}
+		}
+	}
+
+	/** Turn a loaded literal array and the arrays nested in it into
+	 *  STArrays, once, so PUSH_CONSTANT pushes the same array each time.
+	 */
+	protected Object constant(Object value) {
+		if ( !(value instanceof Object[]) ) {
+			return value;
+		}
+		Object[] elements = ((Object[]) value).clone();
+		for (int i = 0; i<elements.length; i++) {
+			elements[i] = constant(elements[i]);
+		}
+		return new STArray(arrayClass, elements);
+	}
+
+	/** Find the method each SEND_DIRECT and SEND_SUPER_DIRECT in blk
+	 *  calls. The compiler chose it as its selector's only implementor or
+	 *  as the method the superclass resolved. If a class loaded since then
+	 *  overrides it below its class, a direct site falls back to a normal
+	 *  send, and a super site to a lookup from the superclass.
+	 */
+	protected void bindDirectSends(STCompiledBlock blk, Map<STCompiledBlock,Boolean> overridden) {
+		for (int ip = 0; ip<blk.siteAt.length; ip++) {
+			int slot = blk.siteAt[ip];
+			if ( slot<0 ) continue;
+			int opcode = blk.bytecode[ip];
+			if ( opcode!=Bytecode.SEND_DIRECT && opcode!=Bytecode.SEND_SUPER_DIRECT ) continue;
+			STMetaClassObject target = classes.get(blk.enclosingClass.literals[Bytecode.getShort(blk.bytecode, ip+5)]);
+			int id = blk.sendSelectors[slot];
+			STCompiledBlock m = target!=null ? dispatch.lookup(target, id) : null;
+			if ( m==null ) continue;
+			if ( opcode==Bytecode.SEND_SUPER_DIRECT ) {
+				STMetaClassObject superClass = blk.enclosingClass.superClass;
+				if ( superClass!=null && dispatch.lookup(superClass, id)==m ) {
+					blk.directMethod[slot] = m;
+				}
+			}
+			else if ( !overridden.computeIfAbsent(m, k -> isOverridden(k, id)) ) {
+				blk.directMethod[slot] = m;
+			}
+		}
+	}
+
+	/** True if some class inheriting m finds another method for its selector */
+	protected boolean isOverridden(STCompiledBlock m, int id) {
+		for (STMetaClassObject c : classes.values()) {
+			if ( c.isKindOf(m.enclosingClass) && dispatch.lookup(c, id)!=m ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Check code the compiler didn't mark as verified so that
+	 *  {@link #exec} never sees malformed code; see {@link Verifier}.
+	 */
+	protected void verify(STMetaClassObject c, STCompiledBlock m) {
+		int n = m.blocks.length+1;
+		String[] names = new String[n];
+		byte[][] code = new byte[n][];
+		int[] nvars = new int[n];
+		int[][] sites = new int[n][];
+		int[] nselectors = new int[n];
+		for (int i = 0; i<n; i++) {
+			STCompiledBlock blk = i==0 ? m : m.blocks[i-1];
+			names[i] = blk.qualifiedName;
+			code[i] = blk.bytecode;
+			nvars[i] = blk.nargs+blk.nlocals;
+			sites[i] = blk.sendSites;
+			nselectors[i] = blk.sendSelectors.length;
+		}
+		Verifier verifier = new Verifier();
+		if ( !verifier.verify(names, code, nvars, sites, nselectors,
+							  c.literals.length, c.constants.length, c.numFields, globalNames.size()) ) {
+			throw new VMException("verify errors: "+verifier.errors);
+		}
+		// a quick tag must describe the verified code, so its operand is in range
+		int[] operand = new int[1];
+		if ( m.quickKind!=Bytecode.QUICK_NONE &&
+			 (Bytecode.quickKind(m.bytecode, m.nargs, operand)!=m.quickKind || operand[0]!=m.quickOperand) )
+		{
+			throw new VMException("verify errors: ["+m.qualifiedName+": quick kind "+
+								  m.quickKind+" operand "+m.quickOperand+" doesn't match its code]");
+		}
+	}
+
+	// Execution
+
+	/** Run MainClass>>main on a thread with a deep stack and return its result */
+	public Object runMain() throws InterruptedException {
+		Object[] result = new Object[1];
+		RuntimeException[] error = new RuntimeException[1];
+		Thread t = new Thread(null, () -> {
+			try {
+				result[0] = execMain();
+			}
+			catch (RuntimeException e) {
+				error[0] = e;
+			}
+			catch (StackOverflowError soe) {
+				error[0] = new VMException("stack overflow");
+			}
+		}, "smalltalk-main", THREAD_STACK_SIZE);
+		t.start();
+		t.join();
+		if ( error[0]!=null ) {
+			throw error[0];
+		}
+		return result[0];
+	}
+
+	/** Run MainClass>>main on the current thread */
+	public Object execMain() {
+		STMetaClassObject mainClass = classes.get("MainClass");
+		if ( mainClass==null ) {
+			throw new VMException("no main program");
+		}
+		return send(new STObject(mainClass), "main", 0);
+	}
+
+	/** Send a message from Java code, using the operand stack above sp */
+	public Object send(Object receiver, String selector, int sp, Object... args) {
+		STMetaClassObject cl = classOf(receiver);
+		STCompiledBlock m = cl.resolveMethod(selector);
+		if ( m==null ) {
+			throw new VMException(cl.name+" does not understand "+selector);
+		}
+		System.arraycopy(args, 0, stack, sp, args.length);
+		return invoke(m, receiver, sp, sp+args.length);
+	}
+
+	/** Invoke method m on receiver. The arguments are in stack[argStart..sp-1]
+	 *  and the method may use the operand stack from sp upwards.
+	 */
+	protected Object invoke(STCompiledBlock m, Object receiver, int argStart, int sp) {
+		if ( m.primitive!=null ) {
+			return primitive(m.primitive, receiver, argStart, sp);
+		}
+		if ( m.quickKind!=Bytecode.QUICK_NONE ) {
+			return quick(m, receiver, argStart);
+		}
+		int savedFp = fp;
+		Context ctx = pushContext(m, receiver, null);
+		System.arraycopy(stack, argStart, ctx.locals, 0, m.nargs);
+		try {
+			return exec(ctx, sp);
+		}
+		catch (NonLocalReturn nlr) {
+			if ( nlr.home==ctx ) {
+				return nlr.value;
+			}
+			throw nlr;
+		}
+		finally {
+			ctx.returned = true;
+			fp = savedFp;
+		}
+	}
+
+	/** Answer a send to a quick method without running its code. The
+	 *  results are those of the code the compiler recognized.
+	 */
+	protected Object quick(STCompiledBlock m, Object receiver, int argStart) {
+		switch ( m.quickKind ) {
+			case Bytecode.QUICK_SELF :
+				return receiver;
+			case Bytecode.QUICK_FIELD :
+				return ((STObject)receiver).fields[m.quickOperand];
+			case Bytecode.QUICK_SET_FIELD :
+				((STObject)receiver).fields[m.quickOperand] = stack[argStart];
+				return receiver;
+			case Bytecode.QUICK_LITERAL :
+				return m.enclosingClass.literals[m.quickOperand];
+			case Bytecode.QUICK_NIL :
+				return null;
+			case Bytecode.QUICK_TRUE :
+				return Boolean.TRUE;
+			case Bytecode.QUICK_FALSE :
+				return Boolean.FALSE;
+			case Bytecode.QUICK_INT :
+				return m.quickOperand;
+			case Bytecode.QUICK_CHAR :
+				return (char)m.quickOperand;
+			case Bytecode.QUICK_FLOAT :
+				return Float.intBitsToFloat(m.quickOperand);
+			default :
+				throw new VMException("invalid quick kind "+m.quickKind+" in "+m.qualifiedName);
+		}
+	}
+
+	/** Evaluate a block with up to two arguments */
+	protected Object value(BlockDescriptor blk, int sp, int nargs, Object a, Object b) {
+		STCompiledBlock code = blk.block;
+		if ( code.nargs!=nargs ) {
+			throw new VMException(code.qualifiedName+" expects "+code.nargs+" args not "+nargs);
+		}
+		int savedFp = fp;
+		Context ctx = pushContext(code, blk.receiver, blk.enclosingContext);
+		if ( nargs>0 ) ctx.locals[0] = a;
+		if ( nargs>1 ) ctx.locals[1] = b;
+		try {
+			return exec(ctx, sp);
+		}
+		catch (NonLocalReturn nlr) {
+			// a tail send may have turned ctx into a method context
+			if ( nlr.home==ctx ) {
+				return nlr.value;
+			}
+			throw nlr;
+		}
+		finally {
+			ctx.returned = true;
+			fp = savedFp;
+		}
+	}
+
+	protected Context pushContext(STCompiledBlock m, Object receiver, Context enclosing) {
+		if ( fp==frames.length ) {
+			frames = Arrays.copyOf(frames, frames.length*2);
+		}
+		Context ctx = frames[fp];
+		if ( ctx==null || ctx.captured ) {
+			ctx = new Context();
+			frames[fp] = ctx;
+		}
+		fp++;
+		ctx.init(m, receiver, enclosing);
+		return ctx;
+	}
+
+	/** Execute the code for ctx until it returns; the operand stack starts
+	 *  at sp. Code has been verified by the time it gets here so operands
+	 *  are used without checking them.
+	 */
+	protected Object exec(Context ctx, int sp) {
+		// SEND_TAIL switches ctx to run another method
+		STCompiledBlock blk = ctx.compiledBlock;
+		byte[] code = blk.bytecode;
+		String[] literals = blk.enclosingClass.literals;
+		Object[] constants = blk.enclosingClass.constants;
+		final Object[] stack = this.stack;
+		Object[] locals = ctx.locals;
+		int ip = 0;
+		while ( true ) {
+			int opcode = code[ip];
+			switch ( opcode ) {
+				case Bytecode.NIL :
+					stack[sp++] = null;
+					ip++;
+					break;
+				case Bytecode.SELF :
+					stack[sp++] = ctx.receiver;
+					ip++;
+					break;
+				case Bytecode.TRUE :
+					stack[sp++] = Boolean.TRUE;
+					ip++;
+					break;
+				case Bytecode.FALSE :
+					stack[sp++] = Boolean.FALSE;
+					ip++;
+					break;
+				case Bytecode.PUSH_CHAR :
+					stack[sp++] = (char)Bytecode.getShort(code, ip+1);
+					ip += 3;
+					break;
+				case Bytecode.PUSH_INT :
+					stack[sp++] = Bytecode.getInt(code, ip+1);
+					ip += 5;
+					break;
+				case Bytecode.PUSH_FLOAT :
+					stack[sp++] = Float.intBitsToFloat(Bytecode.getInt(code, ip+1));
+					ip += 5;
+					break;
+				case Bytecode.PUSH_FIELD :
+					stack[sp++] = ((STObject)ctx.receiver).fields[Bytecode.getShort(code, ip+1)];
+					ip += 3;
+					break;
+				case Bytecode.PUSH_LOCAL : {
+					int delta = Bytecode.getShort(code, ip+1);
+					Object[] vars = delta==0 ? locals : outerContext(ctx, delta).locals;
+					stack[sp++] = vars[Bytecode.getShort(code, ip+3)];
+					ip += 5;
+					break;
+				}
+				case Bytecode.PUSH_LITERAL :
+					stack[sp++] = literals[Bytecode.getShort(code, ip+1)];
+					ip += 3;
+					break;
+				case Bytecode.PUSH_GLOBAL :
+					stack[sp++] = global(literals[Bytecode.getShort(code, ip+1)]);
+					ip += 3;
+					break;
+				case Bytecode.PUSH_GLOBAL_SLOT :
+					stack[sp++] = globalValues[Bytecode.getShort(code, ip+1)];
+					ip += 3;
+					break;
+				case Bytecode.PUSH_CONSTANT :
+					stack[sp++] = constants[Bytecode.getShort(code, ip+1)];
+					ip += 3;
+					break;
+				case Bytecode.PUSH_ARRAY : {
+					int n = Bytecode.getShort(code, ip+1);
+					Object[] elements = new Object[n];
+					sp -= n;
+					System.arraycopy(stack, sp, elements, 0, n);
+					stack[sp++] = new STArray(arrayClass, elements);
+					ip += 3;
+					break;
+				}
+				case Bytecode.STORE_FIELD :
+					((STObject)ctx.receiver).fields[Bytecode.getShort(code, ip+1)] = stack[sp-1];
+					ip += 3;
+					break;
+				case Bytecode.STORE_LOCAL : {
+					int delta = Bytecode.getShort(code, ip+1);
+					Object[] vars = delta==0 ? locals : outerContext(ctx, delta).locals;
+					vars[Bytecode.getShort(code, ip+3)] = stack[sp-1];
+					ip += 5;
+					break;
+				}
+				case Bytecode.POP :
+					sp--;
+					ip++;
+					break;
+				case Bytecode.DUP :
+					stack[sp] = stack[sp-1];
+					sp++;
+					ip++;
+					break;
+				case Bytecode.SEND : {
+					int nargs = Bytecode.getShort(code, ip+1);
+					Object recv = stack[sp-nargs-1];
+					STCompiledBlock m = lookup(blk, ip, classOf(recv), literals[Bytecode.getShort(code, ip+3)]);
+					Object result = invoke(m, recv, sp-nargs, sp);
+					sp -= nargs;
+					stack[sp-1] = result;
+					ip += 5;
+					break;
+				}
+				case Bytecode.SEND_TAIL : {
+					int nargs = Bytecode.getShort(code, ip+1);
+					Object recv = stack[sp-nargs-1];
+					STCompiledBlock m = lookup(blk, ip, classOf(recv), literals[Bytecode.getShort(code, ip+3)]);
+					if ( ctx.captured || m.primitive!=null || m.quickKind!=Bytecode.QUICK_NONE || m.compiledCode!=null ) {
+						Object result = invoke(m, recv, sp-nargs, sp);
+						sp -= nargs;
+						stack[sp-1] = result;
+						ip += 5;
+						break;
+					}
+					// nothing refers to ctx and its code is done, so m runs in it
+					sp -= nargs+1;
+					ctx.init(m, recv, null);
+					System.arraycopy(stack, sp+1, ctx.locals, 0, nargs);
+					blk = m;
+					code = m.bytecode;
+					literals = m.enclosingClass.literals;
+					constants = m.enclosingClass.constants;
+					locals = ctx.locals;
+					ip = 0;
+					break;
+				}
+				case Bytecode.SEND_SUPER : {
+					int nargs = Bytecode.getShort(code, ip+1);
+					Object recv = stack[sp-nargs-1];
+					STCompiledBlock m = lookup(blk, ip, blk.enclosingClass.superClass, literals[Bytecode.getShort(code, ip+3)]);
+					Object result = invoke(m, recv, sp-nargs, sp);
+					sp -= nargs;
+					stack[sp-1] = result;
+					ip += 5;
+					break;
+				}
+				case Bytecode.SEND_DIRECT : {
+					int nargs = Bytecode.getShort(code, ip+1);
+					Object recv = stack[sp-nargs-1];
+					STMetaClassObject cl = classOf(recv);
+					STCompiledBlock m = blk.directMethod[blk.siteAt[ip]];
+					if ( m==null || cl==null || !cl.isKindOf(m.enclosingClass) ) {
+						m = lookup(blk, ip, cl, literals[Bytecode.getShort(code, ip+3)]);
+					}
+					Object result = invoke(m, recv, sp-nargs, sp);
+					sp -= nargs;
+					stack[sp-1] = result;
+					ip += 7;
+					break;
+				}
+				case Bytecode.SEND_SUPER_DIRECT : {
+					// the receiver is self so the bound method always applies
+					int nargs = Bytecode.getShort(code, ip+1);
+					Object recv = stack[sp-nargs-1];
+					STCompiledBlock m = blk.directMethod[blk.siteAt[ip]];
+					if ( m==null ) {
+						m = lookup(blk, ip, blk.enclosingClass.superClass, literals[Bytecode.getShort(code, ip+3)]);
+					}
+					Object result = invoke(m, recv, sp-nargs, sp);
+					sp -= nargs;
+					stack[sp-1] = result;
+					ip += 7;
+					break;
+				}
+				case Bytecode.BLOCK :
+					ctx.captured = true;
+					stack[sp++] = new BlockDescriptor(blk.method.blocks[Bytecode.getShort(code, ip+1)], ctx, ctx.receiver);
+					ip += 3;
+					break;
+				case Bytecode.BLOCK_RETURN :
+					return stack[sp-1];
+				case Bytecode.RETURN :
+					if ( blk.isBlock() ) {
+						Context home = ctx.home();
+						if ( home.returned ) {
+							throw new VMException("BlockCannotReturn: "+home.compiledBlock.qualifiedName+" already returned");
+						}
+						throw new NonLocalReturn(home, stack[sp-1]);
+					}
+					return stack[sp-1];
+				case Bytecode.DBG :
+					ctx.location = Bytecode.getInt(code, ip+3);
+					ip += 7;
+					break;
+				case Bytecode.ADD :
+				case Bytecode.SUB :
+				case Bytecode.MUL :
+				case Bytecode.DIV :
+				case Bytecode.LT :
+				case Bytecode.GT :
+				case Bytecode.LE :
+				case Bytecode.GE :
+				case Bytecode.EQ :
+				case Bytecode.NE :
+				case Bytecode.SAME : {
+					Object result = numeric(opcode, stack[sp-2], stack[sp-1]);
+					if ( result==NOT_NUMERIC ) {
+						Object recv = stack[sp-2];
+						STCompiledBlock m = lookup(blk, ip, classOf(recv), Bytecode.specialSelector(opcode));
+						result = invoke(m, recv, sp-1, sp);
+					}
+					sp--;
+					stack[sp-1] = result;
+					ip++;
+					break;
+				}
+				default :
+					throw new VMException("invalid opcode "+opcode+" at "+ip+" in "+blk.qualifiedName);
+			}
+		}
+	}
+
+	protected static Context outerContext(Context ctx, int delta) {
+		while ( delta>0 ) {
+			ctx = ctx.enclosingContext;
+			delta--;
+		}
+		return ctx;
+	}
+
+	/** Find the method for the send at ip, consulting its inline cache first */
+	protected STCompiledBlock lookup(STCompiledBlock blk, int ip, STMetaClassObject cl, String selector) {
+		int slot = blk.siteAt[ip];
+		if ( blk.cachedClass[slot]==cl && cl!=null ) {
+			return blk.cachedMethod[slot];
+		}
+		if ( cl==null ) {
+			throw new VMException("no class to look up "+selector+" in "+blk.qualifiedName);
+		}
+		STCompiledBlock m = dispatch.lookup(cl, blk.sendSelectors[slot]);
+		if ( m==null ) {
+			throw new VMException(cl.name+" does not understand "+selector);
+		}
+		blk.cachedClass[slot] = cl;
+		blk.cachedMethod[slot] = m;
+		return m;
+	}
+
+	/** Return the value of the global in a slot of the linked global table */
+	public Object global(int slot) {
+		if ( slot>=globalValues.length ) {
+			throw new VMException("no global in slot "+slot+"; load the program's global table");
+		}
+		return globalValues[slot];
+	}
+
+	public Object global(String name) {
+		STMetaClassObject c = classes.get(name);
+		if ( c!=null ) {
+			return c;
+		}
+		if ( name.equals("Transcript") && transcript!=null ) {
+			return transcript;
+		}
+		throw new VMException("unknown global "+name);
+	}
+
+	public STMetaClassObject classOf(Object o) {
+		if ( o instanceof STObject ) return ((STObject)o).metaclass;
+		if ( o instanceof Integer ) return integerClass;
+		if ( o==null ) return nilClass;
+		if ( o instanceof Boolean ) return booleanClass;
+		if ( o instanceof String ) return stringClass;
+		if ( o instanceof Float ) return floatClass;
+		if ( o instanceof Character ) return characterClass;
+		if ( o instanceof BlockDescriptor ) return blockClass;
+		if ( o instanceof STMetaClassObject ) return (STMetaClassObject)o;
+		throw new VMException("not a Smalltalk object: "+o);
+	}
+
+	/** Apply a special-selector opcode to two numbers, returning NOT_NUMERIC
+	 *  if either operand isn't an Integer or Float or the operation would
+	 *  fail (integer division by zero) so the caller does a real send.
+	 */
+	protected static Object numeric(int opcode, Object a, Object b) {
+		if ( a instanceof Integer && b instanceof Integer ) {
+			int x = (Integer)a;
+			int y = (Integer)b;
+			switch ( opcode ) {
+				case Bytecode.ADD : return x+y;
+				case Bytecode.SUB : return x-y;
+				case Bytecode.MUL : return x*y;
+				case Bytecode.DIV : return y!=0 ? x/y : NOT_NUMERIC;
+				case Bytecode.LT : return x<y;
+				case Bytecode.GT : return x>y;
+				case Bytecode.LE : return x<=y;
+				case Bytecode.GE : return x>=y;
+				case Bytecode.EQ :
+				case Bytecode.SAME : return x==y;
+				case Bytecode.NE : return x!=y;
+			}
+		}
+		else if ( (a instanceof Integer || a instanceof Float) &&
+		          (b instanceof Integer || b instanceof Float) )
+		{
+			float x = ((Number)a).floatValue();
+			float y = ((Number)b).floatValue();
+			switch ( opcode ) {
+				case Bytecode.ADD : return x+y;
+				case Bytecode.SUB : return x-y;
+				case Bytecode.MUL : return x*y;
+				case Bytecode.DIV : return x/y;
+				case Bytecode.LT : return x<y;
+				case Bytecode.GT : return x>y;
+				case Bytecode.LE : return x<=y;
+				case Bytecode.GE : return x>=y;
+				case Bytecode.EQ : return x==y;
+				case Bytecode.NE : return x!=y;
+				case Bytecode.SAME : return a.equals(b);
+			}
+		}
+		return NOT_NUMERIC;
+	}
+
+	// Primitives
+
+	protected Object primitive(Primitive p, Object self, int argStart, int sp) {
+		Object a = p.nargs>0 ? stack[argStart] : null;
+		Object b = p.nargs>1 ? stack[argStart+1] : null;
+		try {
+			switch ( p ) {
+				case Object_Class_ERROR :
+					throw new VMException(asString(a, sp));
+				case Object_Class_BASICNEW :
+					return new STObject((STMetaClassObject)self);
+				case Object_PRINT :
+					out.println(asString(self, sp));
+					return self;
+				case Object_CLASSNAME :
+					return classOf(self).name;
+				case Object_ASSTRING :
+					return defaultAsString(self);
+				case Object_SAME :
+					return self==a || ((self instanceof Number || self instanceof Character) && self.equals(a));
+				case Object_HASH :
+					if ( self instanceof Integer || self instanceof String ) return self.hashCode();
+					return System.identityHashCode(self);
+
+				case BlockDescriptor_VALUE :
+					return value((BlockDescriptor)self, sp, 0, null, null);
+				case BlockDescriptor_VALUE_1_ARG :
+					return value((BlockDescriptor)self, sp, 1, a, null);
+				case BlockDescriptor_VALUE_2_ARGS :
+					return value((BlockDescriptor)self, sp, 2, a, b);
+
+				case Character_Class_NEW :
+					return (char)(int)(Integer)a;
+				case Character_ASINTEGER :
+					return (int)(Character)self;
+
+				case String_Class_NEW :
+					if ( a instanceof Character ) return String.valueOf((char)(Character)a);
+					if ( a instanceof Integer ) return new String(new char[(Integer)a]).replace('\0', ' ');
+					return (String)a;
+				case String_CAT :
+					if ( !(a instanceof String) ) {
+						throw new VMException("can't concatenate "+classOf(a).name+" to String");
+					}
+					return (String)self+a;
+				case String_ASARRAY : {
+					String s = (String)self;
+					Object[] chars = new Object[s.length()];
+					for (int i = 0; i<chars.length; i++) chars[i] = s.charAt(i);
+					return new STArray(arrayClass, chars);
+				}
+				case String_EQ :
+					return self.equals(a);
+
+				case Boolean_NOT :
+					return !(Boolean)self;
+				case Boolean_IFTRUE :
+					return (Boolean)self ? value((BlockDescriptor)a, sp, 0, null, null) : null;
+				case Boolean_IFTRUE_IFFALSE :
+					return value((BlockDescriptor)((Boolean)self ? a : b), sp, 0, null, null);
+
+				case Integer_ADD : return arithmetic(Bytecode.ADD, self, a);
+				case Integer_SUB : return arithmetic(Bytecode.SUB, self, a);
+				case Integer_MULT : return arithmetic(Bytecode.MUL, self, a);
+				case Integer_DIV :
+					if ( a instanceof Integer && (Integer)a==0 ) throw new VMException("divide by zero");
+					return arithmetic(Bytecode.DIV, self, a);
+				case Integer_LT : return arithmetic(Bytecode.LT, self, a);
+				case Integer_GT : return arithmetic(Bytecode.GT, self, a);
+				case Integer_LE : return arithmetic(Bytecode.LE, self, a);
+				case Integer_GE : return arithmetic(Bytecode.GE, self, a);
+				case Integer_EQ : return a instanceof Number && arithmetic(Bytecode.EQ, self, a)==Boolean.TRUE;
+				case Integer_MOD :
+					if ( (Integer)a==0 ) throw new VMException("divide by zero");
+					return Math.floorMod((Integer)self, (Integer)a);
+				case Integer_ASFLOAT : return (float)(Integer)self;
+
+				case Float_ADD : return arithmetic(Bytecode.ADD, self, a);
+				case Float_SUB : return arithmetic(Bytecode.SUB, self, a);
+				case Float_MULT : return arithmetic(Bytecode.MUL, self, a);
+				case Float_DIV : return arithmetic(Bytecode.DIV, self, a);
+				case Float_LT : return arithmetic(Bytecode.LT, self, a);
+				case Float_GT : return arithmetic(Bytecode.GT, self, a);
+				case Float_LE : return arithmetic(Bytecode.LE, self, a);
+				case Float_GE : return arithmetic(Bytecode.GE, self, a);
+				case Float_EQ : return a instanceof Number && arithmetic(Bytecode.EQ, self, a)==Boolean.TRUE;
+				case Float_ASINTEGER : return (int)(float)(Float)self;
+
+				case Array_Class_NEW :
+					return new STArray((STMetaClassObject)self, (Integer)a);
+				case Array_SIZE :
+					return ((STArray)self).elements.length;
+				case Array_AT :
+					return ((STArray)self).elements[index((STArray)self, a)];
+				case Array_AT_PUT :
+					((STArray)self).elements[index((STArray)self, a)] = b;
+					return b;
+
+				case TranscriptStream_SHOW :
+					out.println(asString(a, sp));
+					return self;
+			}
+		}
+		catch (ClassCastException cce) {
+			throw new VMException("primitive "+p+" can't be applied to "+classOf(self).name+
+								  (p.nargs>0 ? " with arg "+classOf(a).name : ""));
+		}
+		throw new VMException("unimplemented primitive "+p);
+	}
+
+	protected Object arithmetic(int opcode, Object x, Object y) {
+		Object result = numeric(opcode, x, y);
+		if ( result==NOT_NUMERIC ) {
+			throw new VMException("can't apply "+Bytecode.specialSelector(opcode)+" to "+
+								  classOf(x).name+" and "+classOf(y).name);
+		}
+		return result;
+	}
+
+	protected static int index(STArray array, Object i) {
+		int index = (Integer)i;
+		if ( index<1 || index>array.elements.length ) {
+			throw new VMException("index "+index+" out of range 1.."+array.elements.length);
+		}
+		return index-1;
+	}
+
+	/** Convert an object to a Java string by sending it asString */
+	protected String asString(Object o, int sp) {
+		if ( o instanceof String ) return (String)o;
+		Object s = send(o, "asString", sp);
+		return s instanceof String ? (String)s : defaultAsString(s);
+	}
+
+	protected static String defaultAsString(Object o) {
+		if ( o==null ) return "nil";
+		return o.toString();
+	}
+}
@@ -0,0 +1,12 @@
+package smalltalk.vm;
+
+/** A Smalltalk runtime error such as a message not understood or a
+ *  primitive applied to the wrong kind of object.
+ */
+public class VMException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public VMException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,146 @@
+package smalltalk.aot.test;
+
+import org.junit.Test;
+import smalltalk.aot.AOTCompiler;
+import smalltalk.aot.AOTRuntime;
+import smalltalk.compiler.Devirtualizer;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VMException;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static smalltalk.compiler.test.BaseTest.compileWithImage;
+import static smalltalk.compiler.test.BaseTest.runMain;
+import static smalltalk.vm.test.TestVM.execAndCapture;
+
+public class TestAOT {
+	@Test public void testHello() throws Exception {
+		assertSameOutput("Transcript show: 'hello'.");
+	}
+
+	@Test public void testArithmetic() throws Exception {
+		String input =
+			"Transcript show: 3 + 4 * 2.\n" +
+			"Transcript show: 7 / 2.0.\n" +
+			"Transcript show: 1 - 2.5.\n" +
+			"Transcript show: 3 ~= 3.\n" +
+			"Transcript show: (10 mod: 3).\n";
+		assertSameOutput(input);
+	}
+
+	@Test public void testFieldsAndSuper() throws Exception {
+		String input =
+			"class P [\n" +
+			"    | x y |\n" +
+			"    class x: ax y: ay [ ^self new setX: ax y: ay ]\n" +
+			"    setX: ax y: ay [ x := ax. y := ay ]\n" +
+			"    asString [ ^x asString, '@', y asString ]\n" +
+			"]\n" +
+			"class P3 : P [\n" +
+			"    | z |\n" +
+			"    z: az [ z := az ]\n" +
+			"    asString [ ^super asString, '@', z asString ]\n" +
+			"]\n" +
+			"Transcript show: (P x: 1 y: 2).\n" +
+			"Transcript show: ((P3 x: 1 y: 2) z: 3).\n";
+		assertSameOutput(input);
+	}
+
+	@Test public void testBlocksAndNonLocalReturn() throws Exception {
+		String input =
+			"class T [\n" +
+			"    find: n [ 1 to: 10 do: [:i | i = n ifTrue: [^i * 100]]. ^0 ]\n" +
+			"    a: a b: b c: c d: d [ ^{a. b. c. d} ]\n" +
+			"]\n" +
+			"| sum blk |\n" +
+			"sum := 0.\n" +
+			"1 to: 10 do: [:i | sum := sum + i].\n" +
+			"blk := [:a :b | a * b + sum].\n" +
+			"Transcript show: (blk value: 2 value: 3).\n" +
+			"Transcript show: (T new find: 4).\n" +
+			"Transcript show: (T new find: 40).\n" +
+			"Transcript show: (T new a: 1 b: $c c: 'x' d: nil).\n";
+		assertSameOutput(input);
+	}
+
+	@Test public void testWhileTrue() throws Exception {
+		String input =
+			"| i |\n" +
+			"i := 0.\n" +
+			"[i < 1000] whileTrue: [i := i + 1].\n" +
+			"Transcript show: i.\n";
+		assertSameOutput(input);
+	}
+
+	@Test public void testDoesNotUnderstand() throws Exception {
+		try {
+			execTranslated("3 foo.");
+			fail("expected VMException");
+		}
+		catch (VMException e) {
+			assertEquals("Integer does not understand foo", e.getMessage());
+		}
+	}
+
+	@Test public void testDirectSends() throws Exception {
+		String input =
+			"class A [ f: x [ ^x * 2 ] ]\n" +
+			"class B : A [ g [ ^self f: 21 ] ]\n" +
+			"Transcript show: B new g.\n";
+		STSymbolTable symtab = compile(input);
+		assertTrue(new Devirtualizer(symtab).devirtualize()>0);
+		AOTRuntime rt = new AOTRuntime();
+		rt.load(symtab);
+		rt.link();
+		rt.install(new AOTCompiler().translate(symtab));
+		assertEquals("42\n", runMain(rt));
+	}
+
+	@Test public void testJarRoundTrip() throws Exception {
+		STSymbolTable symtab = compile("Transcript show: 6 * 7.");
+		File jar = File.createTempFile("aot", ".jar");
+		try {
+			AOTCompiler.writeJar(jar.getPath(), new AOTCompiler().translate(symtab));
+			AOTRuntime rt = new AOTRuntime();
+			rt.load(symtab);
+			rt.link();
+			rt.loadJar(jar.getPath());
+			assertTrue(rt.classes.get("MainClass").methods.get("main").compiledCode!=null);
+			assertEquals("42\n", runMain(rt));
+		}
+		finally {
+			Files.delete(jar.toPath());
+		}
+	}
+
+	@Test public void testMangle() {
+		assertEquals("at$3aput$3a", AOTCompiler.jvmMethodName("at:put:"));
+		assertEquals("$2b$$0", AOTCompiler.jvmBlockName("+", 0));
+	}
+
+	public static void assertSameOutput(String input) throws Exception {
+		assertEquals(execAndCapture(input), execTranslated(input));
+	}
+
+	public static String execTranslated(String input) throws Exception {
+		STSymbolTable symtab = compile(input);
+		Map<String,byte[]> classes = new AOTCompiler().translate(symtab);
+		AOTRuntime rt = new AOTRuntime();
+		rt.load(symtab);
+		rt.link();
+		rt.install(classes);
+		return runMain(rt);
+	}
+
+	public static STSymbolTable compile(String input) {
+		STSymbolTable symtab = compileWithImage(input);
+		STC.link(symtab);
+		return symtab;
+	}
+}
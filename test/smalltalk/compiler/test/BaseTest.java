@@ -9,15 +9,19 @@ import smalltalk.compiler.Compiler;
 import smalltalk.compiler.STC;
 import smalltalk.compiler.symbols.STClass;
 import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 import static junit.framework.TestCase.assertEquals;
 
@@ -41,10 +45,23 @@ public class BaseTest {
 	}
 
 	public String compile(String fileName, String input, boolean genDbg) {
-		StringBuilder code = new StringBuilder();
-		smalltalk.compiler.Compiler c = new Compiler();
+		return testString(compileToSymbolTable(fileName, input, genDbg));
+	}
+
+	public static STSymbolTable compileToSymbolTable(String input, boolean genDbg) {
+		return compileToSymbolTable("<string>", input, genDbg);
+	}
+
+	/** Compile input alone, without the image, into a new symbol table */
+	public static STSymbolTable compileToSymbolTable(String fileName, String input, boolean genDbg) {
+		Compiler c = new Compiler();
 		c.genDbg = genDbg;
-		STSymbolTable symtab = c.compile(fileName, input);
+		return c.compile(fileName, input);
+	}
+
+	/** Return the test strings of the classes in symtab in definition order */
+	public static String testString(STSymbolTable symtab) {
+		StringBuilder code = new StringBuilder();
 		for (Symbol s : symtab.GLOBALS.getSymbols()) {
 			if ( s instanceof STClass ) {
 				code.append(((STClass) s).toTestString());
@@ -53,6 +70,46 @@ public class BaseTest {
 		return code.toString();
 	}
 
+	/** Compile image.st then input into a new symbol table; input must
+	 *  compile without errors.
+	 */
+	public static STSymbolTable compileWithImage(String input) {
+		return compileWithImage(input, c -> { });
+	}
+
+	/** Compile as {@link #compileWithImage(String)} does with options set
+	 *  on the compilers of both the image and input.
+	 */
+	public static STSymbolTable compileWithImage(String input, Consumer<Compiler> options) {
+		STSymbolTable symtab = new STSymbolTable();
+		Compiler c = new Compiler(symtab);
+		options.accept(c);
+		STC.compile(c, "image.st");
+		c = new Compiler(symtab);
+		options.accept(c);
+		c.compile("<string>", input);
+		assertEquals("[]", c.errors.toString());
+		return symtab;
+	}
+
+	/** Run a compiled program in a new VM; return what it shows on the Transcript */
+	public static String run(STSymbolTable symtab) throws InterruptedException {
+		VM vm = new VM();
+		vm.load(symtab);
+		vm.link();
+		return runMain(vm);
+	}
+
+	/** Run main in a VM that has been loaded and linked; return what it
+	 *  shows on the Transcript.
+	 */
+	public static String runMain(VM vm) throws InterruptedException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		vm.out = new PrintStream(bytes, true);
+		vm.runMain();
+		return bytes.toString();
+	}
+
 	public static Collection<Object[]> getAllTestDescriptors(String subdir) {
 		List<Object[]> tests = new ArrayList<>();
 		ClassLoader cl = Thread.currentThread().getContextClassLoader();
@@ -0,0 +1,106 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestCascades extends BaseTest {
+	@Test public void testBinaryFirst() {
+		String input = "class T [ foo [ ^1 + 2 * 3; - 4; bar ] ]";
+		String expecting =
+			"0000:  push_int       1\n" +
+			"0005:  push_int       2\n" +
+			"0010:  add              \n" +
+			"0011:  dup              \n" +
+			"0012:  push_int       3\n" +
+			"0017:  mul              \n" +
+			"0018:  pop              \n" +
+			"0019:  dup              \n" +
+			"0020:  push_int       4\n" +
+			"0025:  sub              \n" +
+			"0026:  pop              \n" +
+			"0027:  send           0, 'bar'\n" +
+			"0032:  return           \n";
+		assertEquals(expecting, getAssembly(compile(input)));
+	}
+
+	@Test public void testUnaryFirst() {
+		String input = "class T [ foo [ ^self a b; c; d: 1 ] ]";
+		String expecting =
+			"0000:  self             \n" +
+			"0001:  send           0, 'a'\n" +
+			"0006:  dup              \n" +
+			"0007:  send           0, 'b'\n" +
+			"0012:  pop              \n" +
+			"0013:  dup              \n" +
+			"0014:  send           0, 'c'\n" +
+			"0019:  pop              \n" +
+			"0020:  push_int       1\n" +
+			"0025:  send           1, 'd:'\n" +
+			"0030:  return           \n";
+		assertEquals(expecting, getAssembly(compile(input)));
+	}
+
+	@Test public void testNeedsAMessage() {
+		for (String input : new String[] {
+			"class T [ foo [ ^super foo; bar ] ]",
+			"class T [ foo [ ^super at: 1; bar ] ]",
+			"class T [ foo [ ^3; bar ] ]" })
+		{
+			Compiler c = new Compiler();
+			c.compile("<string>", input);
+			assertEquals("[cascade needs a message to a receiver other than super in global>>T>>foo]",
+						 c.errors.toString());
+		}
+	}
+
+	@Test public void testReceiverEvaluatedOnce() throws Exception {
+		String input =
+			"class Counter [ | n | init [ n := 0 ] next [ n := n + 1 ] count [ ^n ] ]\n" +
+			"class T [ | c | c: x [ c := x ] s [ ^c next. self ] ]\n" +
+			"| c t | c := Counter new. c init. t := T new. t c: c.\n" +
+			"t s; s; s.\n" +
+			"Transcript show: c count.\n";
+		STSymbolTable symtab = compileWithImage(input);
+		STC.link(symtab);
+		STC.verify(symtab);
+		assertEquals("3\n", run(symtab));
+	}
+
+	@Test public void testRunsLikeSeparateSends() throws Exception {
+		String cascade =
+			"class Acc [ | total | init [ total := 0 ] add: x [ total := total + x. ^x ] sum [ ^total ] ]\n" +
+			"| a | a := Acc new. a init; add: 3; add: 4.\n" +
+			"Transcript show: (a add: 5; sum); show: a sum * 2; show: 10 - 1 - 2 + 5.\n";
+		String separate =
+			"class Acc [ | total | init [ total := 0 ] add: x [ total := total + x. ^x ] sum [ ^total ] ]\n" +
+			"| a | a := Acc new. a init. a add: 3. a add: 4.\n" +
+			"a add: 5. Transcript show: a sum. Transcript show: a sum * 2. Transcript show: 10 - 1 - 2 + 5.\n";
+		STSymbolTable symtab = compileWithImage(cascade);
+		STC.link(symtab);
+		STC.verify(symtab);
+		String output = run(symtab);
+		assertEquals("12\n24\n12\n", output);
+		assertEquals(run(compileWithImage(separate)), output);
+	}
+
+	public STClass compile(String input) {
+		Compiler c = new Compiler();
+		STSymbolTable symtab = c.compile("<string>", input);
+		assertEquals("[]", c.errors.toString());
+		return (STClass) symtab.GLOBALS.resolve("T");
+	}
+
+	/** Return the disassembly of T>>foo up to and including first return */
+	public String getAssembly(STClass cl) {
+		STCompiledBlock foo = cl.resolveMethod("foo").compiledBlock;
+		String s = Bytecode.disassemble(foo.name, foo.bytecode, cl.stringTable.toArray(), 0);
+		return s.substring(0, s.indexOf('\n', s.indexOf("return"))+1);
+	}
+}
@@ -0,0 +1,63 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.Deduplicator;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
+
+import javax.json.JsonObject;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestDeduplicator extends BaseTest {
+	public static final String COPIES =
+		"class A [ | v | sum: n [ | s | s := 0. 1 to: n do: [:i | s := s + i]. ^s ] hi [ ^'hi' ] x [ ^v ] ]\n" +
+		"class B [ | w | y [ ^w ] hi [ ^'hi' ] sum: n [ | s | s := 0. 1 to: n do: [:i | s := s + i]. ^s ] ]\n" +
+		"class C [ hi [ ^'ho' ] ]\n";
+
+	@Test public void testIdenticalBodiesShared() {
+		STSymbolTable symtab = new Compiler().compile("<string>", COPIES);
+		Deduplicator dedup = new Deduplicator(symtab);
+		// sum: and hi match although their literals have different indexes
+		// in A and B; x and y match since both read field 0
+		assertEquals(3, dedup.dedup());
+		assertEquals(7, dedup.methods);
+		assertEquals(6, dedup.sharingMethods);
+		assertEquals("[\"to:do:\"]", dedup.shared.get(0).getJsonArray("literals").toString());
+		assertEquals("[\"hi\"]", dedup.shared.get(1).getJsonArray("literals").toString());
+		STClass b = (STClass) symtab.GLOBALS.resolve("B");
+		JsonObject sum = dedup.serialize(b).getJsonArray("methods").getJsonObject(2);
+		assertEquals("{\"name\":\"sum:\",\"isClassMethod\":false,\"qualifiedName\":\"B>>sum:\",\"shared\":0," +
+					 "\"blocks\":[{\"name\":\"sum:-block0\",\"qualifiedName\":\"sum:>>sum:-block0\"}]}",
+					 sum.toString());
+		JsonObject c = dedup.serialize((STClass) symtab.GLOBALS.resolve("C"));
+		assertFalse(c.getJsonArray("methods").getJsonObject(0).containsKey("shared"));
+		assertTrue(dedup.bytesAfter<dedup.bytesBefore);
+		assertTrue(dedup.getReport().startsWith("shared 3 bodies among 6 of 7 methods; "));
+	}
+
+	@Test public void testSharedImageRunsTheSame() throws Exception {
+		String input = COPIES +
+			"Transcript show: (A new sum: 10). Transcript show: (B new sum: 20).\n" +
+			"Transcript show: A new hi. Transcript show: B new hi, C new hi. Transcript show: B new y.\n";
+		STSymbolTable symtab = compileWithImage(input);
+		STC.link(symtab);
+		STC.verify(symtab);
+		Deduplicator dedup = new Deduplicator(symtab);
+		assertTrue(dedup.dedup()>0);
+		Path dir = Files.createTempDirectory("dedup");
+		STC.writeObjectFiles(dir.toString(), "input.st", symtab, dedup);
+		assertTrue(Files.exists(dir.resolve(STC.SHARED_FILE_NAME)));
+		VM vm = new VM();
+		vm.loadDirectory(dir.toString());
+		vm.link();
+		assertEquals("55\n210\nhi\nhiho\nnil\n", runMain(vm));
+	}
+}
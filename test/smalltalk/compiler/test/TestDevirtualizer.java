@@ -0,0 +1,98 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.Devirtualizer;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VMException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static smalltalk.vm.test.TestVM.execAndCapture;
+
+public class TestDevirtualizer extends BaseTest {
+	@Test public void testSoleImplementorBecomesDirect() {
+		String input =
+			"class A [ foo: x [ ^x ] bar [ ^self foo: 1 ] asString [ ^'A' ] ]\n" +
+			"class B [ asString [ ^'B' ] ]\n" +
+			"class T [ t: a [ ^a asString, (a bar) asString ] ]\n";
+		STSymbolTable symtab = new Compiler().compile("<string>", input);
+		Devirtualizer devirtualizer = new Devirtualizer(symtab);
+		assertEquals(2, devirtualizer.devirtualize());
+		assertEquals(5, devirtualizer.sends);
+		STClass t = (STClass) symtab.GLOBALS.resolve("T");
+		assertEquals(
+			"name: t:\n" +
+			"qualifiedName: T>>t:\n" +
+			"nargs: 1\n" +
+			"nlocals: 0\n" +
+			"0000:  push_local     0, 0\n" +
+			"0005:  send           0, 'asString'\n" +
+			"0010:  push_local     0, 0\n" +
+			"0015:  send_direct    0, 'bar', 'A'\n" +
+			"0022:  send           0, 'asString'\n" +
+			"0027:  send           1, ','\n" +
+			"0032:  return           \n" +
+			"0033:  pop              \n" +
+			"0034:  self             \n" +
+			"0035:  return           \n",
+			t.resolveMethod("t:").compiledBlock.toTestString());
+		assertEquals("[asString, bar, ,, A]", t.stringTable.toList().toString());
+	}
+
+	@Test public void testLineTableFollowsCode() {
+		Compiler c = new Compiler();
+		c.genDbg = true;
+		STSymbolTable symtab = c.compile("<string>", "class A [ f [ ^self g ] g [ ^1 ] ]");
+		STClass a = (STClass) symtab.GLOBALS.resolve("A");
+		assertEquals("1=1:20, 6=1:14, 7=1:22", a.resolveMethod("f").compiledBlock.lines.toString());
+		new Devirtualizer(symtab).devirtualize();
+		assertEquals("1=1:20, 8=1:14, 9=1:22", a.resolveMethod("f").compiledBlock.lines.toString());
+	}
+
+	@Test public void testProgramsRunTheSame() throws Exception {
+		String[] programs = {
+			"Transcript show: 3 + 4 * 2. Transcript show: (10 mod: 3).",
+			"| sum | sum := 0. 1 to: 10 do: [:i | sum := sum + i]. Transcript show: sum.",
+			"| a | a := Array new: 5. 1 to: 5 do: [:i | a at: i put: i * i].\n" +
+			"Transcript show: (a filter: [:x | (x mod: 2) = 1]).",
+			"class P [ | v | x [ ^v ] x: a [ v := a ] ]\n" +
+			"class Q : P [ ]\n" +
+			"Transcript show: (Q new x: 4) x. Transcript show: nil.",
+		};
+		for (String input : programs) {
+			assertEquals(input, execAndCapture(input), execDevirtualized(input));
+		}
+	}
+
+	@Test public void testGuardFallsBackToSend() throws Exception {
+		try {
+			execDevirtualized("class A [ foo [ ^1 ] ]\nTranscript show: 3 foo.");
+			fail("expected VMException");
+		}
+		catch (VMException e) {
+			assertEquals("Integer does not understand foo", e.getMessage());
+		}
+	}
+
+	@Test public void testLaterOverrideDisablesDirectSend() throws Exception {
+		STSymbolTable symtab = compileWithImage("class A [ foo [ ^'A' ] ]\nclass T [ call: x [ ^x foo ] ]\n");
+		new Devirtualizer(symtab).devirtualize();
+		Compiler c = new Compiler(symtab);
+		c.compile("<string>",
+			"class B : A [ foo [ ^'B' ] ]\n" +
+			"Transcript show: (T new call: A new). Transcript show: (T new call: B new).\n");
+		STC.link(symtab);
+		assertEquals("A\nB\n", run(symtab));
+	}
+
+	public static String execDevirtualized(String input) throws Exception {
+		STSymbolTable symtab = compileWithImage(input);
+		new Devirtualizer(symtab).devirtualize();
+		STC.link(symtab);
+		STC.verify(symtab);
+		return run(symtab);
+	}
+}
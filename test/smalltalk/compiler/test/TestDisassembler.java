@@ -0,0 +1,65 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Disassembler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDisassembler extends BaseTest {
+	@Test public void testSamplesMatchTestString() throws IOException {
+		int n = 0;
+		for (Object[] args : getAllTestDescriptors("CodeGen")) {
+			assertSameText(compileToSymbolTable((String) args[1], false));
+			n++;
+		}
+		for (Object[] args : getAllTestDescriptors("DbgInstruction")) {
+			assertSameText(compileToSymbolTable((String) args[1], true));
+			n++;
+		}
+		assertTrue(n>0);
+	}
+
+	@Test public void testImageMatchesTestString() throws IOException {
+		assertSameText(STC.compile("image.st", true));
+		assertSameText(STC.compile("image.st", false));
+	}
+
+	@Test public void testEmptyClass() throws IOException {
+		assertSameText(compileToSymbolTable("class A [ ]\nclass B : A [ | x y | ]\n", false));
+	}
+
+	@Test public void testDisassembleOutputWritesAllClasses() throws IOException {
+		Path dir = Files.createTempDirectory("dis");
+		Path st = dir.resolve("t.st");
+		try {
+			String input = "class A [ f [ ^1 ] ]\nclass B [ g [ ^2 ] ]\n";
+			Files.write(st, input.getBytes());
+			STSymbolTable symtab = compileToSymbolTable(input, false);
+			// an absolute path to the source file must still land in dir
+			STC.disassembleOutput(dir.toString(), st.toAbsolutePath().toString(), symtab);
+			Path out = dir.resolve("t.st-teststring.txt");
+			assertEquals(testString(symtab), new String(Files.readAllBytes(out)));
+		}
+		finally {
+			for (File f : dir.toFile().listFiles()) {
+				f.delete();
+			}
+			Files.delete(dir);
+		}
+	}
+
+	public static void assertSameText(STSymbolTable symtab) throws IOException {
+		StringWriter out = new StringWriter();
+		new Disassembler(out).disassemble(symtab);
+		assertEquals(testString(symtab), out.toString());
+	}
+}
@@ -0,0 +1,121 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestDoits extends BaseTest {
+	@Test public void testReturnsLastValue() {
+		Compiler c = imageCompiler();
+		STCompiledBlock doit = c.compileDoit("| x | x := 3. x + 4 * 2");
+		assertEquals("[]", c.errors.toString());
+		String s = Bytecode.disassemble(doit.name, doit.bytecode, doit.enclosingClass.stringTable.toArray(), 0);
+		assertEquals(
+			"0000:  push_int       3\n" +
+			"0005:  store_local    0, 0\n" +
+			"0010:  pop              \n" +
+			"0011:  push_local     0, 0\n" +
+			"0016:  push_int       4\n" +
+			"0021:  add              \n" +
+			"0022:  push_int       2\n" +
+			"0027:  mul              \n" +
+			"0028:  return           \n",
+			s);
+		assertEquals("MainClass>>main", doit.qualifiedName);
+	}
+
+	@Test public void testSymbolTableUntouched() {
+		Compiler c = imageCompiler();
+		int nsymbols = symtab.GLOBALS.getSymbols().size();
+		c.compileDoit("1");
+		int nselectors = symtab.selectors.size();
+		c.compileDoit("Transcript show: 1");
+		c.compileDoit("3 fooBar: 4");
+		assertEquals(nsymbols, symtab.GLOBALS.getSymbols().size());
+		assertNull(symtab.GLOBALS.getSymbol("MainClass"));
+		assertEquals(nselectors, symtab.selectors.size());
+		assertEquals(-1, TestSharedPrelude.indexOf(symtab.selectors.toArray(), "fooBar:"));
+	}
+
+	@Test public void testSelectorIDsAgreeWithProgram() {
+		Compiler c = imageCompiler();
+		STCompiledBlock doit = c.compileDoit("3 fooBar: 4");
+		int id = doit.sendSelectors[0];
+		assertTrue(id>=symtab.selectors.size());
+		// the program gains selectors after the doit; later doits renumber
+		new Compiler(symtab).compile("<string>", "class T [ bazz [ ^1 ] ]");
+		doit = c.compileDoit("T new bazz");
+		assertEquals(symtab.selectors.toList().indexOf("bazz"), doit.sendSelectors[1]);
+		assertEquals(3, run(c, "T new bazz + 2"));
+	}
+
+	@Test public void testErrors() {
+		Compiler c = imageCompiler();
+		assertNull(c.compileDoit("x := 1"));
+		assertEquals("[unknown variable x in global>>MainClass>>main]", c.errors.toString());
+		c.errors.clear();
+		assertNull(c.compileDoit("3 +"));
+		assertEquals("[syntax error in doit]", c.errors.toString());
+		c.errors.clear();
+		// the parser recovers for the next doit
+		assertEquals(Bytecode.PUSH_INT, c.compileDoit("3").bytecode[0]);
+		assertEquals("[]", c.errors.toString());
+	}
+
+	@Test public void testRun() throws Exception {
+		Compiler c = imageCompiler();
+		assertEquals(14, run(c, "3 + 4 * 2"));
+		assertEquals(3, run(c, "#(1 $a 'b') size"));
+		assertEquals("abcd", run(c, "| s | s := 'abc'. s, 'd'"));
+		assertEquals(10, run(c, "| n | n := 0. 1 to: 4 do: [:i | n := n + i]. n"));
+		assertEquals(null, run(c, "| x |"));
+		assertEquals(null, run(c, "")); // no statements answer nil
+	}
+
+	@Test public void testFasterThanRecompiling() {
+		Compiler c = imageCompiler();
+		for (int i = 0; i<500; i++) { // warm up
+			c.compileDoit("(3 + 4) printString size");
+		}
+		long start = System.nanoTime();
+		int n = 500;
+		for (int i = 0; i<n; i++) {
+			c.compileDoit("| a | a := Array new: "+i+". a size + 1");
+		}
+		long perDoit = (System.nanoTime()-start)/n;
+		start = System.nanoTime();
+		STC.compile("image.st", false);
+		long image = System.nanoTime()-start;
+		assertEquals("[]", c.errors.toString());
+		assertTrue(perDoit+"ns per doit vs "+image+"ns for the image", perDoit*10<image);
+	}
+
+	public Object run(Compiler c, String expr) {
+		STCompiledBlock doit = c.compileDoit(expr);
+		assertEquals("[]", c.errors.toString());
+		VM vm = new VM();
+		vm.load(symtab);
+		vm.load(doit.enclosingClass.serialize());
+		vm.link();
+		Object result = vm.execMain();
+		return result instanceof Integer || result==null ? result : result.toString();
+	}
+
+	protected STSymbolTable symtab;
+
+	public Compiler imageCompiler() {
+		symtab = new STSymbolTable();
+		Compiler c = new Compiler(symtab);
+		STC.compile(c, "image.st");
+		assertEquals("[]", c.errors.toString());
+		return c;
+	}
+}
@@ -0,0 +1,141 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Code;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.ir.IRFunction;
+import smalltalk.compiler.ir.PassManager;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.util.Objects;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestIR extends BaseTest {
+	@Test public void testSamplesRoundTrip() throws Exception {
+		int n = 0;
+		for (Object[] args : getAllTestDescriptors("CodeGen")) {
+			n += assertRoundTrip(compileToSymbolTable((String) args[1], false));
+		}
+		for (Object[] args : getAllTestDescriptors("DbgInstruction")) {
+			n += assertRoundTrip(compileToSymbolTable((String) args[1], true));
+		}
+		n += assertRoundTrip(STC.compile("image.st", true));
+		assertTrue(n>0);
+	}
+
+	@Test public void testBuild() {
+		STSymbolTable symtab = new Compiler().compile("<string>",
+			"class T [ | f | m: a [ | x y | x := a foo: 3. y := x. f := y + 1. ^[x] ] ]");
+		STCompiledBlock m = ((STClass) symtab.GLOBALS.resolve("T")).resolveMethod("m:").compiledBlock;
+		// x is captured by the block so only a and y are tracked
+		assertEquals(
+			"B0:\n" +
+			"    v0 = push_local 0, 0 = entry\n" +
+			"    v1 = push_int 3\n" +
+			"    v2 = send 1, 'foo:' (v0, v1)\n" +
+			"    store_local 0, 1 (v2)\n" +
+			"    pop (v2)\n" +
+			"    v5 = push_local 0, 1\n" +
+			"    store_local 0, 2 (v5)\n" +
+			"    pop (v5)\n" +
+			"    v8 = push_local 0, 2 = v5\n" +
+			"    v9 = push_int 1\n" +
+			"    v10 = add (v8, v9)\n" +
+			"    store_field 0 (v10)\n" +
+			"    pop (v10)\n" +
+			"    v13 = block 0\n" +
+			"    return (v13)\n" +
+			"B1:\n" +
+			"    pop (v13)\n" +
+			"    v16 = self\n" +
+			"    return (v16)\n",
+			new IRFunction(m, m).toString());
+	}
+
+	@Test public void testOptimize() {
+		Compiler c = new Compiler();
+		c.optimizer = PassManager.standard();
+		STSymbolTable symtab = c.compile("<string>",
+			"class T [ f [ | x y | x := 3 + 4. y := x. ^y * 2 ] g: a [ | t | t := a. ^t bar: t ] ]");
+		STClass t = (STClass) symtab.GLOBALS.resolve("T");
+		STCompiledBlock f = t.resolveMethod("f").compiledBlock;
+		assertEquals(
+			"name: f\n" +
+			"qualifiedName: T>>f\n" +
+			"nargs: 0\n" +
+			"nlocals: 0\n" +
+			"0000:  push_int       14\n" +
+			"0005:  return           \n" +
+			"0006:  pop              \n" +
+			"0007:  self             \n" +
+			"0008:  return           \n",
+			f.toTestString());
+		assertEquals("int", Bytecode.quickKinds[f.quickKind]);
+		assertEquals(
+			"name: g:\n" +
+			"qualifiedName: T>>g:\n" +
+			"nargs: 1\n" +
+			"nlocals: 0\n" +
+			"0000:  push_local     0, 0\n" +
+			"0005:  push_local     0, 0\n" +
+			"0010:  send           1, 'bar:'\n" +
+			"0015:  return           \n" +
+			"0016:  pop              \n" +
+			"0017:  self             \n" +
+			"0018:  return           \n",
+			t.resolveMethod("g:").compiledBlock.toTestString());
+		assertEquals("optimized 2 of 2 methods and blocks: copy propagation 4 constant folding 2 dead store elimination 6; 3 locals need 0 slots\n",
+					 c.optimizer.getReport());
+	}
+
+	@Test public void testOptimizedRunsTheSame() throws Exception {
+		String input =
+			"class T [ | n | sum: k [ | s i | s := 0. i := k. 1 to: i do: [:j | s := s + j]. ^s ]\n" +
+			"  f [ | a b | a := 10 - 3. b := a. n := b. ^b * a + n ] ]\n" +
+			"| t | t := T new. Transcript show: (t sum: 10). Transcript show: t f. Transcript show: 3 < 4.\n";
+		STSymbolTable symtab = new STSymbolTable();
+		PassManager optimizer = PassManager.standard();
+		for (String f : new String[] {"image.st", null}) {
+			Compiler c = new Compiler(symtab);
+			c.optimizer = optimizer;
+			if ( f!=null ) STC.compile(c, f);
+			else c.compile("<string>", input);
+			assertEquals("[]", c.errors.toString());
+		}
+		assertTrue(optimizer.changed>0);
+		STC.link(symtab);
+		STC.verify(symtab);
+		assertEquals(run(compileWithImage(input)), run(symtab));
+	}
+
+	/** Assert that lowering the IR of every method and block reproduces
+	 *  its code and line table; return how many were checked.
+	 */
+	protected static int assertRoundTrip(STSymbolTable symtab) {
+		int n = 0;
+		for (STClass c : symtab.getClasses()) {
+			for (STCompiledBlock m : c.getCompiledMethods()) {
+				if ( m.primitiveName!=null ) continue;
+				n += assertRoundTrip(m, m);
+				for (STCompiledBlock blk : m.blocks) {
+					n += assertRoundTrip(blk, m);
+				}
+			}
+		}
+		return n;
+	}
+
+	protected static int assertRoundTrip(STCompiledBlock blk, STCompiledBlock method) {
+		Code code = new IRFunction(blk, method).lower();
+		assertArrayEquals(blk.qualifiedName, blk.bytecode, code.bytes());
+		assertEquals(blk.qualifiedName, Objects.toString(blk.lines), Objects.toString(code.getLineTable()));
+		return 1;
+	}
+}
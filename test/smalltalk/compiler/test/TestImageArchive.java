@@ -0,0 +1,74 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.Deduplicator;
+import smalltalk.compiler.ImageArchive;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestImageArchive extends BaseTest {
+	@Test public void testRoundTrip() throws Exception {
+		STSymbolTable symtab = new Compiler().compile("<string>", TestDeduplicator.COPIES);
+		for (boolean deflate : new boolean[] {false, true}) {
+			Path file = Files.createTempFile("image", ".sti");
+			ImageArchive.write(file, symtab, null, deflate);
+			ImageArchive image = new ImageArchive(file);
+			assertEquals(deflate, image.deflated);
+			assertEquals(Arrays.asList("A", "B", "C"), image.getClassNames());
+			assertNull(image.readGlobals());
+			assertNull(image.readShared());
+			assertNull(image.readClass("D"));
+			assertTrue(image.loadNanos.isEmpty());
+			STClass b = (STClass) symtab.GLOBALS.resolve("B");
+			assertEquals(b.serialize(), image.readClass("B"));
+			assertEquals(Arrays.asList("B"), Arrays.asList(image.loadNanos.keySet().toArray()));
+			assertTrue(image.getLoadReport().startsWith("loaded 1 of 3 classes from "));
+		}
+	}
+
+	@Test public void testNotAnArchive() throws Exception {
+		Path file = Files.createTempFile("image", ".sti");
+		Files.write(file, "{\"name\":\"A\"}".getBytes());
+		try {
+			new ImageArchive(file);
+			fail("expected IOException");
+		}
+		catch (IOException e) {
+			assertEquals(file+" is not an image archive", e.getMessage());
+		}
+	}
+
+	@Test public void testLoadsOnlyReferencedClasses() throws Exception {
+		String input = TestDeduplicator.COPIES +
+			"Transcript show: (A new sum: 10). Transcript show: B new hi.\n";
+		STSymbolTable symtab = compileWithImage(input);
+		STC.link(symtab);
+		STC.verify(symtab);
+		Deduplicator dedup = new Deduplicator(symtab);
+		dedup.dedup();
+		Path file = Files.createTempFile("image", ".sti");
+		ImageArchive.write(file, symtab, dedup, true);
+		VM vm = new VM();
+		vm.loadImage(file.toString());
+		vm.link();
+		assertEquals("55\nhi\n", runMain(vm));
+		assertTrue(vm.classes.containsKey("TranscriptStream"));
+		assertTrue(vm.classes.containsKey("Stream")); // superclass of WriteStream
+		assertFalse(vm.classes.containsKey("C"));
+		assertFalse(vm.classes.containsKey("ReadStream"));
+	}
+}
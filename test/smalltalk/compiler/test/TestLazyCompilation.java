@@ -0,0 +1,171 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.TreeShaker;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestLazyCompilation extends BaseTest {
+	@Test public void testSymbolsWithoutCode() {
+		Compiler c = new Compiler();
+		c.lazy = true;
+		STSymbolTable symtab = c.compile("<string>", "class T [ | x | foo [ ^x ] bar: y [ ^y + 1 ] ]");
+		assertEquals("[]", c.errors.toString());
+		STClass t = (STClass) symtab.GLOBALS.resolve("T");
+		STMethod foo = t.resolveMethod("foo");
+		assertEquals("[foo, bar:]", methodNames(t));
+		assertNull(foo.compiledBlock);
+		assertNotNull(foo.pendingCodeGen);
+		assertEquals(0, t.stringTable.size());
+		// first access generates just that method
+		STCompiledBlock blk = foo.getCompiledBlock();
+		assertNotNull(blk);
+		assertNull(foo.pendingCodeGen);
+		assertSame(blk, foo.getCompiledBlock());
+		assertNull(t.resolveMethod("bar:").compiledBlock);
+	}
+
+	@Test public void testRedefinitionReportedUpFront() {
+		Compiler c = new Compiler();
+		c.lazy = true;
+		c.compile("<string>", "class T [ | x x | foo [ ^x ] ]");
+		assertEquals("[redefinition of x in global>>T]", c.errors.toString());
+	}
+
+	@Test public void testCascadeErrorReportedUpFront() {
+		Compiler c = new Compiler();
+		c.lazy = true;
+		c.compile("<string>", "class T [ foo [ ^3; bar ] ]");
+		String expected = "[cascade needs a message to a receiver other than super in global>>T>>foo]";
+		assertEquals(expected, c.errors.toString());
+		c.compileAll(); // generating the method doesn't report it again
+		assertEquals(expected, c.errors.toString());
+		c = new Compiler();
+		c.analyze("class T [ foo [ ^super foo; bar ] ]");
+		assertEquals(expected, c.errors.toString());
+	}
+
+	@Test public void testCompileAllMatchesEager() {
+		int n = 0;
+		for (Object[] args : getAllTestDescriptors("CodeGen")) {
+			String input = (String) args[1];
+			Compiler c = new Compiler();
+			c.lazy = true;
+			STSymbolTable lazy = c.compile("<string>", input);
+			c.compileAll();
+			assertEquals((String) args[0], classesAsString(new Compiler().compile("<string>", input)),
+						 classesAsString(lazy));
+			n++;
+		}
+		assertTrue(n>0);
+	}
+
+	@Test public void testImageMatchesEager() {
+		Compiler c = new Compiler();
+		c.lazy = true;
+		STSymbolTable lazy = STC.compile(c, "image.st");
+		assertEquals("[]", c.errors.toString());
+		c.compileAll();
+		assertEquals(classesAsString(STC.compile("image.st", false)), classesAsString(lazy));
+	}
+
+	@Test public void testConcurrentFirstAccess() throws Exception {
+		Compiler c = new Compiler();
+		c.lazy = true;
+		STSymbolTable symtab = STC.compile(c, "image.st");
+		List<STMethod> methods = new ArrayList<>();
+		for (STClass cl : symtab.getClasses()) {
+			for (Object m : cl.getDefinedMethods()) {
+				methods.add((STMethod) m);
+			}
+		}
+		int nthreads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<List<STCompiledBlock>>> results = new ArrayList<>();
+		for (int i = 0; i<nthreads; i++) {
+			int offset = i;
+			results.add(pool.submit(() -> {
+				start.await();
+				List<STCompiledBlock> blocks = new ArrayList<>();
+				for (int j = 0; j<methods.size(); j++) {
+					// each thread starts at a different method
+					blocks.add(methods.get((j+offset*7) % methods.size()).getCompiledBlock());
+				}
+				return blocks;
+			}));
+		}
+		start.countDown();
+		List<List<STCompiledBlock>> all = new ArrayList<>();
+		for (Future<List<STCompiledBlock>> f : results) {
+			all.add(f.get());
+		}
+		pool.shutdown();
+		for (int i = 0; i<nthreads; i++) {
+			for (int j = 0; j<methods.size(); j++) {
+				STCompiledBlock blk = all.get(i).get(j);
+				assertSame(methods.get((j+i*7) % methods.size()).compiledBlock, blk);
+			}
+		}
+		assertEquals("[]", c.errors.toString());
+		// threads generate in any order, so literal indexes differ from eager; check it still links
+		STC.link(symtab);
+		STC.verify(symtab);
+	}
+
+	@Test public void testRunShakenLazyProgram() throws Exception {
+		String input =
+			"class T [ used [ ^'used' ] unused [ ^'unused' ] ]\n" +
+			"Transcript show: T new used.\n";
+		STSymbolTable symtab = new STSymbolTable();
+		for (String f : new String[] {"image.st", null}) {
+			Compiler c = new Compiler(symtab);
+			c.lazy = true;
+			if ( f!=null ) STC.compile(c, f);
+			else c.compile("<string>", input);
+			assertEquals("[]", c.errors.toString());
+		}
+		STMethod unused = ((STClass) symtab.GLOBALS.resolve("T")).resolveMethod("unused");
+		TreeShaker shaker = new TreeShaker(symtab);
+		shaker.shake();
+		assertNull(unused.compiledBlock);
+		assertTrue(shaker.removedMethods.contains("T>>unused"));
+		STC.link(symtab);
+		STC.verify(symtab);
+		assertEquals("used\n", run(symtab));
+	}
+
+	public static String methodNames(STClass c) {
+		List<String> names = new ArrayList<>();
+		for (Object m : c.getDefinedMethods()) {
+			names.add(((STMethod) m).getName());
+		}
+		return names.toString();
+	}
+
+	public static String classesAsString(STSymbolTable symtab) {
+		StringBuilder buf = new StringBuilder();
+		for (STClass c : symtab.getClasses()) {
+			buf.append(c.getAsString()).append('\n');
+			buf.append(c.getMethodTable()).append('\n');
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.LineTable;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestLineTable extends BaseTest {
+	@Test public void testEncodeDecode() {
+		LineTable lines = new LineTable(
+			new int[] {0, 5, 300, 301},
+			new int[] {loc(1,2), loc(3,200), loc(2,0), loc(40,7)});
+		byte[] encoded = lines.encode();
+		assertEquals(14, encoded.length);
+		LineTable decoded = LineTable.decode(encoded);
+		assertArrayEquals(lines.addresses, decoded.addresses);
+		assertArrayEquals(lines.locations, decoded.locations);
+		assertEquals("0=1:2, 5=3:200, 300=2:0, 301=40:7", decoded.toString());
+	}
+
+	@Test public void testLookup() {
+		LineTable lines = new LineTable(new int[] {3, 10}, new int[] {loc(1,1), loc(2,4)});
+		assertEquals(-1, lines.getLocation(0));
+		assertEquals(loc(1,1), lines.getLocation(3));
+		assertEquals(loc(1,1), lines.getLocation(9));
+		assertEquals(loc(2,4), lines.getLocation(10));
+		assertEquals(loc(2,4), lines.getLocation(50));
+		assertEquals(-1, lines.getLocationAt(9));
+		assertEquals(loc(2,4), lines.getLocationAt(10));
+	}
+
+	@Test public void testDbgDoesNotChangeBytecode() {
+		String input =
+			"class T [ f: x [ ^x + 1 ] ]\n" +
+			"T new f: 2.\n";
+		STCompiledBlock plain = method(compileToSymbolTable(input, false), "T", "f:");
+		STCompiledBlock dbg = method(compileToSymbolTable(input, true), "T", "f:");
+		assertNull(plain.lines);
+		assertArrayEquals(plain.bytecode, dbg.bytecode);
+		assertEquals("10=1:20, 11=1:17, 12=1:24", dbg.lines.toString());
+	}
+
+	@Test public void testVMDecodesLines() {
+		STSymbolTable symtab = compileWithImage("| x |\nx := 3.\nx := x * 4.\n", c -> c.genDbg = true);
+		VM vm = new VM();
+		vm.load(symtab);
+		smalltalk.vm.STCompiledBlock main = vm.classes.get("MainClass").methods.get("main");
+		assertEquals(method(symtab, "MainClass", "main").lines.toString(), main.lines.toString());
+		int mul = 0;
+		while ( main.bytecode[mul]!=Bytecode.MUL ) {
+			mul += Bytecode.instructionSize(main.bytecode[mul]);
+		}
+		assertEquals(loc(3,7), main.getLocation(mul));
+		assertEquals(loc(2,2), main.getLocation(mul-5)); // push_int 4 has no entry
+		assertEquals(loc(3,2), main.getLocation(mul+1));
+	}
+
+	public static STCompiledBlock method(STSymbolTable symtab, String className, String selector) {
+		return ((STClass) symtab.GLOBALS.resolve(className)).resolveMethod(selector).compiledBlock;
+	}
+
+	public static int loc(int line, int charPos) {
+		return Bytecode.combineLineCharPos(line, charPos);
+	}
+}
@@ -0,0 +1,81 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.Linker;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLinker extends BaseTest {
+	@Test public void testClassRefsBecomeSlots() {
+		String input =
+			"class A [ foo [ ^B new ] ]\n" +
+			"class B [ bar [ ^[A] ] ]\n";
+		STSymbolTable symtab = new Compiler().compile("<string>", input);
+		Linker linker = new Linker(symtab);
+		assertEquals(2, linker.link());
+		assertEquals("[]", linker.errors.toString());
+		assertEquals("[A, B]", symtab.globals.toList().toString());
+		assertEquals(
+			"0000:  push_gslot     1\n" +
+			"0003:  send           0, 'new'\n",
+			disassemble(symtab, "A", "foo", 2));
+		STCompiledBlock bar = ((STClass) symtab.GLOBALS.resolve("B")).resolveMethod("bar").compiledBlock;
+		assertEquals(Bytecode.PUSH_GLOBAL_SLOT, bar.blocks[0].bytecode[0]);
+		assertEquals(0, Bytecode.getShort(bar.blocks[0].bytecode, 1));
+	}
+
+	@Test public void testUnknownGlobals() {
+		String input =
+			"class A [ foo [ ^Foo new ] ]\n" +
+			"Transcript show: 'hi'.\n";
+		STSymbolTable symtab = new Compiler().compile("<string>", input);
+		Linker linker = new Linker(symtab);
+		linker.link();
+		// no TranscriptStream so no Transcript
+		assertEquals("[unknown global Foo in A>>foo, unknown global Transcript in MainClass>>main]",
+					 linker.errors.toString());
+	}
+
+	@Test public void testTranscriptIsPredefined() {
+		String input =
+			"class TranscriptStream [ ]\n" +
+			"Transcript show: 'hi'.\n";
+		STSymbolTable symtab = new Compiler().compile("<string>", input);
+		Linker linker = new Linker(symtab);
+		linker.link();
+		assertEquals("[]", linker.errors.toString());
+		assertEquals("[TranscriptStream, MainClass, Transcript]", symtab.globals.toList().toString());
+		assertEquals("[\"TranscriptStream\",\"MainClass\",\"Transcript\"]", symtab.serializeGlobals().toString());
+	}
+
+	@Test public void testRelinkKeepsSlots() {
+		STSymbolTable symtab = new STSymbolTable();
+		new Compiler(symtab).compile("<string>", "class A [ foo [ ^A ] ]");
+		new Linker(symtab).link();
+		new Compiler(symtab).compile("<string>", "class B [ foo [ ^A ] ]");
+		Linker linker = new Linker(symtab);
+		assertEquals(1, linker.link()); // A>>foo is already linked
+		assertEquals("[A, B]", symtab.globals.toList().toString());
+		assertEquals(
+			"0000:  push_gslot     0\n",
+			disassemble(symtab, "B", "foo", 1));
+	}
+
+	/** Return the first n instructions of a method */
+	public static String disassemble(STSymbolTable symtab, String className, String selector, int n) {
+		STClass c = (STClass) symtab.GLOBALS.resolve(className);
+		STCompiledBlock m = c.resolveMethod(selector).compiledBlock;
+		StringBuilder buf = new StringBuilder();
+		int ip = 0;
+		for (int i = 0; i<n; i++) {
+			ip = Bytecode.disassembleInstruction(buf, m.name, m.bytecode, c.stringTable.toArray(), ip);
+			buf.append('\n');
+		}
+		return buf.toString();
+	}
+}
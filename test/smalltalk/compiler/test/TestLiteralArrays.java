@@ -0,0 +1,89 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.Verifier;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.STMetaClassObject;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestLiteralArrays extends BaseTest {
+	@Test public void testSymbols() {
+		STClass t = compile("class T [ foo [ ^{#foo. #at:put:. #+. #<=} ] ]");
+		assertEquals("[foo, at:put:, +, <=]", Arrays.toString(t.stringTable.toArray()));
+		assertEquals(0, t.constants.size());
+	}
+
+	@Test public void testElements() {
+		STClass t = compile("class T [ foo [ ^#(1 -2 3.5 $a 'it''s' #sym sym at:put: nil true false (1 #(2)) ()) ] ]");
+		assertEquals("[[1, -2, 3.5, a, it's, sym, sym, at:put:, null, true, false, [1, [2]], []]]",
+					 t.constants.toString());
+		assertEquals("[]", Arrays.toString(t.stringTable.toArray()));
+	}
+
+	@Test public void testQuotesInStrings() throws Exception {
+		STClass t = compile("class T [ foo [ ^'it''s' ] bar [ ^#('it''s' '''') ] ]");
+		assertEquals("[it's]", Arrays.toString(t.stringTable.toArray()));
+		assertEquals("[[it's, ']]", t.constants.toString());
+		STSymbolTable symtab = compileWithImage(
+			"Transcript show: 'it''s'; show: (#('it''s') at: 1); show: '' size; show: '''' size.\n");
+		assertEquals("it's\nit's\n0\n1\n", run(symtab));
+	}
+
+	@Test public void testEqualArraysShareAConstant() {
+		STClass t = compile("class T [ foo [ ^#(1 2) ] bar [ ^{#(1 2). #(1 (2))} ] ]");
+		assertEquals("[[1, 2], [1, [2]]]", t.constants.toString());
+	}
+
+	@Test public void testSerialize() {
+		STClass t = compile("class T [ foo [ ^#(1 2.5 $a 'x' nil true (3)) ] ]");
+		assertEquals("[[1,{\"float\":\"2.5\"},{\"char\":\"a\"},\"x\",null,true,[3]]]",
+					 t.serialize().getJsonArray("constants").toString());
+		STMetaClassObject c = new STMetaClassObject(t.serialize());
+		assertArrayEquals(new Object[] {1, 2.5f, 'a', "x", null, true, new Object[] {3}}, (Object[]) c.constants[0]);
+		// no constants, no key
+		assertFalse(compile("class T [ foo [ ^'x' ] ]").serialize().containsKey("constants"));
+	}
+
+	@Test public void testConstantOutOfRange() {
+		byte[] code = Compiler.push_constant(1).join(Compiler.method_return()).bytes();
+		Verifier verifier = new Verifier();
+		assertFalse(verifier.verify(new String[] {"T>>foo"}, new byte[][] {code}, new int[] {0}, 0, 1, 0, 0));
+		assertEquals("[T>>foo at 0: constant 1 out of range 0..0]", verifier.errors.toString());
+		assertEquals(Bytecode.PUSH_CONSTANT, code[0]);
+	}
+
+	@Test public void testRun() throws Exception {
+		String input =
+			"class T [ table [ ^#(10 $b 'c' #d (1 2) nil) ] pair: x [ ^{x. x * 2} ] ]\n" +
+			"| t a |\n" +
+			"t := T new. a := t table.\n" +
+			"Transcript show: a size; show: (a at: 1); show: (a at: 2); show: (a at: 3); show: (a at: 4);\n" +
+			"  show: (a at: 5) size; show: (a at: 6).\n" +
+			"Transcript show: t table == t table; show: ((t pair: 3) at: 2); show: (t pair: 1) == (t pair: 1).\n" +
+			"Transcript show: #d == #d; show: #at:put:.\n";
+		STSymbolTable symtab = compileWithImage(input);
+		STC.link(symtab);
+		STC.verify(symtab);
+		assertEquals(
+			"6\n10\nb\nc\nd\n2\nnil\n" +
+			"true\n6\nfalse\n" +
+			"true\nat:put:\n",
+			run(symtab));
+	}
+
+	public STClass compile(String input) {
+		Compiler c = new Compiler();
+		STSymbolTable symtab = c.compile("<string>", input);
+		assertEquals("[]", c.errors.toString());
+		return (STClass) symtab.GLOBALS.resolve("T");
+	}
+}
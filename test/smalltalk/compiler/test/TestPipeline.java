@@ -0,0 +1,149 @@
+package smalltalk.compiler.test;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.Pipeline;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPipeline extends BaseTest {
+	public static final String PROGRAM =
+		"class A [ | n | n: x [ n := x ] sum [ ^#(1 2) size + n ] ]\n" +
+		"class B : A [ sum [ ^super sum * 2 ] name [ ^'b' ] ]\n" +
+		"class C [ make [ ^B new ] ]\n" +
+		"| b | b := B new. b n: 4.\n" +
+		"Transcript show: b sum; show: b name; show: (A new n: 1; sum).\n";
+
+	@Test public void testSameFilesAsBatch() throws Exception {
+		Path input = Files.createTempDirectory("pipeline").resolve("input.st");
+		Files.write(input, PROGRAM.getBytes());
+		for (String[] flags : new String[][] {{}, {"-nolink"}, {"-O", "-tail"}}) {
+			Path batch = Files.createTempDirectory("batch");
+			Path pipelined = Files.createTempDirectory("pipelined");
+			String report = stc(args(flags, batch, "image.st", input.toString()));
+			assertEquals(report, stc(args(flags, pipelined, "-pipeline", "image.st", input.toString())));
+			String[] files = batch.toFile().list();
+			Arrays.sort(files);
+			String[] pipelinedFiles = pipelined.toFile().list();
+			Arrays.sort(pipelinedFiles);
+			assertArrayEquals(files, pipelinedFiles);
+			assertTrue(files.length>16); // image, input and globals
+			for (String f : files) {
+				assertEquals(Arrays.toString(flags)+" "+f, new String(Files.readAllBytes(batch.resolve(f))),
+							 new String(Files.readAllBytes(pipelined.resolve(f))));
+			}
+			assertEquals("12\nb\n3\n", run(pipelined));
+		}
+	}
+
+	@Test public void testStatsReportPeakHeap() throws Exception {
+		Path input = Files.createTempDirectory("pipeline").resolve("input.st");
+		Files.write(input, PROGRAM.getBytes());
+		String out = stc(args(new String[] {"-stats"}, Files.createTempDirectory("stats"),
+							  "-pipeline", "image.st", input.toString()));
+		Matcher m = Pattern.compile("peak heap after gc: ([0-9.]+) MB").matcher(out);
+		assertTrue(out, m.find());
+		assertTrue(out, Double.parseDouble(m.group(1))>0);
+	}
+
+	@Test public void testClassesEmittedInOrderAndTreeDropped() throws Exception {
+		CompilerWithHooks c = new CompilerWithHooks();
+		ParserRuleContext tree = c.analyze(PROGRAM);
+		assertEquals("[]", c.errors.toString());
+		List<String> emitted = new ArrayList<>();
+		c.codeGen(tree, cl -> {
+			emitted.add(cl.getName());
+			assertTrue(cl.getCompiledMethods().size()>0);
+		});
+		assertEquals("[A, B, C, MainClass]", emitted.toString());
+		for (ParseTree child : ((ParserRuleContext) tree).children) {
+			assertTrue(child==null || child instanceof TerminalNode); // only EOF is left
+		}
+		STClass b = (STClass) c.getSymbolTable().GLOBALS.resolve("B");
+		assertNull(b.resolveMethod("sum").getDefNode());
+		assertNull(c.getFileTree());
+	}
+
+	@Test public void testCompileErrorStopsPipeline() throws Exception {
+		Path input = Files.createTempDirectory("pipeline").resolve("input.st");
+		Files.write(input, "class T [ foo [ ^3; bar ] ]\n".getBytes());
+		Path out = Files.createTempDirectory("pipelined");
+		STSymbolTable symtab = new STSymbolTable();
+		Compiler c = new Compiler(symtab);
+		try {
+			new Pipeline(symtab, out.toString(), true).compile(Arrays.asList(c), Arrays.asList(input.toString()));
+			fail("no compile error");
+		}
+		catch (RuntimeException re) {
+			assertEquals("compile errors: [cascade needs a message to a receiver other than super in global>>T>>foo]",
+						 re.getMessage());
+		}
+	}
+
+	@Test public void testWriteErrorReported() throws Exception {
+		Path missing = Files.createTempDirectory("pipeline").resolve("missing");
+		STSymbolTable symtab = new STSymbolTable();
+		try {
+			new Pipeline(symtab, missing.toString(), true)
+				.compile(Arrays.asList(new Compiler(symtab)), Arrays.asList("image.st"));
+			fail("wrote to a missing directory");
+		}
+		catch (NoSuchFileException nsfe) {
+			assertTrue(nsfe.getMessage().startsWith(missing.toString()));
+		}
+	}
+
+	/** Run STC with args, returning what it prints, such as -O's report,
+	 *  rather than letting it clutter the build output.
+	 */
+	public static String stc(String[] args) throws Exception {
+		PrintStream out = System.out;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(bytes, true));
+		try {
+			STC.main(args);
+		}
+		finally {
+			System.setOut(out);
+		}
+		return bytes.toString();
+	}
+
+	public static String[] args(String[] flags, Path dir, String... rest) {
+		List<String> args = new ArrayList<>(Arrays.asList(flags));
+		args.add("-o");
+		args.add(dir.toString());
+		args.addAll(Arrays.asList(rest));
+		return args.toArray(new String[0]);
+	}
+
+	public static String run(Path dir) throws IOException, InterruptedException {
+		VM vm = new VM();
+		vm.loadDirectory(dir.toString());
+		vm.link();
+		return runMain(vm);
+	}
+}
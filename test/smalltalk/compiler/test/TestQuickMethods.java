@@ -0,0 +1,108 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
+import smalltalk.vm.VMException;
+
+import javax.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestQuickMethods extends BaseTest {
+	public static final String QUICK_CLASS =
+		"class P [\n" +
+		"    | v |\n" +
+		"    init [ ] me [ ^self ] x [ ^v ] x: a [ v := a ] name [ ^'P' ]\n" +
+		"    none [ ^nil ] yes [ ^true ] no [ ^false ] n [ ^42 ] c [ ^$q ] f [ ^1.5 ]\n" +
+		"    twice [ ^v * 2 ] y: a [ v := a. ^v ] z: a [ ^a ]\n" +
+		"]\n";
+
+	@Test public void testKinds() {
+		STClass p = (STClass) new Compiler().compile("<string>", QUICK_CLASS).GLOBALS.resolve("P");
+		assertQuick(p, "init", Bytecode.QUICK_SELF, 0);
+		assertQuick(p, "me", Bytecode.QUICK_SELF, 0);
+		assertQuick(p, "x", Bytecode.QUICK_FIELD, 0);
+		assertQuick(p, "x:", Bytecode.QUICK_SET_FIELD, 0);
+		assertQuick(p, "name", Bytecode.QUICK_LITERAL, p.stringTable.toList().indexOf("P"));
+		assertQuick(p, "none", Bytecode.QUICK_NIL, 0);
+		assertQuick(p, "yes", Bytecode.QUICK_TRUE, 0);
+		assertQuick(p, "no", Bytecode.QUICK_FALSE, 0);
+		assertQuick(p, "n", Bytecode.QUICK_INT, 42);
+		assertQuick(p, "c", Bytecode.QUICK_CHAR, 'q');
+		assertQuick(p, "f", Bytecode.QUICK_FLOAT, Float.floatToIntBits(1.5f));
+		assertQuick(p, "twice", Bytecode.QUICK_NONE, 0);
+		assertQuick(p, "y:", Bytecode.QUICK_NONE, 0);
+		assertQuick(p, "z:", Bytecode.QUICK_NONE, 0);
+		JsonObject json = p.resolveMethod("x:").compiledBlock.serialize();
+		assertEquals(Bytecode.QUICK_SET_FIELD, json.getInt("quickKind"));
+		assertFalse(p.resolveMethod("twice").compiledBlock.serialize().containsKey("quickKind"));
+	}
+
+	@Test public void testTurnedOff() {
+		Compiler c = new Compiler();
+		c.genQuickMethods = false;
+		STClass p = (STClass) c.compile("<string>", QUICK_CLASS).GLOBALS.resolve("P");
+		assertFalse(p.resolveMethod("x").compiledBlock.isQuick());
+	}
+
+	@Test public void testQuickSendsRunTheSame() throws Exception {
+		String input = QUICK_CLASS +
+			"| p |\n" +
+			"p := P new init.\n" +
+			"Transcript show: (p x: 3) x. Transcript show: p twice. Transcript show: p me x.\n" +
+			"Transcript show: p name. Transcript show: p none. Transcript show: p yes.\n" +
+			"Transcript show: p no. Transcript show: p n. Transcript show: p c. Transcript show: p f.\n" +
+			"Transcript show: (p y: 'a'). Transcript show: (p z: 9).\n";
+		String expected = "3\n6\n3\nP\nnil\ntrue\nfalse\n42\nq\n1.5\na\n9\n";
+		assertEquals(expected, run(compileWithImage(input)));
+		STSymbolTable symtab = new STSymbolTable();
+		Compiler image = new Compiler(symtab);
+		image.genQuickMethods = false;
+		STC.compile(image, "image.st");
+		Compiler c = new Compiler(symtab);
+		c.genQuickMethods = false;
+		c.compile("<string>", input);
+		assertEquals(expected, run(symtab));
+	}
+
+	@Test public void testStats() {
+		String stats = STC.getStats(new Compiler().compile("<string>", QUICK_CLASS));
+		assertEquals(
+			"classes: 1\n" +
+			"methods: 14 (0 primitive, 11 quick)\n" +
+			"quick methods: self=2 field=1 set_field=1 literal=1 nil=1 true=1 false=1 int=1 char=1 float=1\n" +
+			"bytecode: 110 bytes\n",
+			stats.replace(System.lineSeparator(), "\n"));
+	}
+
+	@Test public void testVMChecksQuickTag() {
+		STSymbolTable symtab = compileWithImage("class T [ | a b | f [ ^a ] ]");
+		STCompiledBlock f = ((STClass) symtab.GLOBALS.resolve("T")).resolveMethod("f").compiledBlock;
+		f.quickOperand = 7;
+		VM vm = new VM();
+		vm.load(symtab);
+		try {
+			vm.link();
+			fail("expected VMException");
+		}
+		catch (VMException e) {
+			assertEquals("verify errors: [T>>f: quick kind 2 operand 7 doesn't match its code]", e.getMessage());
+		}
+	}
+
+	public static void assertQuick(STClass c, String selector, int kind, int operand) {
+		STCompiledBlock m = c.resolveMethod(selector).compiledBlock;
+		assertEquals(selector, Bytecode.quickKinds[kind], Bytecode.quickKinds[m.quickKind]);
+		assertEquals(selector, operand, m.quickOperand);
+		assertTrue(selector, m.isQuick()==(kind!=Bytecode.QUICK_NONE));
+	}
+}
@@ -0,0 +1,70 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import javax.json.JsonObject;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSelectorIDs extends BaseTest {
+	@Test public void testMethodsAndSendsShareIDs() {
+		String input =
+			"class T [" +
+			"    foo [ ^self bar: 1 + 2 ]" +
+			"    bar: x [ ^self foo ]" +
+			"]";
+		STSymbolTable symtab = new Compiler().compile("<string>", input);
+		STClass t = (STClass) symtab.GLOBALS.resolve("T");
+		STCompiledBlock foo = t.resolveMethod("foo").compiledBlock;
+		STCompiledBlock bar = t.resolveMethod("bar:").compiledBlock;
+		assertEquals("[foo, +, bar:]", symtab.selectors.toList().toString());
+		assertEquals(0, foo.selectorID);
+		assertEquals(2, bar.selectorID);
+		assertEquals("[1, 2]", Arrays.toString(foo.sendSelectors));
+		assertEquals("[0]", Arrays.toString(bar.sendSelectors));
+	}
+
+	@Test public void testIDsAcrossClassesAndBlocks() {
+		String input =
+			"class A [ x [ ^[:a | a y] ] ]" +
+			"class B : A [ y [ ^1 ] x [ ^super x ] ]";
+		STSymbolTable symtab = new Compiler().compile("<string>", input);
+		STClass a = (STClass) symtab.GLOBALS.resolve("A");
+		STClass b = (STClass) symtab.GLOBALS.resolve("B");
+		STCompiledBlock ax = a.resolveMethod("x").compiledBlock;
+		STCompiledBlock bx = b.getCompiledMethods().get(1);
+		assertEquals(ax.selectorID, bx.selectorID);
+		assertEquals(-1, ax.blocks[0].selectorID);
+		int y = symtab.selectors.add("y");
+		assertEquals("["+y+"]", Arrays.toString(ax.blocks[0].sendSelectors));
+		assertEquals("["+ax.selectorID+"]", Arrays.toString(bx.sendSelectors));
+	}
+
+	@Test public void testIDsStableWhenCompilingMore() {
+		STSymbolTable symtab = new STSymbolTable();
+		new Compiler(symtab).compile("<string>", "class A [ foo [ ^self bar ] ]");
+		String before = symtab.selectors.toList().toString();
+		new Compiler(symtab).compile("<string>", "class B [ baz [ ^self bar ] bar [ ^1 ] ]");
+		assertEquals("[foo, bar, baz]", symtab.selectors.toList().toString());
+		assertEquals(before, symtab.selectors.toList().subList(0, 2).toString());
+	}
+
+	@Test public void testSerializedMethodTable() {
+		String input =
+			"class T [" +
+			"    foo [ ^self bar ]" +
+			"    bar [ ^1 ]" +
+			"]";
+		STSymbolTable symtab = new Compiler().compile("<string>", input);
+		JsonObject json = ((STClass) symtab.GLOBALS.resolve("T")).serialize();
+		// foo is selector 0 and method 0; bar is selector 1 and method 1
+		assertEquals("[[0,0],[1,1]]", json.getJsonArray("methodTable").toString());
+		JsonObject foo = json.getJsonArray("methods").getJsonObject(0);
+		assertEquals("[1]", foo.getJsonArray("sendSelectors").toString());
+	}
+}
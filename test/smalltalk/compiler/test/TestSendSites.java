@@ -0,0 +1,63 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import javax.json.JsonObject;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSendSites extends BaseTest {
+	@Test public void testNoSends() {
+		String input =
+			"class T [" +
+			"    foo [ ^1 ]" +
+			"]";
+		STCompiledBlock foo = compileMethod(input, "T", "foo");
+		assertEquals("[]", Arrays.toString(foo.sendSites));
+	}
+
+	@Test public void testSendsNumberedInOrder() {
+		String input =
+			"class T [" +
+			"    foo [ ^self bar: self baz ]" +
+			"    bar: x [ ^super initialize ]" +
+			"]";
+		STCompiledBlock foo = compileMethod(input, "T", "foo");
+		// self self send 0,'baz' send 1,'bar:' return ...
+		assertEquals("[2, 7]", Arrays.toString(foo.sendSites));
+		STCompiledBlock bar = compileMethod(input, "T", "bar:");
+		assertEquals("[1]", Arrays.toString(bar.sendSites));
+	}
+
+	@Test public void testBlocksHaveOwnSlots() {
+		String input =
+			"class T [" +
+			"    foo [ self bar. [self bar. self baz] value ]" +
+			"]";
+		STCompiledBlock foo = compileMethod(input, "T", "foo");
+		assertEquals("[1, 10]", Arrays.toString(foo.sendSites));
+		assertEquals("[1, 8]", Arrays.toString(foo.blocks[0].sendSites));
+	}
+
+	@Test public void testSerializedSendCount() {
+		String input =
+			"class T [" +
+			"    foo [ self bar. self baz ]" +
+			"]";
+		JsonObject json = compileMethod(input, "T", "foo").serialize();
+		assertEquals(2, json.getInt("nsends"));
+		assertEquals("[1,8]", json.getJsonArray("sendSites").toString());
+	}
+
+	public STCompiledBlock compileMethod(String input, String className, String selector) {
+		Compiler c = new Compiler();
+		STSymbolTable symtab = c.compile("<string>", input);
+		STClass cl = (STClass) symtab.GLOBALS.resolve(className);
+		return cl.resolveMethod(selector).compiledBlock;
+	}
+}
@@ -0,0 +1,156 @@
+package smalltalk.compiler.test;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSharedPrelude extends BaseTest {
+	@Test public void testOverlaySeesPrelude() {
+		STSymbolTable prelude = prelude();
+		int nclasses = prelude.getClasses().size();
+		STSymbolTable symtab = new STSymbolTable(prelude);
+		Compiler c = new Compiler(symtab);
+		c.compile("<string>", "class T : Array [ foo [ ^self size ] ]\nT new foo.\n");
+		assertEquals("[]", c.errors.toString());
+		assertEquals(nclasses, prelude.getClasses().size());
+		assertNull(prelude.GLOBALS.resolve("T"));
+		assertEquals(nclasses+2, symtab.getClasses().size());
+		assertEquals("[class T, class MainClass]", symtab.getOwnClasses().toString());
+		STClass t = (STClass) symtab.GLOBALS.resolve("T");
+		assertSame(prelude.GLOBALS.resolve("Array"), t.getSuperClassScope());
+		// prelude selectors keep their IDs; new ones only go in the overlay
+		assertEquals(prelude.selectors.get(0), symtab.selectors.get(0));
+		assertTrue(symtab.selectors.size()>prelude.selectors.size());
+		assertEquals(-1, indexOf(prelude.selectors.toArray(), "foo"));
+	}
+
+	@Test public void testRedefiningPreludeClass() {
+		Compiler c = new Compiler(new STSymbolTable(prelude()));
+		c.defSymbols(c.parseClasses(new ANTLRInputStream("class Object [ ]")));
+		assertEquals("[redefinition of Object]", c.errors.toString());
+	}
+
+	@Test public void testFrozenPreludeRejectsChanges() {
+		STSymbolTable prelude = prelude();
+		try {
+			new Compiler(prelude).compile("<string>", "class T [ ]");
+			fail("compiled into a frozen table");
+		}
+		catch (IllegalStateException ise) {
+			assertEquals("frozen globals can't change", ise.getMessage());
+		}
+		try {
+			new STSymbolTable(new STSymbolTable());
+			fail("used an unfrozen prelude");
+		}
+		catch (IllegalArgumentException iae) {
+			assertEquals("a prelude's globals must be frozen", iae.getMessage());
+		}
+	}
+
+	@Test public void testLinkingRefused() {
+		STSymbolTable symtab = new STSymbolTable(prelude());
+		new Compiler(symtab).compile("<string>", "Transcript show: 1.\n");
+		try {
+			STC.link(symtab);
+			fail("linked code shared with the prelude");
+		}
+		catch (IllegalStateException ise) {
+			assertEquals("linking would change classes shared with the prelude", ise.getMessage());
+		}
+	}
+
+	@Test public void testOverlaysAreIndependent() throws Exception {
+		STSymbolTable prelude = prelude();
+		STSymbolTable a = compile(prelude, "class T [ f [ ^'a' ] ]\nTranscript show: T new f.\n");
+		STSymbolTable b = compile(prelude, "class T [ | x | f [ x := 2. ^x ] ]\nTranscript show: T new f.\n");
+		assertEquals("a\n", run(a));
+		assertEquals("2\n", run(b));
+	}
+
+	@Test public void testConcurrentCompiles() throws Exception {
+		Compiler lazy = new Compiler();
+		lazy.lazy = true; // freezing must generate the deferred methods
+		STSymbolTable prelude = STC.compile(lazy, "image.st").freeze();
+		String before = TestLazyCompilation.classesAsString(prelude);
+		int nselectors = prelude.selectors.size();
+		int nthreads = 8;
+		int perThread = 10;
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<List<String>>> results = new ArrayList<>();
+		for (int i = 0; i<nthreads; i++) {
+			int thread = i;
+			Callable<List<String>> work = () -> {
+				start.await();
+				List<String> outputs = new ArrayList<>();
+				for (int j = 0; j<perThread; j++) {
+					outputs.add(run(compile(prelude, program(thread, j))));
+				}
+				return outputs;
+			};
+			results.add(pool.submit(work));
+		}
+		start.countDown();
+		for (int i = 0; i<nthreads; i++) {
+			List<String> outputs = results.get(i).get();
+			for (int j = 0; j<perThread; j++) {
+				assertEquals(expected(i, j), outputs.get(j));
+			}
+		}
+		pool.shutdown();
+		assertEquals(before, TestLazyCompilation.classesAsString(prelude));
+		assertEquals(nselectors, prelude.selectors.size());
+	}
+
+	/** A program with a class, selectors and literals of its own */
+	public static String program(int thread, int i) {
+		String k = "k"+thread+"x"+i;
+		return
+			"class C"+i+" [ | n | "+k+": x [ n := x. ^self ] sum [ ^#(1 2 3) size + n ] ]\n" +
+			"| c | c := C"+i+" new "+k+": "+(thread*100+i)+".\n" +
+			"Transcript show: c sum; show: '"+k+"'; show: {c sum. #"+k+"} size.\n";
+	}
+
+	public static String expected(int thread, int i) {
+		return (thread*100+i+3)+"\nk"+thread+"x"+i+"\n2\n";
+	}
+
+	public static STSymbolTable compile(STSymbolTable prelude, String input) {
+		Compiler c = new Compiler(new STSymbolTable(prelude));
+		STSymbolTable symtab = c.compile("<string>", input);
+		assertEquals("[]", c.errors.toString());
+		return symtab;
+	}
+
+	public static STSymbolTable prelude() {
+		Compiler c = new Compiler();
+		STSymbolTable symtab = STC.compile(c, "image.st");
+		assertEquals("[]", c.errors.toString());
+		return symtab.freeze();
+	}
+
+	public static int indexOf(String[] a, String s) {
+		for (int i = 0; i<a.length; i++) {
+			if ( a[i].equals(s) ) return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,114 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.ir.SlotAllocator;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSlotAllocator extends BaseTest {
+	@Test public void testDisjointLocalsShareASlot() {
+		STCompiledBlock m = allocate("class T [ f [ | a b | a := self x. self y: a. b := self z. ^b ] ]", "f");
+		assertEquals(
+			"name: f\n" +
+			"qualifiedName: T>>f\n" +
+			"nargs: 0\n" +
+			"nlocals: 1\n" +
+			"0000:  self             \n" +
+			"0001:  send           0, 'x'\n" +
+			"0006:  store_local    0, 0\n" +
+			"0011:  pop              \n" +
+			"0012:  self             \n" +
+			"0013:  push_local     0, 0\n" +
+			"0018:  send           1, 'y:'\n" +
+			"0023:  pop              \n" +
+			"0024:  self             \n" +
+			"0025:  send           0, 'z'\n" +
+			"0030:  store_local    0, 0\n" +
+			"0035:  pop              \n" +
+			"0036:  push_local     0, 0\n" +
+			"0041:  return           \n" +
+			"0042:  pop              \n" +
+			"0043:  self             \n" +
+			"0044:  return           \n",
+			m.toTestString());
+	}
+
+	@Test public void testUnreadLocalRemoved() {
+		STCompiledBlock m = allocate("class T [ f: p [ | x | x := p foo. ^self ] ]", "f:");
+		assertEquals(
+			"name: f:\n" +
+			"qualifiedName: T>>f:\n" +
+			"nargs: 1\n" +
+			"nlocals: 0\n" +
+			"0000:  push_local     0, 0\n" +
+			"0005:  send           0, 'foo'\n" +
+			"0010:  pop              \n" +
+			"0011:  self             \n" +
+			"0012:  return           \n" +
+			"0013:  pop              \n" +
+			"0014:  self             \n" +
+			"0015:  return           \n",
+			m.toTestString());
+	}
+
+	@Test public void testCapturedLocalRenumberedInBlock() {
+		STCompiledBlock m = allocate(
+			"class T [ f [ | t u a | t := self x. self y: t. u := self z. self y: u. a := 1. ^[a] ] ]", "f");
+		assertEquals(2, m.nlocals);
+		// a moves to the first slot, before the slot t and u share
+		assertEquals(
+			"name: f-block0\n" +
+			"qualifiedName: f>>f-block0\n" +
+			"nargs: 0\n" +
+			"nlocals: 0\n" +
+			"0000:  push_local     1, 0\n" +
+			"0005:  block_return     \n",
+			m.blocks[0].toTestString());
+	}
+
+	@Test public void testInitialNilNotShared() {
+		// y's slot must not be x's since x is read as nil after y is stored
+		STCompiledBlock m = allocate("class T [ f [ | x y | y := self z. self y: y. ^x ] ]", "f");
+		assertEquals(2, m.nlocals);
+	}
+
+	@Test public void testAllocatedRunsTheSame() throws Exception {
+		String input =
+			"class T [ f [ | x y | y := 3. Transcript show: y. ^x ]\n" +
+			"  g [ | t v u a | t := 4. Transcript show: t. v := 6. Transcript show: v. u := 5. a := 0. 1 to: 2 do: [:e | a := a + e + u]. ^a ] ]\n" +
+			"Transcript show: T new f. Transcript show: T new g.\n";
+		String expected = run(compileWithImage(input));
+		assertEquals("3\nnil\n4\n6\n13\n", expected);
+		STSymbolTable symtab = compileWithImage(input);
+		SlotAllocator allocator = new SlotAllocator();
+		for (STClass c : symtab.getClasses()) {
+			for (STCompiledBlock m : c.getCompiledMethods()) {
+				allocator.allocate(m);
+			}
+		}
+		assertTrue(allocator.localsAfter<allocator.localsBefore);
+		STC.link(symtab);
+		STC.verify(symtab);
+		assertEquals(expected, run(symtab));
+	}
+
+	@Test public void testNothingToChange() {
+		STSymbolTable symtab = new Compiler().compile("<string>", "class T [ f: a [ ^a ] ]");
+		STCompiledBlock m = ((STClass) symtab.GLOBALS.resolve("T")).resolveMethod("f:").compiledBlock;
+		assertFalse(new SlotAllocator().allocate(m));
+	}
+
+	protected static STCompiledBlock allocate(String input, String selector) {
+		STSymbolTable symtab = new Compiler().compile("<string>", input);
+		STCompiledBlock m = ((STClass) symtab.GLOBALS.resolve("T")).resolveMethod(selector).compiledBlock;
+		new SlotAllocator().allocate(m);
+		return m;
+	}
+}
@@ -0,0 +1,71 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSpecialSends extends BaseTest {
+	@Test public void testAllSpecialSelectors() {
+		for (String sel : Bytecode.specialSelectors) {
+			short opcode = Bytecode.specialSelectorOpcode(sel);
+			assertEquals(sel, Bytecode.specialSelector(opcode));
+		}
+		assertEquals(0, Bytecode.specialSelectorOpcode("~~"));
+		assertEquals(0, Bytecode.specialSelectorOpcode(","));
+	}
+
+	@Test public void testNonSpecialBinaryIsSend() {
+		String input = "class T [ foo [ ^1 , 2 ~~ 3 ] ]";
+		String expecting =
+			"0000:  push_int       1\n" +
+			"0005:  push_int       2\n" +
+			"0010:  send           1, ','\n" +
+			"0015:  push_int       3\n" +
+			"0020:  send           1, '~~'\n" +
+			"0025:  return           \n";
+		assertEquals(expecting, getAssembly(compile(input, true)));
+	}
+
+	@Test public void testComparisons() {
+		String input = "class T [ foo [ ^1 <= 2 ~= (3 >= 4) ] ]";
+		String expecting =
+			"0000:  push_int       1\n" +
+			"0005:  push_int       2\n" +
+			"0010:  le               \n" +
+			"0011:  push_int       3\n" +
+			"0016:  push_int       4\n" +
+			"0021:  ge               \n" +
+			"0022:  ne               \n" +
+			"0023:  return           \n";
+		assertEquals(expecting, getAssembly(compile(input, true)));
+	}
+
+	@Test public void testDisabledSpecialSends() {
+		String input = "class T [ foo [ ^1 + 2 ] ]";
+		String expecting =
+			"0000:  push_int       1\n" +
+			"0005:  push_int       2\n" +
+			"0010:  send           1, '+'\n" +
+			"0015:  return           \n";
+		assertEquals(expecting, getAssembly(compile(input, false)));
+	}
+
+	public STClass compile(String input, boolean genSpecialSends) {
+		Compiler c = new Compiler();
+		c.genSpecialSends = genSpecialSends;
+		STSymbolTable symtab = c.compile("<string>", input);
+		return (STClass) symtab.GLOBALS.resolve("T");
+	}
+
+	/** Return the disassembly of T>>foo up to and including first return */
+	public String getAssembly(STClass cl) {
+		STCompiledBlock foo = cl.resolveMethod("foo").compiledBlock;
+		String s = Bytecode.disassemble(foo.name, foo.bytecode, cl.stringTable.toArray(), 0);
+		return s.substring(0, s.indexOf('\n', s.indexOf("return"))+1);
+	}
+}
@@ -0,0 +1,104 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
+import smalltalk.vm.VMException;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestSuperSends extends BaseTest {
+	public static final String HIERARCHY =
+		"class A [ | v | f [ ^'A' ] set: x [ v := x ] val [ ^v ] ]\n" +
+		"class B : A [ set: x [ super set: x * 2 ] ]\n" +
+		"class C : B [ f [ ^super f, 'C' ] set: x [ super set: x + 1 ] ]\n";
+
+	@Test public void testBoundToDefiningClass() {
+		STSymbolTable symtab = new Compiler().compile("<string>", HIERARCHY);
+		STClass c = (STClass) symtab.GLOBALS.resolve("C");
+		assertEquals(
+			"name: f\n" +
+			"qualifiedName: C>>f\n" +
+			"nargs: 0\n" +
+			"nlocals: 0\n" +
+			"0000:  self             \n" +
+			"0001:  send_super_direct 0, 'f', 'A'\n" +
+			"0008:  push_literal   'C'\n" +
+			"0011:  send           1, ','\n" +
+			"0016:  return           \n" +
+			"0017:  pop              \n" +
+			"0018:  self             \n" +
+			"0019:  return           \n",
+			c.resolveMethod("f").compiledBlock.toTestString());
+		assertEquals(
+			"name: set:\n" +
+			"qualifiedName: C>>set:\n" +
+			"nargs: 1\n" +
+			"nlocals: 0\n" +
+			"0000:  self             \n" +
+			"0001:  push_local     0, 0\n" +
+			"0006:  push_int       1\n" +
+			"0011:  add              \n" +
+			"0012:  send_super_direct 1, 'set:', 'B'\n" +
+			"0019:  pop              \n" +
+			"0020:  self             \n" +
+			"0021:  return           \n",
+			c.resolveMethod("set:").compiledBlock.toTestString());
+	}
+
+	@Test public void testUnresolvedStaysDynamic() {
+		STSymbolTable symtab = new Compiler().compile("<string>", "class A [ f [ ^super foo: 1 ] ]");
+		assertEquals(
+			"name: f\n" +
+			"qualifiedName: A>>f\n" +
+			"nargs: 0\n" +
+			"nlocals: 0\n" +
+			"0000:  self             \n" +
+			"0001:  push_int       1\n" +
+			"0006:  send_super     1, 'foo:'\n" +
+			"0011:  return           \n" +
+			"0012:  pop              \n" +
+			"0013:  self             \n" +
+			"0014:  return           \n",
+			((STClass) symtab.GLOBALS.resolve("A")).resolveMethod("f").compiledBlock.toTestString());
+	}
+
+	@Test public void testSuperSendsRun() throws Exception {
+		String input = HIERARCHY +
+			"| c | c := C new. c set: 5.\n" +
+			"Transcript show: c val. Transcript show: c f. Transcript show: (B new set: 1) val.\n";
+		STSymbolTable symtab = compileWithImage(input);
+		STC.link(symtab);
+		STC.verify(symtab);
+		assertEquals("12\nAC\n2\n", run(symtab));
+	}
+
+	@Test public void testMissingSuperMethod() throws Exception {
+		STSymbolTable symtab = compileWithImage("class A [ f [ ^super foo ] ]\nA new f.\n");
+		try {
+			run(symtab);
+			fail("expected VMException");
+		}
+		catch (VMException e) {
+			assertEquals("Object does not understand foo", e.getMessage());
+		}
+	}
+
+	@Test public void testLaterOverrideInSuperclass() throws Exception {
+		// C's super send is bound to A>>f, then the VM loads a B that overrides f
+		String classes = "class A [ f [ ^'A' ] ]\nclass B : A [ ]\nclass C : B [ f [ ^super f, 'C' ] ]\n";
+		STSymbolTable symtab = compileWithImage(classes+"Transcript show: C new f.\n");
+		STC.link(symtab);
+		STSymbolTable newer = compileWithImage(classes.replace("B : A [ ]", "B : A [ f [ ^'B' ] ]"));
+		VM vm = new VM();
+		vm.load(symtab);
+		vm.load(((STClass) newer.GLOBALS.resolve("B")).serialize());
+		vm.link();
+		assertEquals("BC\n", runMain(vm));
+	}
+}
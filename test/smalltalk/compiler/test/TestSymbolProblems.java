@@ -106,6 +106,21 @@ public class TestSymbolProblems extends BaseTest {
 		check(input, expecting, errors);
 	}
 
+	@Test public void testUnknownPrimitive() {
+		String input =
+		"class T [" +
+		"    f <primitive:#T_NOSUCH>" +
+		"    at: i <primitive:#Array_AT>" +
+		"    size: n <primitive:#Array_SIZE>" +
+		"]";
+		String expecting = "global>>T, T>>f, T>>at:, T>>size:, at:>>i, size:>>n";
+		String[] errors = {
+			"unknown primitive T_NOSUCH for f in global>>T",
+			"primitive Array_SIZE takes 0 args not 1 for size: in global>>T"
+		};
+		check(input, expecting, errors);
+	}
+
 	public void check(String input, String expecting, String[] errors) {
 		CompilerWithHooks compiler = parseAndDefineSymbols(input);
 		String result = compiler.getSymbolTable().GLOBALS.toTestString(", ", ">>");
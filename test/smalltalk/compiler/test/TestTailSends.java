@@ -0,0 +1,122 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.Verifier;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestTailSends extends BaseTest {
+	@Test public void testReturnedSendIsTail() {
+		STClass t = compile("class T [ foo: x [ ^self bar: x + 1 ] ]", true);
+		assertEquals(
+			"0000:  self             \n" +
+			"0001:  push_local     0, 0\n" +
+			"0006:  push_int       1\n" +
+			"0011:  add              \n" +
+			"0012:  send_tail      1, 'bar:'\n" +
+			"0017:  return           \n",
+			getAssembly(t, "foo:"));
+	}
+
+	@Test public void testFlagOff() {
+		STClass t = compile("class T [ foo: x [ ^self bar: x + 1 ] ]", false);
+		assertEquals(-1, getAssembly(t, "foo:").indexOf("send_tail"));
+	}
+
+	@Test public void testImplicitReturnOfSelfIsNotTail() {
+		STClass t = compile("class T [ foo [ self bar ] ]", true);
+		assertEquals(
+			"0000:  self             \n" +
+			"0001:  send           0, 'bar'\n" +
+			"0006:  pop              \n" +
+			"0007:  self             \n" +
+			"0008:  return           \n",
+			getAssembly(t, "foo"));
+	}
+
+	@Test public void testBlocks() {
+		// a block's value is tail but ^ in a block returns from the method
+		STClass t = compile("class T [ foo [ ^{[self a]. [^self b]} ] ]", true);
+		STCompiledBlock foo = t.resolveMethod("foo").compiledBlock;
+		String[] literals = t.stringTable.toArray();
+		assertEquals(
+			"0000:  self             \n" +
+			"0001:  send_tail      0, 'a'\n" +
+			"0006:  block_return     \n",
+			Bytecode.disassemble(foo.blocks[0].name, foo.blocks[0].bytecode, literals, 0));
+		assertEquals(
+			"0000:  self             \n" +
+			"0001:  send           0, 'b'\n" +
+			"0006:  return           \n" +
+			"0007:  block_return     \n",
+			Bytecode.disassemble(foo.blocks[1].name, foo.blocks[1].bytecode, literals, 0));
+	}
+
+	@Test public void testVerifierNeedsReturnAfterTail() {
+		byte[] method = Compiler.push_self().join(Compiler.send(0, 0)).join(Compiler.pop())
+			.join(Compiler.push_self()).join(Compiler.method_return()).bytes();
+		method[1] = Bytecode.SEND_TAIL;
+		byte[] block = Compiler.push_self().join(Compiler.send(0, 0)).join(Compiler.method_return()).bytes();
+		block[1] = Bytecode.SEND_TAIL;
+		Verifier verifier = new Verifier();
+		assertFalse(verifier.verify(new String[] {"T>>foo", "T>>foo-block0"}, new byte[][] {method, block},
+									new int[] {0, 0}, 1, 0, 0));
+		assertEquals("[T>>foo at 1: send_tail isn't followed by return, " +
+					 "T>>foo-block0 at 1: send_tail isn't followed by block_return]",
+					 verifier.errors.toString());
+	}
+
+	@Test public void testRunsTheSame() throws Exception {
+		String input =
+			"class T [\n" +
+			"  count: n acc: a [ ^n = 0 ifTrue: [a] ifFalse: [self count: n - 1 acc: a + 1] ]\n" +
+			"  down: n [ n = 0 ifTrue: [^0]. ^self down: n - 1 ]\n" +
+			"  pick: n [ n > 0 ifTrue: [^'pos']. ^'neg' ]\n" +
+			"  viaBlock: n [ ^[self pick: n] value ]\n" +
+			"  loop: n [ | i | i := 0. [i < n] whileTrue: [i := i + 1]. ^i ]\n" +
+			"]\n" +
+			"| t | t := T new.\n" +
+			"Transcript show: (t count: 100 acc: 5); show: (t down: 20); show: (t viaBlock: 1); show: (t viaBlock: 0);\n" +
+			"  show: (t loop: 50).\n";
+		String expecting = "105\n0\npos\nneg\n50\n";
+		assertEquals(expecting, run(input, false));
+		assertEquals(expecting, run(input, true));
+	}
+
+	@Test public void testDeepRecursionInTailPosition() throws Exception {
+		String input =
+			"class T [ count: n acc: a [ ^n = 0 ifTrue: [a] ifFalse: [self count: n - 1 acc: a + 1] ] ]\n" +
+			"| i | Transcript show: (T new count: 200000 acc: 0).\n" +
+			"i := 0. [i < 200000] whileTrue: [i := i + 1]. Transcript show: i.\n";
+		assertEquals("200000\n200000\n", run(input, true));
+	}
+
+	public static String run(String input, boolean genTailSends) throws Exception {
+		STSymbolTable symtab = compileWithImage(input, c -> c.genTailSends = genTailSends);
+		STC.link(symtab);
+		STC.verify(symtab);
+		return run(symtab);
+	}
+
+	public STClass compile(String input, boolean genTailSends) {
+		Compiler c = new Compiler();
+		c.genTailSends = genTailSends;
+		STSymbolTable symtab = c.compile("<string>", input);
+		assertEquals("[]", c.errors.toString());
+		return (STClass) symtab.GLOBALS.resolve("T");
+	}
+
+	/** Return the disassembly of a method of T up to and including first return */
+	public String getAssembly(STClass cl, String name) {
+		STCompiledBlock m = cl.resolveMethod(name).compiledBlock;
+		String s = Bytecode.disassemble(m.name, m.bytecode, cl.stringTable.toArray(), 0);
+		return s.substring(0, s.indexOf('\n', s.indexOf("return"))+1);
+	}
+}
@@ -0,0 +1,86 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.TreeShaker;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static smalltalk.vm.test.TestVM.execAndCapture;
+
+public class TestTreeShaker extends BaseTest {
+	@Test public void testUnsentMethodsAndUnusedClassesGo() {
+		String input =
+			"class P [ | v | x [ ^v ] x: a [ v := a ] unused [ ^self foo ] ]\n" +
+			"class Q [ bar [ ^1 ] ]\n" +
+			"| p |\n" +
+			"p := P new x: 3.\n" +
+			"Transcript show: p x + 1.\n";
+		STSymbolTable symtab = compileWithImage(input);
+		TreeShaker shaker = new TreeShaker(symtab);
+		assertTrue(shaker.shake()>0);
+		STClass p = (STClass) symtab.GLOBALS.resolve("P");
+		assertNotNull(p.resolveMethod("x:"));
+		assertNull(p.getSymbol("unused"));
+		assertNull(symtab.GLOBALS.resolve("Q"));
+		assertTrue(shaker.removedClasses.contains("Q"));
+		assertTrue(shaker.removedClasses.contains("Association"));
+		assertTrue(shaker.removedMethods.contains("P>>unused"));
+		assertTrue(shaker.removedMethods.contains("Integer>>mod:"));
+		assertTrue(shaker.getReport().startsWith("kept "));
+	}
+
+	@Test public void testSuperclassesAndOverridesStay() {
+		String input =
+			"class A [ f [ ^'A' ] g [ ^'unused' ] ]\n" +
+			"class B : A [ f [ ^super f, 'B' ] ]\n" +
+			"Transcript show: B new f.\n";
+		STSymbolTable symtab = compileWithImage(input);
+		TreeShaker shaker = new TreeShaker(symtab);
+		shaker.shake();
+		STClass a = (STClass) symtab.GLOBALS.resolve("A");
+		assertNotNull(a.resolveMethod("f"));
+		assertNull(a.getSymbol("g"));
+		// conservative: any live class's f is kept once f is sent
+		assertNotNull(((STClass) symtab.GLOBALS.resolve("B")).getSymbol("f"));
+	}
+
+	@Test public void testShakenProgramsRunTheSame() throws Exception {
+		String[] programs = {
+			"Transcript show: 'hello'.",
+			"Transcript show: 3 + 4 * 2. Transcript show: 7 / 2.0. Transcript show: (10 mod: 3).",
+			"| sum | sum := 0. 1 to: 10 do: [:i | sum := sum + i]. Transcript show: sum.",
+			"| a | a := Array new: 3. a at: 1 put: 'x'. a at: 2 put: $c. a at: 3 put: 1.5.\n" +
+			"Transcript show: a. Transcript show: (a map: [:e | e asString size]). Transcript show: 'abc' hash.",
+			"| a | a := Array new: 5. 1 to: 5 do: [:i | a at: i put: i * i].\n" +
+			"Transcript show: (a filter: [:x | (x mod: 2) = 1]).",
+			"| i | i := 0. [i < 10] whileTrue: [i := i + 1]. Transcript show: i.",
+			"class T [ find: n [ 1 to: 10 do: [:i | i = n ifTrue: [^i * 100]]. ^0 ] ]\n" +
+			"Transcript show: (T new find: 4). Transcript show: $c. Transcript show: nil.",
+		};
+		for (String input : programs) {
+			STSymbolTable symtab = compileWithImage(input);
+			new TreeShaker(symtab).shake();
+			STC.link(symtab);
+			assertEquals(input, execAndCapture(input), run(symtab));
+		}
+	}
+
+	@Test public void testShakeBeforeLinking() {
+		STSymbolTable symtab = compileWithImage("Transcript show: 1.");
+		STC.link(symtab);
+		try {
+			new TreeShaker(symtab).shake();
+			fail("expected IllegalStateException");
+		}
+		catch (IllegalStateException e) {
+			assertEquals("shake the program before linking it", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package smalltalk.compiler.test;
+
+import org.antlr.symtab.MethodSymbol;
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.Verifier;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.VM;
+import smalltalk.vm.VMException;
+
+import javax.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestVerifier extends BaseTest {
+	@Test public void testImageVerifies() {
+		STSymbolTable symtab = compileWithImage(
+			"class T [ f: x [ ^[:y | [x + y] value] value: 1 ] ]\n" +
+			"Transcript show: (T new f: 2).\n");
+		STC.link(symtab);
+		Verifier verifier = new Verifier();
+		assertEquals(0, verifier.verify(symtab));
+		assertEquals("[]", verifier.errors.toString());
+		for (STClass c : symtab.getClasses()) {
+			for (MethodSymbol m : c.getDefinedMethods()) {
+				assertTrue(((STMethod) m).compiledBlock.verified);
+			}
+		}
+		JsonObject json = ((STClass) symtab.GLOBALS.resolve("T")).resolveMethod("f:").compiledBlock.serialize();
+		assertTrue(json.getBoolean("verified"));
+	}
+
+	@Test public void testInvalidOpcode() {
+		assertErrors("[m at 1: invalid opcode 99]", method(Bytecode.NIL, 99));
+	}
+
+	@Test public void testTruncatedOperand() {
+		assertErrors("[m at 1: push_int runs past the end of the code]", method(Bytecode.NIL, Bytecode.PUSH_INT, 0, 0));
+	}
+
+	@Test public void testOperandsOutOfRange() {
+		assertErrors("[m at 0: literal 2 out of range 0..1, m at 3: field 1 out of range 0..0, " +
+					 "m at 6: global slot 0 out of range 0..-1, m at 9: block 0 out of range 0..-1, " +
+					 "m at 12: local 3 out of range 0..2]",
+			method(Bytecode.PUSH_LITERAL, 0, 2,
+				   Bytecode.PUSH_FIELD, 0, 1,
+				   Bytecode.PUSH_GLOBAL_SLOT, 0, 0,
+				   Bytecode.BLOCK, 0, 0,
+				   Bytecode.PUSH_LOCAL, 0, 0, 0, 3,
+				   Bytecode.RETURN));
+	}
+
+	@Test public void testOuterLocals() {
+		Verifier verifier = new Verifier();
+		// m creates block0 which creates block1; block1 reaches m's 3 vars
+		byte[] m = bytes(Bytecode.BLOCK, 0, 0, Bytecode.RETURN);
+		byte[] b0 = bytes(Bytecode.BLOCK, 0, 1, Bytecode.BLOCK_RETURN);
+		byte[] b1 = bytes(Bytecode.PUSH_LOCAL, 0, 2, 0, 2,
+						  Bytecode.PUSH_LOCAL, 0, 2, 0, 3,
+						  Bytecode.STORE_LOCAL, 0, 3, 0, 0,
+						  Bytecode.BLOCK_RETURN);
+		assertFalse(verifier.verify(new String[] {"m", "b0", "b1"}, new byte[][] {m, b0, b1},
+									new int[] {3, 0, 1}, 2, 1, 0));
+		assertEquals("[b1 at 5: local 3 out of range 0..2, b1 at 10: no enclosing scope 3 levels out]",
+					 verifier.errors.toString());
+	}
+
+	@Test public void testStackUnderflow() {
+		assertErrors("[m at 1: send needs 3 operands but the stack has 1]",
+			method(Bytecode.SELF, Bytecode.SEND, 0, 2, 0, 0, Bytecode.RETURN));
+		assertErrors("[m at 0: pop needs 1 operands but the stack has 0]", method(Bytecode.POP, Bytecode.NIL, Bytecode.RETURN));
+	}
+
+	@Test public void testMustReturn() {
+		assertErrors("[m: code runs off the end without returning]", method(Bytecode.SELF, Bytecode.POP));
+		// code after a return never runs
+		assertErrors("[]", method(Bytecode.SELF, Bytecode.RETURN, Bytecode.POP, Bytecode.POP));
+	}
+
+	@Test public void testMissingSendSite() {
+		byte[] code = method(Bytecode.SELF, Bytecode.SELF, Bytecode.SEND, 0, 0, 0, 0, Bytecode.ADD, Bytecode.RETURN);
+		assertSiteErrors("[m at 7: add has no send site]", code, new int[] {2}, 1);
+		assertSiteErrors("[m at 2: send has no send site, m at 7: add has no send site, m: 1 send selectors for 0 send sites]",
+						 code, new int[0], 1);
+		assertSiteErrors("[]", code, new int[] {2, 7}, 2);
+	}
+
+	@Test public void testStraySendSite() {
+		byte[] code = method(Bytecode.SELF, Bytecode.SELF, Bytecode.SEND, 0, 0, 0, 0, Bytecode.RETURN);
+		assertSiteErrors("[m at 0: send site 0 isn't at a send]", code, new int[] {0, 2}, 2);
+		assertSiteErrors("[m at 3: send site 1 isn't at a send, m at 99: send site 2 isn't at a send]",
+						 code, new int[] {2, 3, 99}, 3);
+		assertSiteErrors("[m at 2: send site 1 isn't at a send]", code, new int[] {2, 2}, 2);
+		assertSiteErrors("[m: 2 send selectors for 1 send sites]", code, new int[] {2}, 2);
+	}
+
+	@Test public void testVMRejectsBadSendSites() {
+		STSymbolTable symtab = compileWithImage("class T [ f [ ^self g ] g [ ^1 ] ]");
+		STCompiledBlock f = ((STClass) symtab.GLOBALS.resolve("T")).resolveMethod("f").compiledBlock;
+		f.sendSites = new int[] {99};
+		VM vm = new VM();
+		vm.load(symtab);
+		try {
+			vm.link();
+			fail("expected VMException");
+		}
+		catch (VMException e) {
+			assertEquals("verify errors: [T>>f at 1: send has no send site, T>>f at 99: send site 0 isn't at a send]",
+						 e.getMessage());
+		}
+	}
+
+	@Test public void testVMVerifiesUnflaggedCode() {
+		STSymbolTable symtab = compileWithImage("class T [ f [ ^1 ] ]");
+		STClass t = (STClass) symtab.GLOBALS.resolve("T");
+		t.resolveMethod("f").compiledBlock.bytecode = method(Bytecode.POP, Bytecode.NIL, Bytecode.RETURN);
+		VM vm = new VM();
+		vm.load(symtab);
+		try {
+			vm.link();
+			fail("expected VMException");
+		}
+		catch (VMException e) {
+			assertEquals("verify errors: [T>>f at 0: pop needs 1 operands but the stack has 0]", e.getMessage());
+		}
+		// the VM trusts code the compiler verified
+		t.resolveMethod("f").compiledBlock.verified = true;
+		vm = new VM();
+		vm.load(symtab);
+		vm.link();
+	}
+
+	public static void assertErrors(String expected, byte[] code) {
+		Verifier verifier = new Verifier();
+		verifier.verify(new String[] {"m"}, new byte[][] {code}, new int[] {3}, 2, 1, 0);
+		assertEquals(expected, verifier.errors.toString());
+	}
+
+	public static void assertSiteErrors(String expected, byte[] code, int[] sites, int nselectors) {
+		Verifier verifier = new Verifier();
+		verifier.verify(new String[] {"m"}, new byte[][] {code}, new int[] {3},
+						new int[][] {sites}, new int[] {nselectors}, 2, 0, 1, 0);
+		assertEquals(expected, verifier.errors.toString());
+	}
+
+	public static byte[] method(int... code) {
+		return bytes(code);
+	}
+
+	public static byte[] bytes(int... code) {
+		byte[] b = new byte[code.length];
+		for (int i = 0; i<b.length; i++) {
+			b[i] = (byte)code[i];
+		}
+		return b;
+	}
+}
@@ -0,0 +1,84 @@
+package smalltalk.vm.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.DispatchTable;
+import smalltalk.vm.STMetaClassObject;
+import smalltalk.vm.VM;
+import smalltalk.vm.VMException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static smalltalk.compiler.test.BaseTest.compileWithImage;
+
+public class TestDispatchTable {
+	@Test public void testInheritedAndOverriddenMethods() {
+		VM vm = load(
+			"class A [ x [ ^1 ] y [ ^2 ] ]\n" +
+			"class B : A [ y [ ^3 ] z [ ^4 ] ]\n");
+		STMetaClassObject a = vm.classes.get("A");
+		STMetaClassObject b = vm.classes.get("B");
+		int x = vm.selectorID("x");
+		int y = vm.selectorID("y");
+		int z = vm.selectorID("z");
+		assertSame(a.methods.get("x"), vm.resolveMethod(a, x));
+		assertSame(a.methods.get("x"), vm.resolveMethod(b, x));
+		assertSame(a.methods.get("y"), vm.resolveMethod(a, y));
+		assertSame(b.methods.get("y"), vm.resolveMethod(b, y));
+		assertSame(b.methods.get("z"), vm.resolveMethod(b, z));
+		assertNull(vm.resolveMethod(a, z));
+	}
+
+	@Test public void testAgreesWithResolveMethodForImage() {
+		VM vm = load("");
+		for (STMetaClassObject c : vm.classes.values()) {
+			for (STMetaClassObject s = c; s!=null; s = s.superClass) {
+				for (String sel : s.methods.keySet()) {
+					assertSame(c.name+">>"+sel, c.resolveMethod(sel), vm.resolveMethod(c, vm.selectorID(sel)));
+				}
+			}
+		}
+	}
+
+	@Test public void testRowsAreCompressed() {
+		VM vm = load("");
+		DispatchTable table = new DispatchTable(vm.classes.values());
+		int n = 0; // number of selectors defined anywhere
+		for (STMetaClassObject c : vm.classes.values()) {
+			for (String sel : c.methods.keySet()) {
+				n = Math.max(n, vm.selectorID(sel)+1);
+			}
+		}
+		assertTrue(table.size() < vm.classes.size()*n);
+		assertTrue(table.density() > 0.0);
+	}
+
+	@Test public void testMismatchedSelectorIDs() {
+		STSymbolTable image = new STSymbolTable();
+		new Compiler(image).compile("<string>", "class A [ foo [ ^1 ] ]");
+		STSymbolTable prog = new STSymbolTable();
+		new Compiler(prog).compile("<string>", "class B [ bar [ ^1 ] ]");
+		VM vm = new VM();
+		vm.load(image);
+		try {
+			vm.load(((STClass) prog.GLOBALS.resolve("B")).serialize());
+			fail("expected VMException");
+		}
+		catch (VMException e) {
+			assertEquals("selector ID 0 is both foo and bar; compile the whole program with one symbol table",
+						 e.getMessage());
+		}
+	}
+
+	public static VM load(String input) {
+		VM vm = new VM();
+		vm.load(compileWithImage(input));
+		vm.link();
+		return vm;
+	}
+}
@@ -0,0 +1,140 @@
+package smalltalk.vm.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Primitives;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STSymbolTable;
+import smalltalk.vm.Primitive;
+import smalltalk.vm.VMException;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static smalltalk.compiler.test.BaseTest.compileWithImage;
+import static smalltalk.compiler.test.BaseTest.run;
+
+public class TestVM {
+	@Test public void testHello() throws Exception {
+		String input = "Transcript show: 'hello'.";
+		assertEquals("hello\n", execAndCapture(input));
+	}
+
+	@Test public void testArithmetic() throws Exception {
+		String input =
+			"Transcript show: 3 + 4 * 2.\n" +
+			"Transcript show: 7 / 2.\n" +
+			"Transcript show: 7 / 2.0.\n" +
+			"Transcript show: 1 - 2.5.\n" +
+			"Transcript show: 3 <= 3.\n" +
+			"Transcript show: 3 ~= 3.\n" +
+			"Transcript show: (10 mod: 3).\n";
+		String expecting = "14\n3\n3.5\n-1.5\ntrue\nfalse\n1\n";
+		assertEquals(expecting, execAndCapture(input));
+		assertEquals(expecting, execAndCapture(input, false));
+	}
+
+	@Test public void testFieldsAndInheritance() throws Exception {
+		String input =
+			"class P [\n" +
+			"    | x y |\n" +
+			"    class x: ax y: ay [ ^self new setX: ax y: ay ]\n" +
+			"    setX: ax y: ay [ x := ax. y := ay ]\n" +
+			"    asString [ ^x asString, '@', y asString ]\n" +
+			"]\n" +
+			"class P3 : P [\n" +
+			"    | z |\n" +
+			"    z: az [ z := az ]\n" +
+			"    asString [ ^super asString, '@', z asString ]\n" +
+			"]\n" +
+			"Transcript show: (P x: 1 y: 2).\n" +
+			"Transcript show: ((P3 x: 1 y: 2) z: 3).\n";
+		assertEquals("1@2\n1@2@3\n", execAndCapture(input));
+	}
+
+	@Test public void testBlocksAndOuterLocals() throws Exception {
+		String input =
+			"| sum blk |\n" +
+			"sum := 0.\n" +
+			"1 to: 10 do: [:i | sum := sum + i].\n" +
+			"Transcript show: sum.\n" +
+			"blk := [:a :b | a * b + sum].\n" +
+			"Transcript show: (blk value: 2 value: 3).\n";
+		assertEquals("55\n61\n", execAndCapture(input));
+	}
+
+	@Test public void testNonLocalReturn() throws Exception {
+		String input =
+			"class T [\n" +
+			"    find: n [ 1 to: 10 do: [:i | i = n ifTrue: [^i * 100]]. ^0 ]\n" +
+			"]\n" +
+			"Transcript show: (T new find: 4).\n" +
+			"Transcript show: (T new find: 40).\n" +
+			"Transcript show: (3 > 2 and: 2 > 1).\n";
+		assertEquals("400\n0\ntrue\n", execAndCapture(input));
+	}
+
+	@Test public void testArraysAndCharacters() throws Exception {
+		String input =
+			"| a |\n" +
+			"a := Array new: 3.\n" +
+			"a at: 1 put: 'x'. a at: 2 put: $c. a at: 3 put: 1.5.\n" +
+			"Transcript show: a.\n" +
+			"Transcript show: (a map: [:e | e asString size]).\n" +
+			"Transcript show: 'abc' hash.\n";
+		assertEquals("Array(x. c. 1.5)\nArray(1. 1. 3)\n294\n", execAndCapture(input));
+	}
+
+	@Test public void testFilter() throws Exception {
+		String input =
+			"| a |\n" +
+			"a := Array new: 5.\n" +
+			"1 to: 5 do: [:i | a at: i put: i * i].\n" +
+			"Transcript show: (a filter: [:x | (x mod: 2) = 1]).\n";
+		assertEquals("Array(1. 9. 25)\n", execAndCapture(input));
+	}
+
+	@Test public void testWhileTrue() throws Exception {
+		String input =
+			"| i |\n" +
+			"i := 0.\n" +
+			"[i < 1000] whileTrue: [i := i + 1].\n" +
+			"Transcript show: i.\n";
+		assertEquals("1000\n", execAndCapture(input));
+	}
+
+	@Test public void testDoesNotUnderstand() throws Exception {
+		String input = "3 foo.";
+		try {
+			execAndCapture(input);
+			fail("expected VMException");
+		}
+		catch (VMException e) {
+			assertEquals("Integer does not understand foo", e.getMessage());
+		}
+	}
+
+	@Test public void testPrimitiveIDsMatchCompiler() {
+		assertEquals(Primitives.primitives.length, Primitive.values().length);
+		for (Primitives.Definition p : Primitives.primitives) {
+			assertEquals(p.name, Primitive.forID(p.id, p.name).name());
+			assertEquals(p.name, p.nargs, Primitive.forID(p.id, null).nargs);
+		}
+		try {
+			Primitive.forID(Primitives.lookup("Array_AT").id, "Array_SIZE");
+			fail("expected VMException");
+		}
+		catch (VMException e) {
+			assertEquals("primitive ID 42 is Array_AT not Array_SIZE", e.getMessage());
+		}
+	}
+
+	public static String execAndCapture(String input) throws Exception {
+		return execAndCapture(input, true);
+	}
+
+	public static String execAndCapture(String input, boolean genSpecialSends) throws Exception {
+		STSymbolTable symtab = compileWithImage(input, c -> c.genSpecialSends = genSpecialSends);
+		STC.link(symtab);
+		return run(symtab);
+	}
+}